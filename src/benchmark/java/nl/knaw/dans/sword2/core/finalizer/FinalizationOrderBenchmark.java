@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.core.Deposit;
+import nl.knaw.dans.sword2.core.service.DepositHandler;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the same mix of deposit sizes through the {@link FairFinalizerScheduler} in arrival order and smallest first, and reports the mean and 99th percentile of the time from arrival
+ * until the deposit is finalized (SUBMITTED). Finalizing is simulated by sleeping for a time proportional to the size, compressed so that 100 MB takes 1 ms: most deposits are a few MB,
+ * some are up to a GB and one in a hundred is between 100 and 300 GB. Deposits arrive at random, at a rate that keeps the finalizing threads 80% busy on average.
+ * <p>
+ * Run with: mvn -Pbenchmark test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nl.knaw.dans.sword2.core.finalizer.FinalizationOrderBenchmark -Dexec.args="[deposits]
+ * [threads] [aging rate in bytes per second]"
+ */
+public class FinalizationOrderBenchmark {
+    private static final long MB = 1024L * 1024;
+    private static final long GB = 1024 * MB;
+    private static final long BYTES_PER_MILLI = 100 * MB;
+    private static final double UTILIZATION = 0.8;
+
+    public static void main(String[] args) throws Exception {
+        var deposits = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        var threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        // with the compressed time, a 300 GB deposit may be overtaken by deposits arriving in the next 30 seconds
+        var agingRate = args.length > 2 ? Long.parseLong(args[2]) : 10 * GB;
+
+        var sizes = generateSizes(deposits, new Random(42));
+        var meanServiceMillis = sizes.stream().mapToLong(FinalizationOrderBenchmark::getServiceMillis).average().orElse(1);
+        var meanInterarrivalMillis = meanServiceMillis / threads / UTILIZATION;
+
+        System.out.printf("deposits=%d threads=%d meanServiceTime=%.1fms meanInterarrivalTime=%.1fms%n", deposits, threads, meanServiceMillis, meanInterarrivalMillis);
+
+        run("arrival", FinalizationOrder.arrival(), sizes, threads, meanInterarrivalMillis);
+        run("smallest", FinalizationOrder.smallestFirst(agingRate), sizes, threads, meanInterarrivalMillis);
+    }
+
+    private static List<Long> generateSizes(int deposits, Random random) {
+        var sizes = new ArrayList<Long>();
+
+        for (var i = 0; i < deposits; i++) {
+            var p = random.nextDouble();
+
+            if (p < 0.90) {
+                sizes.add(MB + (long) (random.nextDouble() * 9 * MB));
+            }
+            else if (p < 0.99) {
+                sizes.add(100 * MB + (long) (random.nextDouble() * 900 * MB));
+            }
+            else {
+                sizes.add(100 * GB + (long) (random.nextDouble() * 200 * GB));
+            }
+        }
+
+        return sizes;
+    }
+
+    private static long getServiceMillis(long size) {
+        return 1 + size / BYTES_PER_MILLI;
+    }
+
+    private static void run(String name, FinalizationOrder order, List<Long> sizes, int threads, double meanInterarrivalMillis) throws Exception {
+        var arrivals = new ConcurrentHashMap<String, Long>();
+        var latencies = Collections.synchronizedList(new ArrayList<Long>());
+        var done = new CountDownLatch(sizes.size());
+        var depositHandler = buildDepositHandler(sizes, arrivals, latencies, done);
+        var executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        var scheduler = new FairFinalizerScheduler.Builder()
+            .setFinalizerQueue(executor)
+            .setMaxRunning(threads)
+            .setDepositHandler(depositHandler)
+            .setTaskQueue(new ArrayBlockingQueue<>(1))
+            .setOrder(order)
+            .build();
+        var random = new Random(7);
+
+        for (var i = 0; i < sizes.size(); i++) {
+            var id = String.valueOf(i);
+            arrivals.put(id, System.nanoTime());
+            scheduler.submit(new DepositFinalizerEvent(id));
+            // exponentially distributed time between arrivals
+            var pause = (long) (-Math.log(1 - random.nextDouble()) * meanInterarrivalMillis * 1000);
+            TimeUnit.MICROSECONDS.sleep(pause);
+        }
+
+        done.await();
+        executor.shutdown();
+
+        var sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        var mean = sorted.stream().mapToLong(Long::longValue).average().orElse(0);
+        var p99 = sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(sorted.size() * 0.99) - 1));
+
+        System.out.printf("%-9s meanTimeToSubmitted=%.1fms p99TimeToSubmitted=%dms maxTimeToSubmitted=%dms%n", name, mean, p99, sorted.get(sorted.size() - 1));
+    }
+
+    private static DepositHandler buildDepositHandler(List<Long> sizes, Map<String, Long> arrivals, List<Long> latencies, CountDownLatch done) {
+        return (DepositHandler) Proxy.newProxyInstance(DepositHandler.class.getClassLoader(), new Class<?>[] { DepositHandler.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getDeposit": {
+                    var id = (String) args[0];
+                    var deposit = new Deposit();
+                    deposit.setId(id);
+                    deposit.setDepositor("user001");
+                    deposit.setCollectionId("collection1");
+                    deposit.setContentLength(sizes.get(Integer.parseInt(id)));
+                    return deposit;
+                }
+                case "finalizeDepositAsync": {
+                    var id = (String) args[0];
+                    Thread.sleep(getServiceMillis(sizes.get(Integer.parseInt(id))));
+                    latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrivals.get(id)));
+                    done.countDown();
+                    return CompletableFuture.completedFuture(null);
+                }
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.core.VirtualThreads;
+import nl.knaw.dans.sword2.core.service.DigestingOutputStream;
+import nl.knaw.dans.sword2.core.service.InputStreamPayloadSource;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows the thread and memory footprint of an executor with platform and with virtual threads, for many slow uploads being hashed at the same time, and of deposits waiting to be
+ * retried, which are scheduled instead of holding a thread. The executors are built like the application builds them, with as many threads as there are tasks, so every task runs at
+ * once.
+ * <p>
+ * Run on Java 21 or later with: mvn -Pbenchmark test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nl.knaw.dans.sword2.core.finalizer.VirtualThreadsLoadTest
+ * -Dexec.args="[tasks]". Platform thread stacks are native memory, so the heap figures do not include them; start the JVM with -XX:NativeMemoryTracking=summary and run
+ * <code>jcmd &lt;pid&gt; VM.native_memory summary</code> during a run to see those.
+ */
+public class VirtualThreadsLoadTest {
+    private static final Duration RESCHEDULE_DELAY = Duration.ofSeconds(2);
+    private static final int UPLOAD_CHUNKS = 32;
+    private static final int UPLOAD_CHUNK_SIZE = 8 * 1024;
+    private static final Duration UPLOAD_CHUNK_DELAY = Duration.ofMillis(50);
+
+    public static void main(String[] args) throws Exception {
+        var tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        if (!VirtualThreads.isSupported()) {
+            System.err.printf("Virtual threads are not available on Java %s, only platform threads are measured%n", Runtime.version());
+        }
+
+        for (var virtual : new boolean[] { false, true }) {
+            if (virtual && !VirtualThreads.isSupported()) {
+                continue;
+            }
+
+            report("upload", virtual ? "virtual" : "platform", tasks, () -> runUploads(tasks, virtual));
+        }
+
+        report("reschedule", "scheduled", tasks, () -> runReschedules(tasks));
+    }
+
+    private static void runReschedules(int tasks) throws Exception {
+        var taskQueue = new ArrayBlockingQueue<DepositFinalizerEvent>(tasks);
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        for (var i = 0; i < tasks; i++) {
+            scheduler.schedule(new DepositFinalizerDelayedTask("deposit-" + i, taskQueue), RESCHEDULE_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        for (var i = 0; i < tasks; i++) {
+            taskQueue.take();
+        }
+
+        shutdown(scheduler);
+    }
+
+    private static void runUploads(int tasks, boolean virtual) throws Exception {
+        var executor = buildExecutor("upload-worker-%d", tasks, virtual);
+        var done = new CountDownLatch(tasks);
+
+        for (var i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                try (var output = new DigestingOutputStream(OutputStream.nullOutputStream(), Set.of("MD5", "SHA-1"))) {
+                    new InputStreamPayloadSource(new SlowInputStream()).transferTo(output).toCompletableFuture().join();
+                    output.getDigests();
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        done.await();
+        shutdown(executor);
+    }
+
+    private static ExecutorService buildExecutor(String nameFormat, int threads, boolean virtual) {
+        ThreadFactory threadFactory = virtual ? VirtualThreads.newThreadFactory(nameFormat) : Executors.defaultThreadFactory();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(threads), threadFactory);
+    }
+
+    private static void shutdown(ExecutorService executor) throws InterruptedException {
+        executor.shutdown();
+
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Executor did not terminate");
+        }
+    }
+
+    private static void report(String scenario, String threads, int tasks, Scenario run) throws Exception {
+        var threadBean = ManagementFactory.getThreadMXBean();
+        var memory = ManagementFactory.getMemoryMXBean();
+        var peakHeap = new AtomicLong();
+
+        System.gc();
+        threadBean.resetPeakThreadCount();
+        var heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        var sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        var start = System.nanoTime();
+        run.run();
+        var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        sampler.interrupt();
+        sampler.join();
+
+        System.out.printf("%-10s %-8s tasks=%d elapsed=%dms peakPlatformThreads=%d peakHeapGrowth=%dKiB%n",
+            scenario, threads, tasks, elapsed.toMillis(), threadBean.getPeakThreadCount(), Math.max(0, peakHeap.get() - heapBefore) / 1024);
+    }
+
+    private interface Scenario {
+        void run() throws Exception;
+    }
+
+    /**
+     * A client on a slow uplink: a few chunks, with a pause before each.
+     */
+    private static class SlowInputStream extends InputStream {
+        private final byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+        private int chunksLeft = UPLOAD_CHUNKS;
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (chunksLeft == 0) {
+                return -1;
+            }
+
+            try {
+                Thread.sleep(UPLOAD_CHUNK_DELAY.toMillis());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+
+            chunksLeft--;
+            var length = Math.min(len, chunk.length);
+            System.arraycopy(chunk, 0, b, off, length);
+            return length;
+        }
+    }
+}
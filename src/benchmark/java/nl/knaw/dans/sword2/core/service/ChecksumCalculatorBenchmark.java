@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares hashing a file once per algorithm with an 8 KiB buffer, which is how tag manifests were updated before, with {@link ChecksumCalculatorImpl#calculateChecksums(Path, Set)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChecksumCalculatorBenchmark {
+
+    private static final Set<String> algorithms = Set.of("MD5", "SHA-256");
+
+    @Param({ "65536", "67108864" })
+    private int fileSize;
+
+    private final ChecksumCalculatorImpl checksumCalculator = new ChecksumCalculatorImpl();
+    private Path file;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ChecksumCalculatorBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = Files.createTempFile("checksum-benchmark", ".bin");
+        var random = new Random(42);
+        var block = new byte[64 * 1024];
+
+        try (OutputStream output = Files.newOutputStream(file)) {
+            for (var written = 0; written < fileSize; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, Math.min(block.length, fileSize - written));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Map<String, String> onePassPerAlgorithm() throws IOException, NoSuchAlgorithmException {
+        var result = new HashMap<String, String>();
+
+        for (var algorithm : algorithms) {
+            result.put(algorithm, calculateChecksumWithSmallBuffer(file, algorithm));
+        }
+
+        return result;
+    }
+
+    @Benchmark
+    public Map<String, String> singlePassForAllAlgorithms() throws IOException, NoSuchAlgorithmException {
+        return checksumCalculator.calculateChecksums(file, algorithms);
+    }
+
+    // the implementation before calculateChecksums was introduced, except that the stream is closed
+    private String calculateChecksumWithSmallBuffer(Path path, String algorithm) throws IOException, NoSuchAlgorithmException {
+        var md = MessageDigest.getInstance(algorithm);
+
+        try (var is = Files.newInputStream(path)) {
+            var buf = new byte[1024 * 8];
+            var bytesRead = 0;
+
+            while ((bytesRead = is.read(buf)) != -1) {
+                md.update(buf, 0, bytesRead);
+            }
+        }
+
+        return DatatypeConverter.printHexBinary(md.digest()).toLowerCase(Locale.ROOT);
+    }
+}
@@ -16,6 +16,9 @@
 
 package nl.knaw.dans.sword2;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.InstrumentedExecutorService;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.Application;
 import io.dropwizard.auth.AuthDynamicFeature;
 import io.dropwizard.auth.AuthValueFactoryProvider;
@@ -25,23 +28,44 @@ import io.dropwizard.configuration.SubstitutingSourceProvider;
 import io.dropwizard.forms.MultiPartBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import nl.knaw.dans.lib.util.ExecutorServiceFactory;
+import nl.knaw.dans.sword2.core.VirtualThreads;
 import nl.knaw.dans.sword2.core.auth.AuthenticationService;
 import nl.knaw.dans.sword2.core.auth.AuthenticationServiceImpl;
 import nl.knaw.dans.sword2.core.auth.Depositor;
 import nl.knaw.dans.sword2.core.auth.HeaderAuthenticationFilter;
 import nl.knaw.dans.sword2.core.auth.SwordAuthenticator;
+import nl.knaw.dans.sword2.core.config.CollectionConfig;
+import nl.knaw.dans.sword2.core.config.FinalizationOrderType;
+import nl.knaw.dans.sword2.core.config.FinalizationPipelineConfig;
 import nl.knaw.dans.sword2.core.finalizer.DepositFinalizerEvent;
 import nl.knaw.dans.sword2.core.finalizer.DepositFinalizerManager;
+import nl.knaw.dans.sword2.core.finalizer.DiskSpaceWaiters;
+import nl.knaw.dans.sword2.core.finalizer.FairFinalizerScheduler;
+import nl.knaw.dans.sword2.core.finalizer.FinalizationAdmission;
+import nl.knaw.dans.sword2.core.finalizer.FinalizationJournal;
+import nl.knaw.dans.sword2.core.finalizer.FinalizationOrder;
+import nl.knaw.dans.sword2.core.finalizer.OpenDepositScanner;
+import nl.knaw.dans.sword2.core.finalizer.RescheduleBackoff;
 import nl.knaw.dans.sword2.core.service.BagExtractorImpl;
 import nl.knaw.dans.sword2.core.service.BagItManagerImpl;
 import nl.knaw.dans.sword2.core.service.ChecksumCalculatorImpl;
 import nl.knaw.dans.sword2.core.service.CollectionManagerImpl;
+import nl.knaw.dans.sword2.core.service.DepositHandler;
 import nl.knaw.dans.sword2.core.service.DepositHandlerImpl;
+import nl.knaw.dans.sword2.core.service.DepositLocationIndex;
+import nl.knaw.dans.sword2.core.service.DepositPropertiesManager;
 import nl.knaw.dans.sword2.core.service.DepositPropertiesManagerImpl;
 import nl.knaw.dans.sword2.core.service.DepositReceiptFactoryImpl;
 import nl.knaw.dans.sword2.core.service.ErrorResponseFactoryImpl;
+import nl.knaw.dans.sword2.core.service.FileService;
 import nl.knaw.dans.sword2.core.service.FileServiceImpl;
+import nl.knaw.dans.sword2.core.service.FileStoreMonitorImpl;
+import nl.knaw.dans.sword2.core.service.FilesystemSpaceVerifier;
 import nl.knaw.dans.sword2.core.service.FilesystemSpaceVerifierImpl;
+import nl.knaw.dans.sword2.core.service.FinalizationPipeline;
+import nl.knaw.dans.sword2.core.service.FinalizationStage;
+import nl.knaw.dans.sword2.core.service.PartialFileMergerImpl;
 import nl.knaw.dans.sword2.core.service.UserManagerImpl;
 import nl.knaw.dans.sword2.core.service.ZipServiceImpl;
 import nl.knaw.dans.sword2.health.DiskSpaceHealthCheck;
@@ -55,10 +79,26 @@ import nl.knaw.dans.sword2.resources.HashHeaderInterceptor;
 import nl.knaw.dans.sword2.resources.ServiceDocumentResourceImpl;
 import nl.knaw.dans.sword2.resources.StatementResourceImpl;
 import org.glassfish.jersey.media.multipart.MultiPartFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class DdSword2Application extends Application<DdSword2Configuration> {
+    private static final Logger log = LoggerFactory.getLogger(DdSword2Application.class);
 
     public static void main(final String[] args) throws Exception {
         new DdSword2Application().run(args);
@@ -81,29 +121,89 @@ public class DdSword2Application extends Application<DdSword2Configuration> {
         var fileService = new FileServiceImpl();
         var depositPropertiesManager = new DepositPropertiesManagerImpl();
         var checksumCalculator = new ChecksumCalculatorImpl();
-        var filesystemSpaceVerifier = new FilesystemSpaceVerifierImpl(fileService);
+
+        // without a refresh interval, free space is looked up on the file system for every check
+        var fileStoreRefreshInterval = configuration.getSword2().getFileStoreRefreshInterval();
+        var fileStoreMonitor = fileStoreRefreshInterval != null ? buildFileStoreMonitor(fileService, fileStoreRefreshInterval, environment, configuration) : null;
+        var filesystemSpaceVerifier = new FilesystemSpaceVerifierImpl(fileService, fileStoreMonitor);
 
         var errorResponseFactory = new ErrorResponseFactoryImpl();
 
-        var bagItManager = new BagItManagerImpl(fileService, checksumCalculator);
+        var verificationQueue = configuration.getSword2().getVerificationQueue();
+        var verificationExecutor = verificationQueue != null ? verificationQueue.build(environment) : null;
+        var bagItManager = verificationExecutor != null
+            ? new BagItManagerImpl(fileService, checksumCalculator, buildVerificationExecutor(verificationExecutor, environment))
+            : new BagItManagerImpl(fileService, checksumCalculator);
         var userManager = new UserManagerImpl(configuration.getAuthorization().getUsers());
 
-        var finalizingExecutor = configuration.getSword2().getFinalizingQueue().build(environment);
-        var rescheduleExecutor = configuration.getSword2().getRescheduleQueue().build(environment);
+        var virtualThreads = configuration.getSword2().isVirtualThreads();
+        var finalizingExecutor = buildExecutor(configuration.getSword2().getFinalizingQueue(), virtualThreads, environment);
+        if (configuration.getSword2().getRescheduleQueue() != null) {
+            log.warn("sword2.rescheduleQueue is no longer used and can be removed from the configuration; retries are scheduled on a single thread");
+        }
+
+        // retries wait in the scheduler's delay queue, so a single thread serves any number of waiting deposits
+        var rescheduleExecutor = environment.lifecycle().scheduledExecutorService("reschedule-worker-%d").threads(1).build();
+        var rescheduleBackoff = new RescheduleBackoff(configuration.getSword2().getRescheduleDelay(), configuration.getSword2().getRescheduleMaxDelay());
 
         var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(configuration.getSword2().getFinalizingQueue().getMaxQueueSize());
 
         var collectionManager = new CollectionManagerImpl(configuration.getSword2().getCollections());
 
-        var zipService = new ZipServiceImpl(fileService);
+        // without an extraction queue, zip entries are extracted one by one on the finalizing thread
+        var extractionQueue = configuration.getSword2().getExtractionQueue();
+        var zipService = extractionQueue != null
+            ? new ZipServiceImpl(fileService, extractionQueue.build(environment), extractionQueue.getMaxThreads())
+            : new ZipServiceImpl(fileService);
 
-        var bagExtractor = new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier);
-        var depositHandler = new DepositHandlerImpl(bagExtractor, fileService, depositPropertiesManager, collectionManager, userManager, queue, bagItManager,
-            filesystemSpaceVerifier, configuration.getSword2().getEmailAddress());
+        // parts are appended on upload and the remainder on finalization, so both must use the same merger
+        var partialFileMerger = new PartialFileMergerImpl(fileService);
+        var bagExtractor = new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier, partialFileMerger);
+        // without a pipeline, all steps of a finalization run on the finalizing thread
+        var pipelineConfig = configuration.getSword2().getFinalizationPipeline();
+        var finalizationPipeline = pipelineConfig != null ? buildFinalizationPipeline(pipelineConfig, virtualThreads, environment) : null;
+        // without a journal, the uploads folders are scanned for deposits to finalize on every start
+        var journalConfig = configuration.getSword2().getFinalizationJournal();
+        var finalizationJournal = journalConfig != null ? new FinalizationJournal(journalConfig.getPath()) : null;
+        // the scheduler needs the deposit handler, which needs the admission, so the admission reaches the scheduler through a reference that is set before the first request
+        var schedulerReference = new AtomicReference<FairFinalizerScheduler>();
+        var finalizationAdmission = new FinalizationAdmission(queue, () -> schedulerReference.get().getQueued(), () -> schedulerReference.get().getStarted(),
+            configuration.getSword2().getFinalizingQueue().getMaxQueueSize(), Duration.ofSeconds(1), configuration.getSword2().getMaxRetryAfter());
+        // parts of continued deposits are appended to their merged file after the upload is answered; a part that finds no room is merged with the next one
+        var partMerger = environment.lifecycle().executorService("part-merger-%d").minThreads(2).maxThreads(2)
+            .workQueue(new LinkedBlockingQueue<>(configuration.getSword2().getFinalizingQueue().getMaxQueueSize())).build();
+        var depositLocationIndex = new DepositLocationIndex(configuration.getSword2().getCollections(), configuration.getSword2().getDepositNotFoundTtl());
+        var depositHandler = new DepositHandlerImpl.Builder()
+            .setBagExtractor(bagExtractor)
+            .setFileService(fileService)
+            .setDepositPropertiesManager(depositPropertiesManager)
+            .setCollectionManager(collectionManager)
+            .setUserManager(userManager)
+            .setDepositFinalizerQueue(queue)
+            .setBagItManager(bagItManager)
+            .setFilesystemSpaceVerifier(filesystemSpaceVerifier)
+            .setEmailAddress(configuration.getSword2().getEmailAddress())
+            .setPartialFileMerger(partialFileMerger)
+            .setMergeExecutor(partMerger)
+            .setExtractWhileUploading(configuration.getSword2().isExtractWhileUploading())
+            .setDigestAlgorithms(Set.copyOf(configuration.getSword2().getUploadDigestAlgorithms()))
+            .setFinalizationPipeline(finalizationPipeline)
+            .setFinalizationAdmission(finalizationAdmission)
+            .setFinalizationJournal(finalizationJournal)
+            .setDepositLocationIndex(depositLocationIndex)
+            .build();
 
         var depositReceiptFactory = new DepositReceiptFactoryImpl(configuration.getSword2().getBaseUrl());
 
-        var depositFinalizerManager = new DepositFinalizerManager(finalizingExecutor, depositHandler, queue, rescheduleExecutor, configuration.getSword2().getRescheduleDelay());
+        // deposits that ran out of disk space are let through, smallest first, as soon as they fit
+        var diskSpaceWaiters = new DiskSpaceWaiters(filesystemSpaceVerifier, queue, rescheduleBackoff);
+        // retries only carry the id of their deposit, which is looked up on a thread of its own, so the reschedule thread keeps its timers on time
+        var laneResolver = environment.lifecycle().executorService("lane-resolver-%d").minThreads(1).maxThreads(1)
+            .workQueue(new LinkedBlockingQueue<>(configuration.getSword2().getFinalizingQueue().getMaxQueueSize())).build();
+        var finalizerScheduler = buildFinalizerScheduler(finalizingExecutor, laneResolver, depositHandler, queue, finalizationJournal, environment, configuration);
+        schedulerReference.set(finalizerScheduler);
+        var depositFinalizerManager = new DepositFinalizerManager(finalizingExecutor, depositHandler, queue, rescheduleExecutor, rescheduleBackoff, diskSpaceWaiters,
+            finalizerScheduler, finalizationJournal, buildOpenDepositScanner(depositPropertiesManager, environment, configuration));
 
         var httpClient = new HttpClientBuilder(environment).using(configuration.getHttpClientConfiguration())
             .build(getName());
@@ -129,8 +229,34 @@ public class DdSword2Application extends Application<DdSword2Configuration> {
         environment.jersey().register(new AuthValueFactoryProvider.Binder<>(Depositor.class));
 
         // Managed classes
+        if (fileStoreMonitor != null) {
+            environment.lifecycle().manage(fileStoreMonitor);
+        }
+
+        environment.lifecycle().manage(depositLocationIndex);
         environment.lifecycle().manage(depositFinalizerManager);
 
+        if (fileStoreMonitor != null) {
+            fileStoreMonitor.addRefreshListener(diskSpaceWaiters::admit);
+        }
+        else {
+            var interval = configuration.getSword2().getRescheduleDelay().toMillis();
+            rescheduleExecutor.scheduleWithFixedDelay(diskSpaceWaiters::admit, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        // deposits that did not fit on the queue are moved to it as it drains, and the drain rate is sampled for the Retry-After of refused deposits
+        rescheduleExecutor.scheduleWithFixedDelay(() -> {
+            finalizationAdmission.drainOverflow();
+            finalizationAdmission.sample();
+        }, 1, 1, TimeUnit.SECONDS);
+
+        if (finalizationJournal != null) {
+            var interval = journalConfig.getCompactionInterval().toMillis();
+            rescheduleExecutor.scheduleWithFixedDelay(() -> compactJournal(finalizationJournal), interval, interval, TimeUnit.MILLISECONDS);
+            environment.metrics().register(MetricRegistry.name(FinalizationJournal.class, "pending"), (Gauge<Integer>) finalizationJournal::getPending);
+            environment.metrics().register(MetricRegistry.name(FinalizationJournal.class, "records"), (Gauge<Long>) finalizationJournal::getRecords);
+        }
+
         // Resources
         environment.jersey().register(new CollectionResourceImpl(depositHandler, depositReceiptFactory, errorResponseFactory));
 
@@ -148,5 +274,150 @@ public class DdSword2Application extends Application<DdSword2Configuration> {
         environment.healthChecks().register("FinalizerQueue", new QueueHealthCheck(queue));
         environment.healthChecks().register("FinalizingExecutor", new ExecutorQueueHealthCheck(finalizingExecutor));
         environment.healthChecks().register("RescheduleExecutor", new ExecutorQueueHealthCheck(rescheduleExecutor));
+
+        if (verificationExecutor != null) {
+            environment.healthChecks().register("VerificationExecutor", new ExecutorQueueHealthCheck(verificationExecutor));
+        }
+
+        registerDiskSpaceMetrics(filesystemSpaceVerifier, collections, environment);
+        environment.metrics().register(MetricRegistry.name(DiskSpaceWaiters.class, "size"), (Gauge<Integer>) diskSpaceWaiters::getSize);
+        environment.metrics().register(MetricRegistry.name(DiskSpaceWaiters.class, "required-bytes"), (Gauge<Long>) diskSpaceWaiters::getRequiredSpace);
+        environment.metrics().register(MetricRegistry.name(FinalizationAdmission.class, "backlog"), (Gauge<Integer>) finalizationAdmission::getBacklog);
+        environment.metrics().register(MetricRegistry.name(FinalizationAdmission.class, "overflow"), (Gauge<Integer>) finalizationAdmission::getOverflow);
+        environment.metrics().register(MetricRegistry.name(FinalizationAdmission.class, "drain-rate"), (Gauge<Double>) finalizationAdmission::getDrainRate);
+        environment.metrics().register(MetricRegistry.name(DepositLocationIndex.class, "size"), (Gauge<Integer>) depositLocationIndex::getSize);
+        environment.metrics().register(MetricRegistry.name(DepositLocationIndex.class, "missing"), (Gauge<Integer>) depositLocationIndex::getMissing);
+    }
+
+    private FinalizationPipeline buildFinalizationPipeline(FinalizationPipelineConfig config, boolean virtualThreads, Environment environment) {
+        log.info("Finalizing deposits in stages");
+        return new FinalizationPipeline(
+            buildFinalizationStage("extraction", config.getExtraction(), false, virtualThreads, environment),
+            // a deposit that was extracted is not turned away, because it would have to be extracted again when it is retried
+            buildFinalizationStage("verification", config.getVerification(), true, virtualThreads, environment),
+            buildFinalizationStage("hand-off", config.getHandOff(), true, virtualThreads, environment));
+    }
+
+    private FinalizationStage buildFinalizationStage(String name, ExecutorServiceFactory factory, boolean callerRunsWhenFull, boolean virtualThreads, Environment environment) {
+        var executor = buildExecutor(factory, virtualThreads, environment);
+        environment.healthChecks().register("FinalizationStage-" + name, new ExecutorQueueHealthCheck(executor));
+        return new FinalizationStage(name, executor, callerRunsWhenFull, environment.metrics());
+    }
+
+    private OpenDepositScanner buildOpenDepositScanner(DepositPropertiesManager depositPropertiesManager, Environment environment, DdSword2Configuration configuration) {
+        var factory = configuration.getSword2().getRecoveryScanQueue();
+        var collections = configuration.getSword2().getCollections();
+
+        if (factory != null) {
+            return new OpenDepositScanner(collections, depositPropertiesManager, factory.build(environment), factory.getMaxThreads());
+        }
+
+        // reading the properties is mostly waiting for the file system, so a few threads help even on a single disk
+        var threads = 4;
+        var executor = environment.lifecycle().executorService("recovery-scan-worker-%d").minThreads(threads).maxThreads(threads).build();
+        return new OpenDepositScanner(collections, depositPropertiesManager, executor, threads);
+    }
+
+    private void compactJournal(FinalizationJournal finalizationJournal) {
+        try {
+            finalizationJournal.compact();
+        }
+        catch (IOException e) {
+            // the old journal is left as it was, so nothing is lost; it is tried again on the next interval
+            log.error("Unable to compact the finalization journal", e);
+        }
+    }
+
+    private FairFinalizerScheduler buildFinalizerScheduler(ExecutorService finalizingExecutor, Executor laneResolver, DepositHandler depositHandler,
+        BlockingQueue<DepositFinalizerEvent> queue, FinalizationJournal finalizationJournal, Environment environment, DdSword2Configuration configuration) {
+        var maxThreads = configuration.getSword2().getFinalizingQueue().getMaxThreads();
+
+        // the scheduler keeps the waiting deposits itself, so the executor's queue stays (nearly) empty and would never make the pool grow beyond its core size
+        if (finalizingExecutor instanceof ThreadPoolExecutor) {
+            var executor = (ThreadPoolExecutor) finalizingExecutor;
+            executor.setCorePoolSize(maxThreads);
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        var order = FinalizationOrderType.SMALLEST_FIRST.equals(configuration.getSword2().getFinalizationOrder())
+            ? FinalizationOrder.smallestFirst(configuration.getSword2().getFinalizationAgingRate())
+            : FinalizationOrder.arrival();
+        log.info("Finalizing deposits in {}", order);
+
+        // the lanes, together with the deposits being looked up, hold no more than the queue in front of them, so that queue still fills up and pushes back when the finalizers fall
+        // behind
+        var scheduler = new FairFinalizerScheduler.Builder()
+            .setFinalizerQueue(finalizingExecutor)
+            .setMaxRunning(maxThreads)
+            .setDepositHandler(depositHandler)
+            .setTaskQueue(queue)
+            .setCollections(configuration.getSword2().getCollections())
+            .setUsers(configuration.getAuthorization().getUsers())
+            .setMetrics(environment.metrics())
+            .setOrder(order)
+            .setFinalizationJournal(finalizationJournal)
+            .setMaxQueued(configuration.getSword2().getFinalizingQueue().getMaxQueueSize())
+            .setLaneResolver(laneResolver)
+            .build();
+        environment.metrics().register(MetricRegistry.name(FairFinalizerScheduler.class, "queued"), (Gauge<Integer>) scheduler::getQueued);
+        environment.metrics().register(MetricRegistry.name(FairFinalizerScheduler.class, "running"), (Gauge<Integer>) scheduler::getRunning);
+        return scheduler;
+    }
+
+    private FileStoreMonitorImpl buildFileStoreMonitor(FileService fileService, Duration refreshInterval, Environment environment, DdSword2Configuration configuration) {
+        var directories = new ArrayList<Path>();
+
+        for (var collection : configuration.getSword2().getCollections()) {
+            directories.add(collection.getUploads());
+            directories.add(collection.getDeposits());
+        }
+
+        var scheduler = environment.lifecycle().scheduledExecutorService("file-store-monitor").threads(1).build();
+        return new FileStoreMonitorImpl(fileService, directories, scheduler, refreshInterval);
+    }
+
+    private void registerDiskSpaceMetrics(FilesystemSpaceVerifierImpl filesystemSpaceVerifier, List<CollectionConfig> collections, Environment environment) {
+        var metrics = environment.metrics();
+        metrics.register(MetricRegistry.name(FilesystemSpaceVerifier.class, "reserved-bytes"), (Gauge<Long>) filesystemSpaceVerifier::getReservedDiskSpace);
+        metrics.register(MetricRegistry.name(FilesystemSpaceVerifier.class, "reservations"), (Gauge<Integer>) filesystemSpaceVerifier::getReservationCount);
+
+        // collections that share a file store report the same reservations
+        for (var collection : collections) {
+            metrics.register(MetricRegistry.name(FilesystemSpaceVerifier.class, "reserved-bytes", collection.getName()), (Gauge<Long>) () -> {
+                try {
+                    return filesystemSpaceVerifier.getReservedDiskSpace(collection.getUploads());
+                }
+                catch (IOException e) {
+                    log.warn("Unable to determine reserved disk space for collection {}", collection.getName(), e);
+                    return -1L;
+                }
+            });
+        }
+    }
+
+    private ExecutorService buildExecutor(ExecutorServiceFactory factory, boolean virtualThreads, Environment environment) {
+        if (!virtualThreads) {
+            return factory.build(environment);
+        }
+
+        log.info("Running {} on virtual threads", factory.getNameFormat());
+
+        // the same bounded pool and queue as the factory builds, so the queue health checks keep working, but a thread that blocks or sleeps does not hold a platform thread
+        return environment.lifecycle().executorService(factory.getNameFormat())
+            .minThreads(factory.getMinThreads())
+            .maxThreads(factory.getMaxThreads())
+            .keepAliveTime(factory.getKeepAliveTime())
+            .workQueue(new LinkedBlockingQueue<>(factory.getMaxQueueSize()))
+            .threadFactory(VirtualThreads.newThreadFactory(factory.getNameFormat()))
+            .build();
+    }
+
+    private ExecutorService buildVerificationExecutor(ExecutorService executor, Environment environment) {
+        // when all hashing threads are busy and the queue is full, the finalizing thread hashes the file itself instead of failing the verification
+        if (executor instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor) executor).setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        return new InstrumentedExecutorService(executor, environment.metrics(), "verification");
     }
 }
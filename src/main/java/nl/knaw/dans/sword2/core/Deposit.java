@@ -17,6 +17,7 @@ package nl.knaw.dans.sword2.core;
 
 import java.nio.file.Path;
 import java.time.OffsetDateTime;
+import java.util.Map;
 
 public class Deposit {
     private String id;
@@ -26,6 +27,7 @@ public class Deposit {
     private String mimeType;
     private String slug = null;
     private String md5 = null;
+    private Map<String, String> digests = Map.of();
     private String packaging;
     private String depositor;
     private String bagName;
@@ -40,6 +42,7 @@ public class Deposit {
     private boolean inProgress = false;
     private boolean metadataRelevant = true;
     private long contentLength = -1L;
+    private int finalizationAttempts = 0;
 
     public String getOtherId() {
         return otherId;
@@ -169,6 +172,19 @@ public class Deposit {
         this.md5 = md5;
     }
 
+    /**
+     * Returns the digests of the uploaded payload. For a payload that was uploaded in parts, only its MD5 digest is known, once the parts are merged during finalization.
+     *
+     * @return the lower case hex digests, by {@link java.security.MessageDigest} algorithm name
+     */
+    public Map<String, String> getDigests() {
+        return digests;
+    }
+
+    public void setDigests(Map<String, String> digests) {
+        this.digests = digests;
+    }
+
     public String getPackaging() {
         return packaging;
     }
@@ -217,6 +233,19 @@ public class Deposit {
         this.urn = urn;
     }
 
+    /**
+     * Returns how often finalization was postponed for lack of disk space since the deposit was uploaded, which determines how long the next retry waits.
+     *
+     * @return the number of postponed attempts
+     */
+    public int getFinalizationAttempts() {
+        return finalizationAttempts;
+    }
+
+    public void setFinalizationAttempts(int finalizationAttempts) {
+        this.finalizationAttempts = finalizationAttempts;
+    }
+
     @Override
     public String toString() {
         return "Deposit{" +
@@ -227,6 +256,7 @@ public class Deposit {
             ", mimeType='" + mimeType + '\'' +
             ", slug='" + slug + '\'' +
             ", md5='" + md5 + '\'' +
+            ", digests=" + digests +
             ", packaging='" + packaging + '\'' +
             ", depositor='" + depositor + '\'' +
             ", bagName='" + bagName + '\'' +
@@ -241,6 +271,7 @@ public class Deposit {
             ", inProgress=" + inProgress +
             ", metadataRelevant=" + metadataRelevant +
             ", contentLength=" + contentLength +
+            ", finalizationAttempts=" + finalizationAttempts +
             '}';
     }
 }
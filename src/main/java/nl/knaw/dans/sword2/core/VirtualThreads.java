@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates virtual threads on runtimes that have them (Java 21 and later). The service is compiled for an older release, so the API is looked up reflectively.
+ */
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method factory = null;
+
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+        }
+        catch (NoSuchMethodException | ClassNotFoundException e) {
+            // not available on this runtime
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns whether this runtime can create virtual threads. On Java 19 and 20 they are a preview feature, which is only available if it was enabled.
+     *
+     * @return true if virtual threads can be created
+     */
+    public static boolean isSupported() {
+        try {
+            createFactory();
+            return true;
+        }
+        catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a factory for virtual threads that are named like the threads of a Dropwizard executor, e.g. <code>finalizing-worker-%d</code>.
+     *
+     * @param nameFormat the format of the thread names, with the number of the thread as its only argument
+     * @return the thread factory
+     * @throws IllegalStateException if this runtime cannot create virtual threads
+     */
+    public static ThreadFactory newThreadFactory(String nameFormat) {
+        var factory = createFactory();
+        var count = new AtomicLong();
+
+        return runnable -> {
+            var thread = factory.newThread(runnable);
+            thread.setName(String.format(nameFormat, count.getAndIncrement()));
+            return thread;
+        };
+    }
+
+    private static ThreadFactory createFactory() {
+        if (OF_VIRTUAL == null) {
+            throw new IllegalStateException(String.format("Virtual threads require Java 21 or later, but this is Java %s", Runtime.version()));
+        }
+
+        try {
+            return (ThreadFactory) FACTORY.invoke(OF_VIRTUAL.invoke(null));
+        }
+        catch (InvocationTargetException e) {
+            // thrown by Java 19 and 20 if preview features are not enabled
+            throw new IllegalStateException(String.format("Virtual threads are not available on Java %s: %s", Runtime.version(), e.getCause().getMessage()), e.getCause());
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create a virtual thread factory", e);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import nl.knaw.dans.sword2.core.DepositState;
 import nl.knaw.dans.sword2.core.config.converter.StringByteSizeConverter;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 import java.nio.file.Path;
@@ -41,6 +42,10 @@ public class CollectionConfig {
     private long diskSpaceMargin;
     private List<Path> depositTrackingPath = new ArrayList<>();
     private List<DepositState> autoClean = new ArrayList<>();
+    @Min(1)
+    private int finalizationWeight = 1;
+    @Min(1)
+    private Integer maxConcurrentFinalizations;
 
     public CollectionConfig() {
 
@@ -111,6 +116,22 @@ public class CollectionConfig {
         this.autoClean = autoClean;
     }
 
+    public int getFinalizationWeight() {
+        return finalizationWeight;
+    }
+
+    public void setFinalizationWeight(int finalizationWeight) {
+        this.finalizationWeight = finalizationWeight;
+    }
+
+    public Integer getMaxConcurrentFinalizations() {
+        return maxConcurrentFinalizations;
+    }
+
+    public void setMaxConcurrentFinalizations(Integer maxConcurrentFinalizations) {
+        this.maxConcurrentFinalizations = maxConcurrentFinalizations;
+    }
+
     @Override
     public String toString() {
         return "CollectionConfig{" +
@@ -121,6 +142,8 @@ public class CollectionConfig {
             ", diskSpaceMargin=" + diskSpaceMargin +
             ", depositTrackingPath=" + depositTrackingPath +
             ", autoClean=" + autoClean +
+            ", finalizationWeight=" + finalizationWeight +
+            ", maxConcurrentFinalizations=" + maxConcurrentFinalizations +
             '}';
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.config;
+
+import nl.knaw.dans.lib.util.ExecutorServiceFactory;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+public class FinalizationPipelineConfig {
+    @Valid
+    @NotNull
+    private ExecutorServiceFactory extraction;
+    @Valid
+    @NotNull
+    private ExecutorServiceFactory verification;
+    @Valid
+    @NotNull
+    private ExecutorServiceFactory handOff;
+
+    public ExecutorServiceFactory getExtraction() {
+        return extraction;
+    }
+
+    public void setExtraction(ExecutorServiceFactory extraction) {
+        this.extraction = extraction;
+    }
+
+    public ExecutorServiceFactory getVerification() {
+        return verification;
+    }
+
+    public void setVerification(ExecutorServiceFactory verification) {
+        this.verification = verification;
+    }
+
+    public ExecutorServiceFactory getHandOff() {
+        return handOff;
+    }
+
+    public void setHandOff(ExecutorServiceFactory handOff) {
+        this.handOff = handOff;
+    }
+
+    @Override
+    public String toString() {
+        return "FinalizationPipelineConfig{" +
+            "extraction=" + extraction +
+            ", verification=" + verification +
+            ", handOff=" + handOff +
+            '}';
+    }
+}
@@ -15,12 +15,16 @@
  */
 package nl.knaw.dans.sword2.core.config;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import nl.knaw.dans.lib.util.ExecutorServiceFactory;
+import nl.knaw.dans.sword2.core.config.converter.StringByteSizeConverter;
 
 import javax.validation.Valid;
 import javax.validation.constraints.Email;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
 import java.net.URI;
 import java.time.Duration;
 import java.util.List;
@@ -40,10 +44,39 @@ public class Sword2Config {
     private Duration rescheduleDelay;
     @Valid
     @NotNull
-    private ExecutorServiceFactory finalizingQueue;
+    private Duration rescheduleMaxDelay = Duration.ofMinutes(30);
+    @Valid
+    @NotNull
+    private Duration maxRetryAfter = Duration.ofMinutes(15);
+    @Valid
+    @NotNull
+    private Duration depositNotFoundTtl = Duration.ofSeconds(10);
+    private Duration fileStoreRefreshInterval;
     @Valid
     @NotNull
+    private ExecutorServiceFactory finalizingQueue;
+    // no longer used, retries are scheduled on a single thread; still accepted so existing configuration files load
+    @Deprecated
     private ExecutorServiceFactory rescheduleQueue;
+    @Valid
+    private ExecutorServiceFactory extractionQueue;
+    @Valid
+    private ExecutorServiceFactory verificationQueue;
+    @Valid
+    private ExecutorServiceFactory recoveryScanQueue;
+    @Valid
+    private FinalizationPipelineConfig finalizationPipeline;
+    @Valid
+    private FinalizationJournalConfig finalizationJournal;
+    private boolean extractWhileUploading;
+    private boolean virtualThreads;
+    @NotNull
+    private FinalizationOrderType finalizationOrder = FinalizationOrderType.ARRIVAL;
+    @Min(1)
+    @JsonDeserialize(converter = StringByteSizeConverter.class)
+    private long finalizationAgingRate = 100L * 1024 * 1024;
+    @NotNull
+    private List<@Pattern(regexp = "MD5|SHA-1|SHA-256|SHA-512") String> uploadDigestAlgorithms = List.of("MD5");
 
     public String getEmailAddress() {
         return emailAddress;
@@ -53,14 +86,96 @@ public class Sword2Config {
         this.emailAddress = emailAddress;
     }
 
+    @Deprecated
     public ExecutorServiceFactory getRescheduleQueue() {
         return rescheduleQueue;
     }
 
+    @Deprecated
     public void setRescheduleQueue(ExecutorServiceFactory rescheduleQueue) {
         this.rescheduleQueue = rescheduleQueue;
     }
 
+    public ExecutorServiceFactory getExtractionQueue() {
+        return extractionQueue;
+    }
+
+    public void setExtractionQueue(ExecutorServiceFactory extractionQueue) {
+        this.extractionQueue = extractionQueue;
+    }
+
+    public ExecutorServiceFactory getVerificationQueue() {
+        return verificationQueue;
+    }
+
+    public void setVerificationQueue(ExecutorServiceFactory verificationQueue) {
+        this.verificationQueue = verificationQueue;
+    }
+
+    public ExecutorServiceFactory getRecoveryScanQueue() {
+        return recoveryScanQueue;
+    }
+
+    public void setRecoveryScanQueue(ExecutorServiceFactory recoveryScanQueue) {
+        this.recoveryScanQueue = recoveryScanQueue;
+    }
+
+    public FinalizationPipelineConfig getFinalizationPipeline() {
+        return finalizationPipeline;
+    }
+
+    public void setFinalizationPipeline(FinalizationPipelineConfig finalizationPipeline) {
+        this.finalizationPipeline = finalizationPipeline;
+    }
+
+    public FinalizationJournalConfig getFinalizationJournal() {
+        return finalizationJournal;
+    }
+
+    public void setFinalizationJournal(FinalizationJournalConfig finalizationJournal) {
+        this.finalizationJournal = finalizationJournal;
+    }
+
+    public boolean isExtractWhileUploading() {
+        return extractWhileUploading;
+    }
+
+    public void setExtractWhileUploading(boolean extractWhileUploading) {
+        this.extractWhileUploading = extractWhileUploading;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public FinalizationOrderType getFinalizationOrder() {
+        return finalizationOrder;
+    }
+
+    public void setFinalizationOrder(FinalizationOrderType finalizationOrder) {
+        this.finalizationOrder = finalizationOrder;
+    }
+
+    public long getFinalizationAgingRate() {
+        return finalizationAgingRate;
+    }
+
+    public void setFinalizationAgingRate(long finalizationAgingRate) {
+        this.finalizationAgingRate = finalizationAgingRate;
+    }
+
+    public List<String> getUploadDigestAlgorithms() {
+        return uploadDigestAlgorithms;
+    }
+
+    public void setUploadDigestAlgorithms(List<String> uploadDigestAlgorithms) {
+        this.uploadDigestAlgorithms = uploadDigestAlgorithms;
+    }
+
     public URI getBaseUrl() {
         return baseUrl;
     }
@@ -85,6 +200,38 @@ public class Sword2Config {
         this.rescheduleDelay = rescheduleDelay;
     }
 
+    public Duration getRescheduleMaxDelay() {
+        return rescheduleMaxDelay;
+    }
+
+    public void setRescheduleMaxDelay(Duration rescheduleMaxDelay) {
+        this.rescheduleMaxDelay = rescheduleMaxDelay;
+    }
+
+    public Duration getMaxRetryAfter() {
+        return maxRetryAfter;
+    }
+
+    public void setMaxRetryAfter(Duration maxRetryAfter) {
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    public Duration getDepositNotFoundTtl() {
+        return depositNotFoundTtl;
+    }
+
+    public void setDepositNotFoundTtl(Duration depositNotFoundTtl) {
+        this.depositNotFoundTtl = depositNotFoundTtl;
+    }
+
+    public Duration getFileStoreRefreshInterval() {
+        return fileStoreRefreshInterval;
+    }
+
+    public void setFileStoreRefreshInterval(Duration fileStoreRefreshInterval) {
+        this.fileStoreRefreshInterval = fileStoreRefreshInterval;
+    }
+
     public ExecutorServiceFactory getFinalizingQueue() {
         return finalizingQueue;
     }
@@ -99,7 +246,22 @@ public class Sword2Config {
             "baseUrl=" + baseUrl +
             ", collections=" + collections +
             ", rescheduleDelay=" + rescheduleDelay +
+            ", rescheduleMaxDelay=" + rescheduleMaxDelay +
+            ", maxRetryAfter=" + maxRetryAfter +
+            ", depositNotFoundTtl=" + depositNotFoundTtl +
+            ", fileStoreRefreshInterval=" + fileStoreRefreshInterval +
             ", finalizingQueue=" + finalizingQueue +
+            ", rescheduleQueue=" + rescheduleQueue +
+            ", virtualThreads=" + virtualThreads +
+            ", finalizationOrder=" + finalizationOrder +
+            ", finalizationAgingRate=" + finalizationAgingRate +
+            ", extractionQueue=" + extractionQueue +
+            ", verificationQueue=" + verificationQueue +
+            ", recoveryScanQueue=" + recoveryScanQueue +
+            ", finalizationPipeline=" + finalizationPipeline +
+            ", finalizationJournal=" + finalizationJournal +
+            ", extractWhileUploading=" + extractWhileUploading +
+            ", uploadDigestAlgorithms=" + uploadDigestAlgorithms +
             '}';
     }
 }
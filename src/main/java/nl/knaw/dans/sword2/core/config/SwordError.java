@@ -46,7 +46,12 @@ public enum SwordError {
 
     @XmlEnumValue("http://purl.org/net/sword/error/MaxUploadSizeExceeded")
     ERROR_MAX_UPLOAD_SIZE_EXCEEDED("The supplied data size exceeds the server's maximum upload size limit",
-        413);
+        413),
+
+    // not one of the errors defined by SWORD, which leaves a server free to add its own; sent with a Retry-After header
+    @XmlEnumValue("http://purl.org/net/sword/error/ServiceUnavailable")
+    ERROR_SERVICE_UNAVAILABLE("The server is too busy to accept the deposit, try again later",
+        503);
 
     private final String summaryText;
     private final int statusCode;
@@ -15,6 +15,7 @@
  */
 package nl.knaw.dans.sword2.core.config;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
 import java.util.List;
 
@@ -25,6 +26,10 @@ public class UserConfig {
     private Boolean filepathMapping;
     @NotEmpty
     private List<String> collections;
+    @Min(1)
+    private int finalizationWeight = 1;
+    @Min(1)
+    private Integer maxConcurrentFinalizations;
 
     public UserConfig() {
 
@@ -69,12 +74,30 @@ public class UserConfig {
         this.collections = collections;
     }
 
+    public int getFinalizationWeight() {
+        return finalizationWeight;
+    }
+
+    public void setFinalizationWeight(int finalizationWeight) {
+        this.finalizationWeight = finalizationWeight;
+    }
+
+    public Integer getMaxConcurrentFinalizations() {
+        return maxConcurrentFinalizations;
+    }
+
+    public void setMaxConcurrentFinalizations(Integer maxConcurrentFinalizations) {
+        this.maxConcurrentFinalizations = maxConcurrentFinalizations;
+    }
+
     @Override
     public String toString() {
         return "UserConfig{" +
             "name='" + name + '\'' +
             ", filepathMapping=" + filepathMapping +
             ", collections=" + collections +
+            ", finalizationWeight=" + finalizationWeight +
+            ", maxConcurrentFinalizations=" + maxConcurrentFinalizations +
             '}';
     }
 }
@@ -15,8 +15,37 @@
  */
 package nl.knaw.dans.sword2.core.exceptions;
 
+import java.nio.file.Path;
+
 public class NotEnoughDiskSpaceException extends Throwable {
+    private final Path destination;
+    private final long requiredSpace;
+
     public NotEnoughDiskSpaceException(String msg) {
+        this(msg, null, -1);
+    }
+
+    /**
+     * @param msg           the message
+     * @param destination   the directory that was to be written to
+     * @param requiredSpace the free space that would have been enough, including the margin
+     */
+    public NotEnoughDiskSpaceException(String msg, Path destination, long requiredSpace) {
         super(msg);
+        this.destination = destination;
+        this.requiredSpace = requiredSpace;
+    }
+
+    public Path getDestination() {
+        return destination;
+    }
+
+    /**
+     * Returns the free space that would have been enough, or -1 if that is not known.
+     *
+     * @return the number of bytes
+     */
+    public long getRequiredSpace() {
+        return requiredSpace;
     }
 }
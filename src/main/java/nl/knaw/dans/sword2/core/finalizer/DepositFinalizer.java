@@ -16,6 +16,9 @@
 package nl.knaw.dans.sword2.core.finalizer;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 import nl.knaw.dans.sword2.core.exceptions.CollectionNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
@@ -31,47 +34,140 @@ public class DepositFinalizer implements Runnable {
     private final DepositHandler depositHandler;
     private final String depositId;
     private final BlockingQueue<DepositFinalizerEvent> taskQueue;
+    private final FinalizationJournal finalizationJournal;
 
+    /**
+     * @param finalizationJournal the journal in which the start and outcome of the finalization are recorded, or null
+     */
     public DepositFinalizer(String depositId,
         DepositHandler depositHandler,
-        BlockingQueue<DepositFinalizerEvent> taskQueue
+        BlockingQueue<DepositFinalizerEvent> taskQueue,
+        FinalizationJournal finalizationJournal
     ) {
         this.depositId = depositId;
         this.depositHandler = depositHandler;
         this.taskQueue = taskQueue;
+        this.finalizationJournal = finalizationJournal;
     }
 
     @Override
     public void run() {
+        journalStarted();
+
         try {
             var deposit = depositHandler.finalizeDeposit(depositId);
             log.info("Finalized deposit {}", deposit);
+            journalCompleted();
+        }
+        catch (Throwable e) {
+            handleError(e);
+        }
+    }
+
+    /**
+     * Finalizes the deposit like {@link #run()}, but in the stages of the deposit handler, so the calling thread only sets the deposit to FINALIZING.
+     *
+     * @return a stage that completes when the deposit is finalized or the failure is handled
+     */
+    public CompletionStage<Void> runAsync() {
+        return runAsync(() -> {
+        });
+    }
+
+    /**
+     * Finalizes the deposit like {@link #runAsync()}, and runs the callback as soon as the finalization itself is over, before a failure is handled. Handling a failure may wait for room on
+     * the task queue.
+     *
+     * @param onFinalized the callback
+     * @return a stage that completes when the deposit is finalized or the failure is handled
+     */
+    public CompletionStage<Void> runAsync(Runnable onFinalized) {
+        journalStarted();
+
+        return depositHandler.finalizeDepositAsync(depositId).handle((deposit, error) -> {
+            onFinalized.run();
+
+            if (error != null) {
+                handleError(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+            else {
+                log.info("Finalized deposit {}", deposit);
+                journalCompleted();
+            }
+
+            return null;
+        });
+    }
+
+    private void handleError(Throwable error) {
+        try {
+            throw error;
         }
         catch (DepositNotFoundException e) {
             log.error("Unable to finalize deposit with id {} because it could not be found", depositId, e);
+            journalCompleted();
         }
         catch (InvalidDepositException e) {
             log.error("Unable to finalize deposit with id {} because it is invalid", depositId, e);
+            journalCompleted();
         }
         catch (InvalidPartialFileException e) {
             log.error("Unable to finalize deposit with id {} because some files are incorrectly named", depositId, e);
+            journalCompleted();
         }
         catch (CollectionNotFoundException e) {
             log.error("Unable to finalize deposit with id {} because the collection could not be found", depositId, e);
+            journalCompleted();
         }
         catch (NotEnoughDiskSpaceException e) {
-            try {
-                log.warn("Rescheduling deposit with ID {}", depositId, e);
-                taskQueue.put(new DepositFinalizerRescheduleEvent(depositId));
-            }
-            catch (InterruptedException ex) {
-                log.error("Unable to add deposit with ID {} to reschedule queue", depositId, ex);
-            }
+            log.warn("Rescheduling deposit with ID {}", depositId, e);
+            var attempts = getFinalizationAttempts();
+            reschedule(attempts, new DepositFinalizerRescheduleEvent(depositId, attempts, e.getDestination(), e.getRequiredSpace()));
+        }
+        catch (RejectedExecutionException e) {
+            // a full stage; without a destination the event waits for the backoff delay instead of for disk space
+            log.warn("Rescheduling deposit with ID {} because a finalization stage is full", depositId, e);
+            var attempts = getFinalizationAttempts();
+            reschedule(attempts, new DepositFinalizerRescheduleEvent(depositId, attempts));
         }
-        // in all other cases, we should try again
-        catch (Exception e) {
+        // in all other cases, we should try again; the deposit stays pending in the journal, so that happens on the next start
+        catch (Throwable e) {
             log.error("Unknown error while finalizing deposit", e);
         }
     }
 
+    private void reschedule(int attempts, DepositFinalizerRescheduleEvent event) {
+        try {
+            if (finalizationJournal != null) {
+                finalizationJournal.rescheduled(depositId, attempts);
+            }
+
+            taskQueue.put(event);
+        }
+        catch (InterruptedException e) {
+            log.error("Unable to add deposit with ID {} to reschedule queue", depositId, e);
+        }
+    }
+
+    private void journalStarted() {
+        if (finalizationJournal != null) {
+            finalizationJournal.started(depositId);
+        }
+    }
+
+    private void journalCompleted() {
+        if (finalizationJournal != null) {
+            finalizationJournal.completed(depositId);
+        }
+    }
+
+    private int getFinalizationAttempts() {
+        try {
+            return Math.max(1, depositHandler.getDeposit(depositId).getFinalizationAttempts());
+        }
+        catch (DepositNotFoundException | InvalidDepositException e) {
+            log.warn("Unable to read the number of attempts for deposit with ID {}, retrying as if it were the first", depositId, e);
+            return 1;
+        }
+    }
 }
@@ -19,29 +19,28 @@ package nl.knaw.dans.sword2.core.finalizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Duration;
 import java.util.concurrent.BlockingQueue;
 
+/**
+ * Puts a deposit back on the finalizing queue. It is scheduled to run after the backoff delay, so waiting deposits do not hold a thread.
+ */
 class DepositFinalizerDelayedTask implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(DepositFinalizerDelayedTask.class);
 
     private final String id;
-    private final Duration delay;
     private final BlockingQueue<DepositFinalizerEvent> taskQueue;
 
     public DepositFinalizerDelayedTask(String id,
-        Duration delay,
         BlockingQueue<DepositFinalizerEvent> taskQueue
     ) {
         this.id = id;
-        this.delay = delay;
         this.taskQueue = taskQueue;
     }
 
     @Override
     public void run() {
         try {
-            Thread.sleep(delay.toMillis());
+            log.debug("Retrying deposit {}", id);
             taskQueue.put(new DepositFinalizerEvent(id));
         } catch (InterruptedException e) {
             log.error("Unable to reschedule task because the thread was interrupted", e);
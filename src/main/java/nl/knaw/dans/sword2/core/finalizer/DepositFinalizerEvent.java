@@ -16,19 +16,39 @@
  */
 package nl.knaw.dans.sword2.core.finalizer;
 
+import nl.knaw.dans.sword2.core.Deposit;
+
 public class DepositFinalizerEvent {
 
     private final String depositId;
     private final DepositFinalizerEventType eventType;
+    private final String collectionId;
+    private final String depositor;
+    private final long contentLength;
 
     public DepositFinalizerEvent(String depositId, DepositFinalizerEventType eventType) {
         this.depositId = depositId;
         this.eventType = eventType;
+        this.collectionId = null;
+        this.depositor = null;
+        this.contentLength = -1;
     }
 
     public DepositFinalizerEvent(String depositId) {
-        this.depositId = depositId;
+        this(depositId, DepositFinalizerEventType.FINALIZE);
+    }
+
+    /**
+     * Creates a finalize event that names the collection, depositor and size of the deposit, so the scheduler need not look them up.
+     *
+     * @param deposit the deposit to finalize
+     */
+    public DepositFinalizerEvent(Deposit deposit) {
+        this.depositId = deposit.getId();
         this.eventType = DepositFinalizerEventType.FINALIZE;
+        this.collectionId = deposit.getCollectionId();
+        this.depositor = deposit.getDepositor();
+        this.contentLength = deposit.getContentLength();
     }
 
     public DepositFinalizerEventType getEventType() {
@@ -39,6 +59,21 @@ public class DepositFinalizerEvent {
         return depositId;
     }
 
+    /**
+     * @return the collection of the deposit, or null if the event does not say
+     */
+    public String getCollectionId() {
+        return collectionId;
+    }
+
+    public String getDepositor() {
+        return depositor;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
     @Override
     public String toString() {
         return "DepositFinalizerEvent{" +
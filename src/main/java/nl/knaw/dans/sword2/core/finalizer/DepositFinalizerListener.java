@@ -20,26 +20,40 @@ import nl.knaw.dans.sword2.core.service.DepositHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Duration;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DepositFinalizerListener implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(DepositFinalizerListener.class);
 
     private final BlockingQueue<DepositFinalizerEvent> taskQueue;
     private final ExecutorService finalizerQueue;
-    private final ExecutorService rescheduleQueue;
+    private final ScheduledExecutorService rescheduleQueue;
     private final DepositHandler depositHandler;
-    private final Duration rescheduleDelay;
+    private final RescheduleBackoff rescheduleBackoff;
+    private final DiskSpaceWaiters diskSpaceWaiters;
+    private final FairFinalizerScheduler finalizerScheduler;
+    private final FinalizationJournal finalizationJournal;
 
-    public DepositFinalizerListener(BlockingQueue<DepositFinalizerEvent> taskQueue, ExecutorService finalizerQueue, DepositHandler depositHandler, ExecutorService rescheduleQueue,
-        Duration rescheduleDelay) {
+    /**
+     * @param diskSpaceWaiters    the deposits that wait until they fit on disk, or null to retry them with the backoff
+     * @param finalizerScheduler  the scheduler that hands deposits to the finalizer queue in fair turns, or null to submit them in arrival order
+     * @param finalizationJournal the journal in which the finalizers record the start and outcome of each finalization, or null
+     */
+    public DepositFinalizerListener(BlockingQueue<DepositFinalizerEvent> taskQueue, ExecutorService finalizerQueue, DepositHandler depositHandler,
+        ScheduledExecutorService rescheduleQueue, RescheduleBackoff rescheduleBackoff, DiskSpaceWaiters diskSpaceWaiters, FairFinalizerScheduler finalizerScheduler,
+        FinalizationJournal finalizationJournal) {
         this.taskQueue = taskQueue;
         this.finalizerQueue = finalizerQueue;
         this.depositHandler = depositHandler;
         this.rescheduleQueue = rescheduleQueue;
-        this.rescheduleDelay = rescheduleDelay;
+        this.rescheduleBackoff = rescheduleBackoff;
+        this.diskSpaceWaiters = diskSpaceWaiters;
+        this.finalizerScheduler = finalizerScheduler;
+        this.finalizationJournal = finalizationJournal;
     }
 
     @Override
@@ -56,11 +70,16 @@ public class DepositFinalizerListener implements Runnable {
                         return;
 
                     case FINALIZE:
-                        finalizerQueue.submit(new DepositFinalizer(depositTask.getDepositId(), depositHandler, taskQueue));
+                        if (finalizerScheduler != null) {
+                            finalizerScheduler.submit(depositTask);
+                        }
+                        else {
+                            finalizerQueue.submit(new DepositFinalizer(depositTask.getDepositId(), depositHandler, taskQueue, finalizationJournal));
+                        }
                         break;
 
                     case RESCHEDULE:
-                        rescheduleQueue.submit(new DepositFinalizerDelayedTask(depositTask.getDepositId(), rescheduleDelay, taskQueue));
+                        scheduleRetry(depositTask);
                         break;
 
                 }
@@ -72,4 +91,29 @@ public class DepositFinalizerListener implements Runnable {
             }
         }
     }
+
+    void scheduleRetry(DepositFinalizerEvent event) {
+        // deposits that know how much space they need wait until it is there; the others, such as those rescheduled on startup, only wait for the backoff delay
+        if (diskSpaceWaiters != null && event instanceof DepositFinalizerRescheduleEvent) {
+            var rescheduleEvent = (DepositFinalizerRescheduleEvent) event;
+
+            if (rescheduleEvent.getDestination() != null && rescheduleEvent.getRequiredSpace() > 0) {
+                diskSpaceWaiters.add(event.getDepositId(), rescheduleEvent.getAttempts(), rescheduleEvent.getDestination(), rescheduleEvent.getRequiredSpace());
+                return;
+            }
+        }
+
+        var attempts = event instanceof DepositFinalizerRescheduleEvent ? ((DepositFinalizerRescheduleEvent) event).getAttempts() : 1;
+        var delay = rescheduleBackoff.getDelay(attempts);
+
+        log.info("Retrying deposit {} in {} after {} attempt(s)", event.getDepositId(), delay, attempts);
+
+        try {
+            rescheduleQueue.schedule(new DepositFinalizerDelayedTask(event.getDepositId(), taskQueue), delay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // only when shutting down; the deposit is picked up again on startup
+            log.warn("Unable to schedule a retry for deposit {}", event.getDepositId(), e);
+        }
+    }
 }
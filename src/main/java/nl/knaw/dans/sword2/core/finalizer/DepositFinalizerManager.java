@@ -16,13 +16,19 @@
 package nl.knaw.dans.sword2.core.finalizer;
 
 import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.sword2.core.Deposit;
+import nl.knaw.dans.sword2.core.DepositState;
+import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
+import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
 import nl.knaw.dans.sword2.core.service.DepositHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Duration;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class DepositFinalizerManager implements Managed {
     private static final Logger log = LoggerFactory.getLogger(DepositFinalizerManager.class);
@@ -31,36 +37,172 @@ public class DepositFinalizerManager implements Managed {
     private final Thread depositFinalizerListenerThread;
     private final BlockingQueue<DepositFinalizerEvent> taskQueue;
     private final ExecutorService finalizerQueue;
-    private final ExecutorService rescheduleQueue;
+    private final ScheduledExecutorService rescheduleQueue;
+    private final FinalizationJournal finalizationJournal;
+    private final OpenDepositScanner openDepositScanner;
+    private Thread scanThread;
 
+    /**
+     * @param diskSpaceWaiters    the deposits that wait until they fit on disk, or null to retry them with the backoff
+     * @param finalizerScheduler  the scheduler that hands deposits to the finalizer queue in fair turns, or null to submit them in arrival order
+     * @param finalizationJournal the journal from which the deposits to finalize are read on startup, falling back to a scan of the uploads folders; or null to always scan
+     * @param openDepositScanner  the scanner that requeues deposits in the background as it finds them, so the finalizer can start before the scan is done; or null to scan the
+     *                            uploads folders before startup continues
+     */
     public DepositFinalizerManager(ExecutorService finalizerQueue, DepositHandler depositHandler,
-        BlockingQueue<DepositFinalizerEvent> taskQueue, ExecutorService rescheduleQueue,
-        Duration rescheduleDelay) {
+        BlockingQueue<DepositFinalizerEvent> taskQueue, ScheduledExecutorService rescheduleQueue,
+        RescheduleBackoff rescheduleBackoff, DiskSpaceWaiters diskSpaceWaiters, FairFinalizerScheduler finalizerScheduler, FinalizationJournal finalizationJournal,
+        OpenDepositScanner openDepositScanner) {
         this.depositHandler = depositHandler;
-        this.depositFinalizerListenerThread = new Thread(new DepositFinalizerListener(taskQueue, finalizerQueue, depositHandler, rescheduleQueue, rescheduleDelay));
+        this.depositFinalizerListenerThread = new Thread(
+            new DepositFinalizerListener(taskQueue, finalizerQueue, depositHandler, rescheduleQueue, rescheduleBackoff, diskSpaceWaiters, finalizerScheduler, finalizationJournal));
         this.taskQueue = taskQueue;
         this.finalizerQueue = finalizerQueue;
         this.rescheduleQueue = rescheduleQueue;
+        this.finalizationJournal = finalizationJournal;
+        this.openDepositScanner = openDepositScanner;
     }
 
     @Override
     public void start() throws Exception {
         this.depositFinalizerListenerThread.start();
 
+        if (finalizationJournal != null && requeueFromJournal()) {
+            return;
+        }
+
+        if (openDepositScanner != null) {
+            scanThread = new Thread(this::scanOpenDeposits, "open-deposit-scan");
+            scanThread.setDaemon(true);
+            scanThread.start();
+            return;
+        }
+
         // scan all items in the uploads folder and add them to the queue
         var deposits = this.depositHandler.getOpenDeposits();
         log.info("Found {} deposits that need to be checked", deposits.size());
 
+        // the journal must hold them before their finalizers start recording what happens to them
+        if (finalizationJournal != null) {
+            var pending = new LinkedHashMap<String, Integer>();
+
+            for (var deposit : deposits) {
+                pending.put(deposit.getId(), deposit.getFinalizationAttempts());
+            }
+
+            finalizationJournal.rebuild(pending);
+        }
+
         for (var deposit: deposits) {
+            requeue(deposit, deposit.getFinalizationAttempts());
+        }
+    }
+
+    /**
+     * Requeues the deposits that the journal has as pending, after checking on disk that they still need finalizing.
+     *
+     * @return false if the journal could not be read completely, in which case nothing is requeued
+     */
+    private boolean requeueFromJournal() throws IOException, InterruptedException {
+        var replay = finalizationJournal.open();
+
+        if (!replay.isConsistent()) {
+            log.warn("The finalization journal is missing or damaged, scanning the uploads folders instead");
+            return false;
+        }
+
+        log.info("Found {} deposits in the finalization journal that need to be checked", replay.getPending().size());
+
+        for (var entry : replay.getPending().entrySet()) {
+            var depositId = entry.getKey();
+
+            try {
+                // a deposit that was handed off just before the process stopped has no completed record yet
+                var deposit = depositHandler.getDeposit(depositId);
+
+                if (!DepositState.UPLOADED.equals(deposit.getState()) && !DepositState.FINALIZING.equals(deposit.getState())) {
+                    log.info("Deposit {} is {}, it does not need finalizing", depositId, deposit.getState());
+                    finalizationJournal.completed(depositId);
+                    continue;
+                }
+
+                requeue(deposit, Math.max(entry.getValue(), deposit.getFinalizationAttempts()));
+            }
+            catch (DepositNotFoundException | InvalidDepositException e) {
+                log.warn("Unable to open deposit {} from the finalization journal, skipping it", depositId, e);
+                finalizationJournal.completed(depositId);
+            }
+        }
+
+        return true;
+    }
+
+    private void scanOpenDeposits() {
+        // the journal is only written again once the scan is complete, so a scan that is cut short is repeated on the next start
+        if (finalizationJournal != null) {
+            finalizationJournal.reset();
+        }
+
+        try {
+            var found = openDepositScanner.scan(deposit -> {
+                try {
+                    if (finalizationJournal != null) {
+                        if (deposit.getFinalizationAttempts() > 0) {
+                            finalizationJournal.rescheduled(deposit.getId(), deposit.getFinalizationAttempts());
+                        }
+                        else {
+                            finalizationJournal.enqueued(deposit.getId());
+                        }
+                    }
+
+                    requeue(deposit, deposit.getFinalizationAttempts());
+                }
+                catch (InterruptedException e) {
+                    log.warn("Interrupted while adding deposit {} to the queue", deposit.getId());
+                    Thread.currentThread().interrupt();
+                }
+            });
+            log.info("Found {} deposits that need to be checked", found);
+
+            if (finalizationJournal != null) {
+                finalizationJournal.compact();
+            }
+        }
+        catch (InterruptedException e) {
+            log.warn("Scan of the uploads folders was interrupted; it is repeated on the next start");
+        }
+        catch (IOException e) {
+            log.error("Unable to write the finalization journal after the scan; the scan is repeated on the next start", e);
+        }
+    }
+
+    private void requeue(Deposit deposit, int attempts) throws InterruptedException {
+        // deposits that were waiting for disk space before the restart continue their backoff
+        if (attempts > 0) {
+            log.info("Adding reschedule event for deposit {} to the queue", deposit.getId());
+            this.taskQueue.put(new DepositFinalizerRescheduleEvent(deposit.getId(), attempts));
+        }
+        else {
             log.info("Adding finalizing event for deposit {} to the queue", deposit.getId());
-            this.taskQueue.put(new DepositFinalizerEvent(deposit.getId()));
+            this.taskQueue.put(new DepositFinalizerEvent(deposit));
         }
     }
 
     @Override
     public void stop() throws Exception {
-        this.taskQueue.put(new DepositFinalizerStopEvent());
+        if (scanThread != null) {
+            scanThread.interrupt();
+        }
+
+        // the listener may be waiting for room in the lanes of the scheduler, where it would not see the stop event
+        this.taskQueue.offer(new DepositFinalizerStopEvent());
+        this.depositFinalizerListenerThread.interrupt();
         this.finalizerQueue.shutdown();
         this.rescheduleQueue.shutdownNow();
+
+        // finalizations that are still running are not recorded as completed, so they are checked again on the next start, like those found by a scan
+        if (finalizationJournal != null) {
+            finalizationJournal.close();
+        }
     }
 }
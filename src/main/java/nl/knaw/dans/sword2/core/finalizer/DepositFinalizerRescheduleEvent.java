@@ -15,10 +15,54 @@
  */
 package nl.knaw.dans.sword2.core.finalizer;
 
+import java.nio.file.Path;
+
 public class DepositFinalizerRescheduleEvent extends DepositFinalizerEvent {
+    private final int attempts;
+    private final Path destination;
+    private final long requiredSpace;
 
     public DepositFinalizerRescheduleEvent(String depositId) {
+        this(depositId, 1);
+    }
+
+    public DepositFinalizerRescheduleEvent(String depositId, int attempts) {
+        this(depositId, attempts, null, -1);
+    }
+
+    /**
+     * @param depositId     the deposit to retry
+     * @param attempts      the number of failed attempts so far
+     * @param destination   the directory that ran out of space, or null if not known
+     * @param requiredSpace the free space the deposit needs on that directory, or -1 if not known
+     */
+    public DepositFinalizerRescheduleEvent(String depositId, int attempts, Path destination, long requiredSpace) {
         super(depositId, DepositFinalizerEventType.RESCHEDULE);
+        this.attempts = attempts;
+        this.destination = destination;
+        this.requiredSpace = requiredSpace;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public Path getDestination() {
+        return destination;
+    }
+
+    public long getRequiredSpace() {
+        return requiredSpace;
+    }
+
+    @Override
+    public String toString() {
+        return "DepositFinalizerRescheduleEvent{" +
+            "depositId='" + getDepositId() + '\'' +
+            ", attempts=" + attempts +
+            ", destination=" + destination +
+            ", requiredSpace=" + requiredSpace +
+            '}';
     }
 
 }
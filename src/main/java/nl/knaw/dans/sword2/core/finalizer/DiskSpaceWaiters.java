@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.core.service.FilesystemSpaceVerifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Holds deposits that could not be finalized for lack of disk space until there is room for them. Waiters are ordered by the space they need, smallest first, and {@link #admit()} puts
+ * back on the queue only those that fit in the space that is currently free and not reserved, subtracting each one from what is left for the next. Run after every free-space sample, this
+ * lets the largest number of deposits through when space is freed, without waking up deposits that would only fail again.
+ * <p>
+ * A waiter whose backoff delay has passed is admitted even if it does not seem to fit, so that a deposit is never held back forever by a size estimate that turns out to be wrong.
+ */
+public class DiskSpaceWaiters {
+    private static final Logger log = LoggerFactory.getLogger(DiskSpaceWaiters.class);
+
+    private final FilesystemSpaceVerifier filesystemSpaceVerifier;
+    private final BlockingQueue<DepositFinalizerEvent> taskQueue;
+    private final RescheduleBackoff rescheduleBackoff;
+    private final Clock clock;
+    private final TreeSet<Waiter> waiters = new TreeSet<>(Comparator.comparingLong((Waiter waiter) -> waiter.requiredSpace).thenComparingLong(waiter -> waiter.sequence));
+    private long sequence;
+
+    public DiskSpaceWaiters(FilesystemSpaceVerifier filesystemSpaceVerifier, BlockingQueue<DepositFinalizerEvent> taskQueue, RescheduleBackoff rescheduleBackoff) {
+        this(filesystemSpaceVerifier, taskQueue, rescheduleBackoff, Clock.systemUTC());
+    }
+
+    DiskSpaceWaiters(FilesystemSpaceVerifier filesystemSpaceVerifier, BlockingQueue<DepositFinalizerEvent> taskQueue, RescheduleBackoff rescheduleBackoff, Clock clock) {
+        this.filesystemSpaceVerifier = filesystemSpaceVerifier;
+        this.taskQueue = taskQueue;
+        this.rescheduleBackoff = rescheduleBackoff;
+        this.clock = clock;
+    }
+
+    /**
+     * Lets a deposit wait until the given amount of space is free on the file store of the destination, or until its backoff delay has passed.
+     *
+     * @param depositId     the deposit
+     * @param attempts      the number of failed attempts so far
+     * @param destination   the directory that ran out of space
+     * @param requiredSpace the free space the deposit needs, including the margin
+     */
+    public synchronized void add(String depositId, int attempts, Path destination, long requiredSpace) {
+        var deadline = clock.millis() + rescheduleBackoff.getDelay(attempts).toMillis();
+        waiters.add(new Waiter(depositId, destination, requiredSpace, deadline, sequence++));
+        log.info("Deposit {} waits for {} bytes on {} after {} attempt(s)", depositId, requiredSpace, destination, attempts);
+    }
+
+    /**
+     * Puts every waiting deposit that now fits, or whose backoff delay has passed, back on the queue.
+     *
+     * @return the number of deposits that were admitted
+     */
+    public synchronized int admit() {
+        var now = clock.millis();
+        var budgets = new HashMap<FileStore, Long>();
+        var admitted = 0;
+        var iterator = waiters.iterator();
+
+        while (iterator.hasNext()) {
+            var waiter = iterator.next();
+            var fileStore = getFileStore(waiter.destination);
+            var budget = fileStore != null ? budgets.computeIfAbsent(fileStore, store -> getUnreservedDiskSpace(waiter.destination)) : -1L;
+            var fits = budget >= waiter.requiredSpace;
+
+            if (!fits && now < waiter.deadline) {
+                continue;
+            }
+
+            if (!taskQueue.offer(new DepositFinalizerEvent(waiter.depositId))) {
+                // the rest is admitted on a later round, when the finalizers have caught up
+                log.debug("Finalizing queue is full, {} deposit(s) keep waiting for disk space", waiters.size());
+                break;
+            }
+
+            log.info("Admitting deposit {}, {}", waiter.depositId, fits ? "it now fits in the free space" : "its backoff delay has passed");
+            iterator.remove();
+            admitted++;
+
+            if (fileStore != null) {
+                budgets.put(fileStore, budget - waiter.requiredSpace);
+            }
+        }
+
+        return admitted;
+    }
+
+    public synchronized int getSize() {
+        return waiters.size();
+    }
+
+    /**
+     * Returns the space that all waiting deposits together need.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getRequiredSpace() {
+        return waiters.stream().mapToLong(waiter -> waiter.requiredSpace).sum();
+    }
+
+    private FileStore getFileStore(Path destination) {
+        try {
+            return filesystemSpaceVerifier.getFileStore(destination);
+        }
+        catch (IOException e) {
+            log.warn("Unable to determine the file store of {}", destination, e);
+            return null;
+        }
+    }
+
+    private long getUnreservedDiskSpace(Path destination) {
+        try {
+            return filesystemSpaceVerifier.getUnreservedDiskSpace(destination);
+        }
+        catch (IOException e) {
+            log.warn("Unable to determine the free space of {}", destination, e);
+            return -1L;
+        }
+    }
+
+    private static final class Waiter {
+        private final String depositId;
+        private final Path destination;
+        private final long requiredSpace;
+        private final long deadline;
+        private final long sequence;
+
+        private Waiter(String depositId, Path destination, long requiredSpace, long deadline, long sequence) {
+            this.depositId = depositId;
+            this.destination = destination;
+            this.requiredSpace = requiredSpace;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+    }
+}
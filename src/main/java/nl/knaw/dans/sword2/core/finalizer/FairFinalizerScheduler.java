@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.sword2.core.config.CollectionConfig;
+import nl.knaw.dans.sword2.core.config.UserConfig;
+import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
+import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
+import nl.knaw.dans.sword2.core.service.DepositHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands deposits to the finalizing executor fairly. Every combination of collection and depositor is a lane with its own queue, and the lanes take turns with deficit round-robin: on its
+ * turn a lane may start as many deposits as its weight, which is the weight of its collection times that of its depositor. A lane that has to skip its turn because it reached a
+ * concurrency cap keeps what it did not use for the next one. So a depositor that pushes thousands of deposits at once only gets its share of the finalizing threads, and others that
+ * deposit at the same time do not have to wait for all of them.
+ * <p>
+ * No more deposits are handed to the executor than it has threads, so they never wait in its queue, where they would be served in arrival order again. Within a lane, deposits are
+ * taken in the {@link FinalizationOrder} that the scheduler is given.
+ * <p>
+ * The lanes together hold no more than a fixed number of deposits; when they are full, {@link #submit(DepositFinalizerEvent)} waits, so the queue in front of the scheduler fills up and
+ * pushes back on its producers. A deposit whose event does not name its collection and depositor is looked up on the lane resolver, so that the thread that submits it does not wait for
+ * the file system. A lane is removed, together with its metrics, as soon as it has nothing queued or running.
+ */
+public class FairFinalizerScheduler {
+    private static final Logger log = LoggerFactory.getLogger(FairFinalizerScheduler.class);
+    private static final String UNKNOWN = "unknown";
+
+    private final ExecutorService finalizerQueue;
+    private final int maxRunning;
+    private final DepositHandler depositHandler;
+    private final BlockingQueue<DepositFinalizerEvent> taskQueue;
+    private final Map<String, CollectionConfig> collections = new HashMap<>();
+    private final Map<String, UserConfig> users = new HashMap<>();
+    private final MetricRegistry metrics;
+    private final FinalizationOrder order;
+    private final FinalizationJournal finalizationJournal;
+    private final int maxQueued;
+    private final Executor laneResolver;
+
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final ArrayDeque<Lane> activeLanes = new ArrayDeque<>();
+    private final Map<String, Integer> runningByCollection = new HashMap<>();
+    private final Map<String, Integer> runningByDepositor = new HashMap<>();
+    private int running;
+    private int queued;
+    // room taken by deposits whose lane is being looked up
+    private int reserved;
+    private long started;
+    private long sequence;
+
+    private FairFinalizerScheduler(Builder builder) {
+        this.finalizerQueue = builder.finalizerQueue;
+        this.maxRunning = Math.max(builder.maxRunning, 1);
+        this.depositHandler = builder.depositHandler;
+        this.taskQueue = builder.taskQueue;
+        this.metrics = builder.metrics;
+        this.order = builder.order;
+        this.finalizationJournal = builder.finalizationJournal;
+        this.maxQueued = Math.max(builder.maxQueued, 1);
+        this.laneResolver = builder.laneResolver;
+
+        for (var collection : builder.collections) {
+            this.collections.put(collection.getName(), collection);
+        }
+
+        for (var user : builder.users) {
+            this.users.put(user.getName(), user);
+        }
+    }
+
+    /**
+     * Queues a deposit in the lane of its collection and depositor, and starts it right away if that is its turn. Waits while the lanes are full. A deposit that is looked up on the lane
+     * resolver takes its room before it is handed over, so the resolver never waits and the deposits being looked up count towards the limit.
+     *
+     * @param event the event of the deposit to finalize
+     * @throws InterruptedException if interrupted while waiting for room in the lanes
+     */
+    public void submit(DepositFinalizerEvent event) throws InterruptedException {
+        if (event.getCollectionId() != null) {
+            awaitRoom();
+            enqueue(event.getDepositId(), event.getCollectionId(), event.getDepositor(), event.getContentLength());
+        }
+        else if (laneResolver == null) {
+            awaitRoom();
+            resolveAndEnqueue(event.getDepositId());
+        }
+        else {
+            awaitRoom();
+
+            try {
+                laneResolver.execute(() -> resolveAndEnqueue(event.getDepositId()));
+            }
+            catch (RejectedExecutionException e) {
+                // only when shutting down; the deposit is picked up again on startup
+                releaseRoom();
+                log.warn("Unable to look up the lane of deposit {}", event.getDepositId(), e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the lanes have room for one more deposit, and takes it.
+     */
+    private synchronized void awaitRoom() throws InterruptedException {
+        while (queued + reserved >= maxQueued) {
+            wait();
+        }
+
+        reserved++;
+    }
+
+    private synchronized void releaseRoom() {
+        reserved--;
+        notifyAll();
+    }
+
+    private void resolveAndEnqueue(String depositId) {
+        var collection = UNKNOWN;
+        var depositor = UNKNOWN;
+        var contentLength = -1L;
+
+        try {
+            var deposit = depositHandler.getDeposit(depositId);
+            collection = deposit.getCollectionId();
+            depositor = deposit.getDepositor();
+            contentLength = deposit.getContentLength();
+        }
+        catch (DepositNotFoundException | InvalidDepositException | RuntimeException e) {
+            // the finalizer reports what is wrong with it
+            log.warn("Unable to determine the lane of deposit {}, finalizing it in the default lane", depositId, e);
+        }
+
+        enqueue(depositId, collection, depositor, contentLength);
+    }
+
+    /**
+     * Queues a deposit in the room that was taken for it by {@link #awaitRoom()}.
+     */
+    private synchronized void enqueue(String depositId, String collection, String depositor, long contentLength) {
+        reserved--;
+        var lane = getLane(collection != null ? collection : UNKNOWN, depositor != null ? depositor : UNKNOWN);
+
+        if (lane.queue.isEmpty()) {
+            activeLanes.addLast(lane);
+        }
+
+        lane.queue.add(new Queued(depositId, order.getKey(contentLength), sequence++));
+        queued++;
+        dispatch();
+    }
+
+    synchronized void dispatch() {
+        // a full round of lanes that are all capped means nothing can start until one of them finishes a deposit
+        var skipped = 0;
+
+        while (running < maxRunning && !activeLanes.isEmpty() && skipped < activeLanes.size()) {
+            var lane = activeLanes.pollFirst();
+
+            if (isCapped(lane)) {
+                activeLanes.addLast(lane);
+                skipped++;
+                continue;
+            }
+
+            skipped = 0;
+
+            if (lane.deficit == 0) {
+                lane.deficit = lane.weight;
+            }
+
+            lane.deficit--;
+            queued--;
+            notifyAll();
+            start(lane, lane.queue.poll().depositId);
+
+            if (lane.queue.isEmpty()) {
+                lane.deficit = 0;
+            }
+            else if (lane.deficit > 0) {
+                // the rest of its turn
+                activeLanes.addFirst(lane);
+            }
+            else {
+                activeLanes.addLast(lane);
+            }
+        }
+    }
+
+    private void start(Lane lane, String depositId) {
+        running++;
+        started++;
+        lane.running++;
+        runningByCollection.merge(lane.collection, 1, Integer::sum);
+        runningByDepositor.merge(lane.depositor, 1, Integer::sum);
+
+        var finalizer = new DepositFinalizer(depositId, depositHandler, taskQueue, finalizationJournal);
+        var done = new AtomicBoolean();
+        Runnable finished = () -> {
+            if (done.compareAndSet(false, true)) {
+                finished(lane);
+            }
+        };
+
+        try {
+            // with a staged finalization the deposit is still running when the finalizing thread returns, so its slot is freed when the last stage completes; that is before the
+            // outcome is handled, because a reschedule waits for room on the task queue, which may only come when this slot starts the next deposit
+            finalizerQueue.execute(() -> {
+                try {
+                    finalizer.runAsync(finished);
+                }
+                catch (RuntimeException e) {
+                    finished.run();
+                    throw e;
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // only when shutting down; the deposit is picked up again on startup
+            log.warn("Unable to start finalizing deposit {}", depositId, e);
+            release(lane);
+        }
+    }
+
+    private synchronized void finished(Lane lane) {
+        release(lane);
+        dispatch();
+    }
+
+    private void release(Lane lane) {
+        running--;
+        lane.running--;
+        runningByCollection.merge(lane.collection, -1, Integer::sum);
+        runningByDepositor.merge(lane.depositor, -1, Integer::sum);
+
+        if (lane.running == 0 && lane.queue.isEmpty()) {
+            removeLane(lane);
+        }
+    }
+
+    private boolean isCapped(Lane lane) {
+        var collection = collections.get(lane.collection);
+        var user = users.get(lane.depositor);
+
+        return isAtCap(collection != null ? collection.getMaxConcurrentFinalizations() : null, runningByCollection.getOrDefault(lane.collection, 0))
+            || isAtCap(user != null ? user.getMaxConcurrentFinalizations() : null, runningByDepositor.getOrDefault(lane.depositor, 0));
+    }
+
+    private boolean isAtCap(Integer cap, int running) {
+        return cap != null && running >= cap;
+    }
+
+    private Lane getLane(String collection, String depositor) {
+        return lanes.computeIfAbsent(collection + "/" + depositor, key -> {
+            var collectionConfig = collections.get(collection);
+            var user = users.get(depositor);
+            var weight = (collectionConfig != null ? collectionConfig.getFinalizationWeight() : 1) * (user != null ? user.getFinalizationWeight() : 1);
+            var lane = new Lane(key, collection, depositor, Math.max(weight, 1));
+
+            if (metrics != null) {
+                metrics.register(MetricRegistry.name(FairFinalizerScheduler.class, "queued", collection, depositor), (Gauge<Integer>) () -> getQueued(lane));
+                metrics.register(MetricRegistry.name(FairFinalizerScheduler.class, "running", collection, depositor), (Gauge<Integer>) () -> getRunning(lane));
+            }
+
+            log.debug("Created finalization lane {}", lane);
+            return lane;
+        });
+    }
+
+    private void removeLane(Lane lane) {
+        // with many depositors that each deposit now and then, idle lanes and their gauges would otherwise pile up
+        if (lanes.remove(lane.key, lane) && metrics != null) {
+            metrics.remove(MetricRegistry.name(FairFinalizerScheduler.class, "queued", lane.collection, lane.depositor));
+            metrics.remove(MetricRegistry.name(FairFinalizerScheduler.class, "running", lane.collection, lane.depositor));
+        }
+
+        log.debug("Removed idle finalization lane {}", lane);
+    }
+
+    private synchronized int getQueued(Lane lane) {
+        return lane.queue.size();
+    }
+
+    private synchronized int getRunning(Lane lane) {
+        return lane.running;
+    }
+
+    /**
+     * Returns the number of deposits that wait for their turn, in all lanes together, including those whose lane is still being looked up.
+     *
+     * @return the number of deposits
+     */
+    public synchronized int getQueued() {
+        return queued + reserved;
+    }
+
+    /**
+     * Returns the number of lanes that have deposits queued or running.
+     *
+     * @return the number of lanes
+     */
+    public synchronized int getLanes() {
+        return lanes.size();
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of deposits that were taken from the lanes to be finalized since the scheduler was created. The rate at which it grows is the rate at which the backlog drains.
+     *
+     * @return the number of deposits
+     */
+    public synchronized long getStarted() {
+        return started;
+    }
+
+    private static final class Queued {
+        private final String depositId;
+        private final long key;
+        private final long sequence;
+
+        private Queued(String depositId, long key, long sequence) {
+            this.depositId = depositId;
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Lane {
+        private final String key;
+        private final String collection;
+        private final String depositor;
+        private final int weight;
+        private final PriorityQueue<Queued> queue = new PriorityQueue<>(Comparator.comparingLong((Queued queued) -> queued.key).thenComparingLong(queued -> queued.sequence));
+        private int deficit;
+        private int running;
+
+        private Lane(String key, String collection, String depositor, int weight) {
+            this.key = key;
+            this.collection = collection;
+            this.depositor = depositor;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString() {
+            return "Lane{" +
+                "collection='" + collection + '\'' +
+                ", depositor='" + depositor + '\'' +
+                ", weight=" + weight +
+                '}';
+        }
+    }
+
+    /**
+     * Builds a scheduler. The finalizer queue, the deposit handler and the task queue are required; the other settings are optional.
+     */
+    public static class Builder {
+        private ExecutorService finalizerQueue;
+        private int maxRunning = 1;
+        private DepositHandler depositHandler;
+        private BlockingQueue<DepositFinalizerEvent> taskQueue;
+        private List<CollectionConfig> collections = List.of();
+        private List<UserConfig> users = List.of();
+        private MetricRegistry metrics;
+        private FinalizationOrder order = FinalizationOrder.arrival();
+        private FinalizationJournal finalizationJournal;
+        private int maxQueued = Integer.MAX_VALUE;
+        private Executor laneResolver;
+
+        /**
+         * @param finalizerQueue the executor that runs the finalizers
+         */
+        public Builder setFinalizerQueue(ExecutorService finalizerQueue) {
+            this.finalizerQueue = finalizerQueue;
+            return this;
+        }
+
+        /**
+         * @param maxRunning the number of deposits that may be finalized at the same time, normally the number of threads of the executor; one by default
+         */
+        public Builder setMaxRunning(int maxRunning) {
+            this.maxRunning = maxRunning;
+            return this;
+        }
+
+        /**
+         * @param depositHandler the deposit handler, used to find the collection, depositor and size of a deposit
+         */
+        public Builder setDepositHandler(DepositHandler depositHandler) {
+            this.depositHandler = depositHandler;
+            return this;
+        }
+
+        /**
+         * @param taskQueue the queue on which finalizers reschedule deposits that ran out of disk space
+         */
+        public Builder setTaskQueue(BlockingQueue<DepositFinalizerEvent> taskQueue) {
+            this.taskQueue = taskQueue;
+            return this;
+        }
+
+        /**
+         * @param collections the collections, with their weights and caps
+         */
+        public Builder setCollections(List<CollectionConfig> collections) {
+            this.collections = collections;
+            return this;
+        }
+
+        /**
+         * @param users the users, with their weights and caps
+         */
+        public Builder setUsers(List<UserConfig> users) {
+            this.users = users;
+            return this;
+        }
+
+        /**
+         * @param metrics the registry in which the queue depth of each lane is registered; if not set, it is not registered
+         */
+        public Builder setMetrics(MetricRegistry metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param order the order of the deposits within a lane; arrival order by default
+         */
+        public Builder setOrder(FinalizationOrder order) {
+            this.order = order;
+            return this;
+        }
+
+        /**
+         * @param finalizationJournal the journal in which the finalizers record the start and outcome of each finalization
+         */
+        public Builder setFinalizationJournal(FinalizationJournal finalizationJournal) {
+            this.finalizationJournal = finalizationJournal;
+            return this;
+        }
+
+        /**
+         * @param maxQueued the number of deposits that the lanes may hold together; unbounded by default
+         */
+        public Builder setMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+            return this;
+        }
+
+        /**
+         * @param laneResolver the executor on which deposits are looked up whose events do not name their lane; if not set, they are looked up on the submitting thread
+         */
+        public Builder setLaneResolver(Executor laneResolver) {
+            this.laneResolver = laneResolver;
+            return this;
+        }
+
+        public FairFinalizerScheduler build() {
+            return new FairFinalizerScheduler(this);
+        }
+    }
+}
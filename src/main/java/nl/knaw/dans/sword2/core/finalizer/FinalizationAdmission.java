@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides whether a deposit that is to be finalized may still be accepted, and hands accepted deposits to the finalizer without blocking.
+ * <p>
+ * The backlog is everything that waits to be finalized: the events on the task queue, the deposits in the scheduler's lanes and the events that did not fit on the task queue yet. If it
+ * has reached its limit, {@link #checkCapacity()} fails before the payload is read, telling the client when to try again. That moment is estimated from the rate at which the backlog
+ * drained over the last minute, which is sampled by {@link #sample()}.
+ * <p>
+ * A deposit that passed the check may still find the task queue full, because the check and the hand-off are separated by the upload. Such a deposit is kept in an overflow list that
+ * {@link #drainOverflow()} moves to the task queue as room becomes available, so the request thread never waits for the queue.
+ * <p>
+ * The overflow list itself has no limit; {@link #checkCapacity()} is what keeps it small. Because the overflow counts towards the backlog, it can only grow beyond the limit of the backlog
+ * by the number of complete deposits that passed the check while they were being uploaded at the same time. The overflow is kept in memory only, so the deposits in it are found again
+ * after a restart from the finalization journal, or, without one, by scanning the uploads folders.
+ */
+public class FinalizationAdmission {
+    private static final Logger log = LoggerFactory.getLogger(FinalizationAdmission.class);
+    private static final Duration SAMPLE_WINDOW = Duration.ofMinutes(1);
+
+    private final BlockingQueue<DepositFinalizerEvent> taskQueue;
+    private final IntSupplier queued;
+    private final LongSupplier drained;
+    private final int maxBacklog;
+    private final Duration minRetryAfter;
+    private final Duration maxRetryAfter;
+    private final Clock clock;
+    private final Queue<DepositFinalizerEvent> overflow = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+
+    /**
+     * @param taskQueue     the queue from which the finalizer takes its events
+     * @param queued        the number of deposits that wait for their turn beyond the task queue, e.g. in the lanes of a {@link FairFinalizerScheduler}
+     * @param drained       the number of deposits that left the backlog to be finalized so far
+     * @param maxBacklog    the number of waiting deposits at which new deposits are turned away
+     * @param minRetryAfter the shortest time a client is asked to wait
+     * @param maxRetryAfter the longest time a client is asked to wait, also used when nothing drained during the last minute
+     */
+    public FinalizationAdmission(BlockingQueue<DepositFinalizerEvent> taskQueue, IntSupplier queued, LongSupplier drained, int maxBacklog, Duration minRetryAfter,
+        Duration maxRetryAfter) {
+        this(taskQueue, queued, drained, maxBacklog, minRetryAfter, maxRetryAfter, Clock.systemUTC());
+    }
+
+    FinalizationAdmission(BlockingQueue<DepositFinalizerEvent> taskQueue, IntSupplier queued, LongSupplier drained, int maxBacklog, Duration minRetryAfter, Duration maxRetryAfter,
+        Clock clock) {
+        this.taskQueue = taskQueue;
+        this.queued = queued;
+        this.drained = drained;
+        this.maxBacklog = Math.max(maxBacklog, 1);
+        this.minRetryAfter = minRetryAfter;
+        this.maxRetryAfter = maxRetryAfter;
+        this.clock = clock;
+    }
+
+    /**
+     * Checks that one more deposit can be finalized without the backlog going over its limit.
+     *
+     * @throws FinalizingQueueFullException if the backlog is full
+     */
+    public void checkCapacity() throws FinalizingQueueFullException {
+        var backlog = getBacklog();
+
+        if (backlog >= maxBacklog) {
+            var retryAfter = getRetryAfter(backlog);
+            log.warn("Finalization backlog is full ({} of {}), asking client to retry after {}", backlog, maxBacklog, retryAfter);
+            throw new FinalizingQueueFullException(String.format("The server is busy finalizing %d deposits, try again later", backlog), retryAfter);
+        }
+    }
+
+    /**
+     * Hands a deposit to the finalizer without waiting for room on the task queue.
+     *
+     * @param event the event to put on the task queue
+     */
+    public void submit(DepositFinalizerEvent event) {
+        // once something overflowed, later events queue up behind it, so deposits keep their order
+        if (!overflow.isEmpty() || !taskQueue.offer(event)) {
+            log.debug("Task queue is full, keeping {} until there is room", event);
+            overflow.add(event);
+        }
+    }
+
+    /**
+     * Moves as many overflowed events to the task queue as fit. It is meant to be called from a single thread.
+     */
+    public void drainOverflow() {
+        DepositFinalizerEvent event;
+
+        while ((event = overflow.peek()) != null && taskQueue.offer(event)) {
+            overflow.poll();
+        }
+    }
+
+    /**
+     * Records how many deposits have drained so far, for the estimate of the drain rate. It should be called about once a second.
+     */
+    public synchronized void sample() {
+        var now = clock.millis();
+        samples.addLast(new Sample(now, drained.getAsLong()));
+
+        // the oldest sample that is kept is the last one from before the window, so the estimate always spans at least the window once it is full
+        while (samples.size() > 2) {
+            var oldest = samples.pollFirst();
+
+            if (now - samples.peekFirst().time < SAMPLE_WINDOW.toMillis()) {
+                samples.addFirst(oldest);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of deposits that wait to be finalized.
+     *
+     * @return the number of deposits
+     */
+    public int getBacklog() {
+        return taskQueue.size() + queued.getAsInt() + overflow.size();
+    }
+
+    public int getOverflow() {
+        return overflow.size();
+    }
+
+    /**
+     * Returns the number of deposits that drained per second, over the last minute.
+     *
+     * @return the rate, or 0 if it is not known yet
+     */
+    public synchronized double getDrainRate() {
+        if (samples.size() < 2) {
+            return 0;
+        }
+
+        var oldest = samples.peekFirst();
+        var newest = samples.peekLast();
+        var elapsed = newest.time - oldest.time;
+
+        return elapsed > 0 ? (newest.count - oldest.count) * 1000.0 / elapsed : 0;
+    }
+
+    Duration getRetryAfter(int backlog) {
+        sample();
+        var rate = getDrainRate();
+
+        if (rate <= 0) {
+            return maxRetryAfter;
+        }
+
+        // the time it takes until the backlog has room for one more deposit
+        var excess = backlog - maxBacklog + 1;
+        var retryAfter = Duration.ofSeconds((long) Math.ceil(excess / rate));
+
+        if (retryAfter.compareTo(minRetryAfter) < 0) {
+            return minRetryAfter;
+        }
+
+        return retryAfter.compareTo(maxRetryAfter) > 0 ? maxRetryAfter : retryAfter;
+    }
+
+    private static class Sample {
+        private final long time;
+        private final long count;
+
+        private Sample(long time, long count) {
+            this.time = time;
+            this.count = count;
+        }
+    }
+}
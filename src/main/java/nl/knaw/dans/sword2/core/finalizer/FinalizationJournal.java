@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of what happened to the deposits that were handed to the finalizer, kept on local disk so that a restart does not have to list and parse every deposit in the
+ * uploads folders to find the ones that still need finalizing.
+ * <p>
+ * Every record is one line: a CRC-32 of the rest of the line, the type of the record, the deposit ID and the number of finalization attempts. Records are written and forced to disk
+ * before the method that writes them returns. A deposit is pending from the moment it is enqueued until it is completed, which covers every outcome except a retry. {@link #compact()}
+ * rewrites the journal with only the pending deposits, so it does not grow with the number of deposits ever finalized.
+ * <p>
+ * {@link #open()} replays the journal. If the journal is missing, or has a record that is incomplete or does not match its checksum, the replay is not consistent and the caller should
+ * fall back to scanning the uploads folders. Until the scan is done, records are only kept in memory, so a crash during the scan leaves the old journal and the next start scans again.
+ * {@link #rebuild(Map)} starts a new journal from what a scan found; a scan that hands over deposits as it finds them calls {@link #reset()} before and {@link #compact()} after it. If
+ * writing a record fails, the journal is removed, so the next start falls back to a scan rather than trusting a journal that misses a record.
+ */
+public class FinalizationJournal {
+    private static final Logger log = LoggerFactory.getLogger(FinalizationJournal.class);
+
+    public enum RecordType {
+        ENQUEUED,
+        STARTED,
+        COMPLETED,
+        RESCHEDULED
+    }
+
+    private final Path file;
+    private final Map<String, Integer> pending = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long records;
+    private boolean failed;
+
+    /**
+     * @param file the journal file; it should be on a local disk, because every record is forced to disk
+     */
+    public FinalizationJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the journal and, if it was read completely, compacts it and opens it for appending.
+     *
+     * @return the deposits that were pending when the journal was last written to
+     * @throws IOException if the journal could not be read or rewritten
+     */
+    public synchronized Replay open() throws IOException {
+        var consistent = Files.exists(file);
+
+        if (consistent) {
+            consistent = replay();
+        }
+        else {
+            log.info("Finalization journal {} does not exist yet", file);
+        }
+
+        var replay = new Replay(new LinkedHashMap<>(pending), consistent);
+
+        if (consistent) {
+            compact();
+        }
+
+        return replay;
+    }
+
+    /**
+     * Replaces what the journal holds with the given pending deposits, for example after a scan of the uploads folders.
+     *
+     * @param deposits the pending deposits, with their finalization attempts
+     * @throws IOException if the journal could not be rewritten
+     */
+    public synchronized void rebuild(Map<String, Integer> deposits) throws IOException {
+        reset();
+        pending.putAll(deposits);
+        compact();
+    }
+
+    /**
+     * Forgets all pending deposits and stops writing to the journal file until the next {@link #compact()}, which writes what was recorded in the meantime.
+     */
+    public synchronized void reset() {
+        closeChannel();
+        pending.clear();
+        records = 0;
+        failed = false;
+    }
+
+    public void enqueued(String depositId) {
+        append(RecordType.ENQUEUED, depositId, 0);
+    }
+
+    public void started(String depositId) {
+        append(RecordType.STARTED, depositId, 0);
+    }
+
+    public void completed(String depositId) {
+        append(RecordType.COMPLETED, depositId, 0);
+    }
+
+    public void rescheduled(String depositId, int attempts) {
+        append(RecordType.RESCHEDULED, depositId, attempts);
+    }
+
+    /**
+     * Rewrites the journal with only the pending deposits, if it has records that are no longer needed. The new journal is written next to the old one and moved over it, so a crash
+     * leaves either of them intact.
+     *
+     * @throws IOException if the journal could not be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        // after a failed write only a rebuild may create the journal again
+        if (failed || (channel != null && records <= pending.size())) {
+            return;
+        }
+
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (var output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (var entry : pending.entrySet()) {
+                var type = entry.getValue() > 0 ? RecordType.RESCHEDULED : RecordType.ENQUEUED;
+                write(output, type, entry.getKey(), entry.getValue());
+            }
+
+            output.force(true);
+        }
+
+        closeChannel();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log.debug("Compacted finalization journal {} from {} to {} records", file, records, pending.size());
+        records = pending.size();
+    }
+
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    /**
+     * Returns the number of deposits that were enqueued and not completed.
+     *
+     * @return the number of deposits
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of records in the journal, which is what a restart reads.
+     *
+     * @return the number of records
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    private synchronized void append(RecordType type, String depositId, int attempts) {
+        apply(type, depositId, attempts);
+
+        if (channel == null || failed) {
+            return;
+        }
+
+        try {
+            write(channel, type, depositId, attempts);
+            channel.force(false);
+            records++;
+        }
+        catch (IOException e) {
+            // a journal that misses a record would lose the deposit on the next start; without one, the next start scans the uploads folders
+            log.error("Unable to write {} record for deposit {} to the finalization journal, removing it", type, depositId, e);
+            failed = true;
+            closeChannel();
+
+            try {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException ex) {
+                log.error("Unable to remove finalization journal {}; remove it before the next start", file, ex);
+            }
+        }
+    }
+
+    private void apply(RecordType type, String depositId, int attempts) {
+        switch (type) {
+            case ENQUEUED:
+                pending.putIfAbsent(depositId, 0);
+                break;
+            case STARTED:
+                pending.putIfAbsent(depositId, 0);
+                break;
+            case RESCHEDULED:
+                pending.put(depositId, attempts);
+                break;
+            case COMPLETED:
+                pending.remove(depositId);
+                break;
+        }
+    }
+
+    private boolean replay() throws IOException {
+        var consistent = true;
+        records = 0;
+        pending.clear();
+
+        var content = Files.readString(file, StandardCharsets.UTF_8);
+        var lines = content.split("\n", -1);
+
+        // the part after the last line break is empty, unless the last record was only partly written
+        for (var i = 0; i < lines.length; i++) {
+            var line = lines[i];
+
+            if (i == lines.length - 1 && line.isEmpty()) {
+                break;
+            }
+
+            var fields = line.split(" ");
+
+            if (fields.length != 4 || i == lines.length - 1 || !fields[0].equals(checksum(line.substring(fields[0].length() + 1)))) {
+                log.warn("Skipping damaged record {} of finalization journal {}", i + 1, file);
+                consistent = false;
+                continue;
+            }
+
+            try {
+                apply(RecordType.valueOf(fields[1]), fields[2], Integer.parseInt(fields[3]));
+                records++;
+            }
+            catch (IllegalArgumentException e) {
+                log.warn("Skipping unknown record {} of finalization journal {}", i + 1, file, e);
+                consistent = false;
+            }
+        }
+
+        log.info("Replayed {} records of finalization journal {}, {} deposits are pending", records, file, pending.size());
+        return consistent;
+    }
+
+    private void write(FileChannel output, RecordType type, String depositId, int attempts) throws IOException {
+        var record = type + " " + depositId + " " + attempts;
+        var buffer = ByteBuffer.wrap((checksum(record) + " " + record + "\n").getBytes(StandardCharsets.UTF_8));
+
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+
+    private String checksum(String record) {
+        var crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Unable to close finalization journal {}", file, e);
+        }
+
+        channel = null;
+    }
+
+    /**
+     * The outcome of reading the journal on startup.
+     */
+    public static class Replay {
+        private final Map<String, Integer> pending;
+        private final boolean consistent;
+
+        Replay(Map<String, Integer> pending, boolean consistent) {
+            this.pending = pending;
+            this.consistent = consistent;
+        }
+
+        /**
+         * Returns the deposits that were not completed, in the order in which they were first enqueued.
+         *
+         * @return the finalization attempts, by deposit ID
+         */
+        public Map<String, Integer> getPending() {
+            return pending;
+        }
+
+        /**
+         * Returns whether the journal could be read completely. If not, deposits may be missing from {@link #getPending()}.
+         *
+         * @return true if every record was intact
+         */
+        public boolean isConsistent() {
+            return consistent;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import java.time.Clock;
+
+/**
+ * Decides the order in which the deposits in a lane of the {@link FairFinalizerScheduler} are finalized. Each deposit gets a key when it is submitted, and the lowest key goes first.
+ * <p>
+ * In arrival order the key is the time of arrival. Smallest first places a deposit as if it arrived later by its size divided by the aging rate: with a rate of 100 MB/s a deposit of
+ * 300 GB lets smaller deposits that arrive in the next 50 minutes go first, while one of 2 MB is placed as if it arrived 20 ms later. As the key does not change while a deposit waits,
+ * no deposit is overtaken by deposits that arrive more than its size divided by the aging rate after it.
+ */
+public class FinalizationOrder {
+    private final long agingRate;
+    private final Clock clock;
+
+    FinalizationOrder(long agingRate, Clock clock) {
+        this.agingRate = agingRate;
+        this.clock = clock;
+    }
+
+    public static FinalizationOrder arrival() {
+        return new FinalizationOrder(0, Clock.systemUTC());
+    }
+
+    /**
+     * @param agingRate the number of bytes by which a deposit may be larger than another for each second it arrived earlier, and still go after it
+     * @return the order
+     */
+    public static FinalizationOrder smallestFirst(long agingRate) {
+        if (agingRate <= 0) {
+            throw new IllegalArgumentException("The aging rate must be positive");
+        }
+
+        return new FinalizationOrder(agingRate, Clock.systemUTC());
+    }
+
+    /**
+     * Returns the key of a deposit that arrives now.
+     *
+     * @param contentLength the size of the deposit, or -1 if it is not known, in which case it is placed as if it were empty
+     * @return the key, in milliseconds
+     */
+    public long getKey(long contentLength) {
+        var arrival = clock.millis();
+
+        if (agingRate == 0 || contentLength <= 0) {
+            return arrival;
+        }
+
+        return arrival + (long) (contentLength * 1000.0 / agingRate);
+    }
+
+    @Override
+    public String toString() {
+        return agingRate == 0 ? "FinalizationOrder{arrival}" : "FinalizationOrder{smallestFirst, agingRate=" + agingRate + '}';
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.core.Deposit;
+import nl.knaw.dans.sword2.core.DepositState;
+import nl.knaw.dans.sword2.core.config.CollectionConfig;
+import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
+import nl.knaw.dans.sword2.core.service.DepositPropertiesManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Finds the deposits in the uploads folders that still need finalizing, and hands each one over as soon as it is found, instead of collecting them all first. The directories are
+ * listed as a stream on the calling thread, and their properties are read on the executor, with at most a fixed number of directories in progress at the same time. Only the state is
+ * read from deposits that turn out to be drafts or done, which on a large collection are nearly all of them.
+ * <p>
+ * The scan may run while new deposits are uploaded. A deposit whose properties were saved after the scan started is skipped, because whoever saved them has already handed it to the
+ * finalizer, or is about to. The modification times are set by the file server, whose clock may differ from ours, so the start of the scan is taken from a marker file that is
+ * written in the uploads folder, rather than from the local clock.
+ */
+public class OpenDepositScanner {
+    private static final Logger log = LoggerFactory.getLogger(OpenDepositScanner.class);
+    private static final String MARKER_FILE = ".open-deposit-scan";
+
+    private final List<CollectionConfig> collections;
+    private final DepositPropertiesManager depositPropertiesManager;
+    private final Executor executor;
+    private final int maxConcurrency;
+
+    /**
+     * @param collections              the collections whose uploads folders are scanned
+     * @param depositPropertiesManager reads the properties of the deposits
+     * @param executor                 the executor on which the properties are read
+     * @param maxConcurrency           the number of directories that may be read at the same time, normally the number of threads of the executor
+     */
+    public OpenDepositScanner(List<CollectionConfig> collections, DepositPropertiesManager depositPropertiesManager, Executor executor, int maxConcurrency) {
+        this.collections = collections;
+        this.depositPropertiesManager = depositPropertiesManager;
+        this.executor = executor;
+        this.maxConcurrency = Math.max(maxConcurrency, 1);
+    }
+
+    /**
+     * Scans the uploads folders of all collections, and returns when every directory has been checked.
+     *
+     * @param consumer receives the deposits that are UPLOADED or FINALIZING, from several threads at the same time
+     * @return the number of deposits that were passed to the consumer
+     * @throws InterruptedException if the scan was interrupted; directories that were being read are finished first
+     */
+    public int scan(Consumer<Deposit> consumer) throws InterruptedException {
+        var startTime = Instant.now();
+        var permits = new Semaphore(maxConcurrency);
+        var found = new AtomicInteger();
+        var checked = 0;
+
+        try {
+            for (var collection : collections) {
+                var collectionStartTime = markScanStart(collection.getUploads());
+
+                try (var directories = Files.newDirectoryStream(collection.getUploads(), Files::isDirectory)) {
+                    for (var directory : directories) {
+                        permits.acquire();
+                        checked++;
+
+                        try {
+                            executor.execute(() -> {
+                                try {
+                                    check(collection, directory, collectionStartTime, consumer, found);
+                                }
+                                finally {
+                                    permits.release();
+                                }
+                            });
+                        }
+                        catch (RejectedExecutionException e) {
+                            permits.release();
+                            throw new InterruptedException("Executor no longer accepts tasks, stopping the scan");
+                        }
+                    }
+                }
+                catch (IOException | DirectoryIteratorException e) {
+                    log.error("Unable to list directories in path {}", collection.getUploads(), e);
+                }
+            }
+        }
+        finally {
+            // the consumer must not be called after the scan returned
+            permits.acquireUninterruptibly(maxConcurrency);
+            permits.release(maxConcurrency);
+        }
+
+        log.info("Checked {} deposit directories in {}, {} deposits need finalizing", checked, Duration.between(startTime, Instant.now()), found.get());
+        return found.get();
+    }
+
+    /**
+     * Writes the marker file in the uploads folder, so that the file server gives it a modification time from the same clock as the deposits in that folder.
+     *
+     * @return the modification time of the marker, or the local time if it could not be written
+     */
+    private Instant markScanStart(Path uploads) {
+        var marker = uploads.resolve(MARKER_FILE);
+
+        try {
+            Files.write(marker, Instant.now().toString().getBytes(StandardCharsets.UTF_8));
+            return Files.getLastModifiedTime(marker).toInstant();
+        }
+        catch (IOException e) {
+            log.warn("Unable to write {}, comparing modification times with the local clock instead", marker, e);
+            return Instant.now();
+        }
+    }
+
+    private void check(CollectionConfig collection, Path path, Instant startTime, Consumer<Deposit> consumer, AtomicInteger found) {
+        try {
+            var state = depositPropertiesManager.getState(path);
+
+            if (!DepositState.UPLOADED.equals(state) && !DepositState.FINALIZING.equals(state)) {
+                return;
+            }
+
+            if (depositPropertiesManager.getLastModified(path).isAfter(startTime)) {
+                log.debug("Deposit {} was saved after the scan started, leaving it to whoever saved it", path);
+                return;
+            }
+
+            var deposit = depositPropertiesManager.getProperties(path);
+            deposit.setPath(path);
+            deposit.setCollectionId(collection.getName());
+
+            consumer.accept(deposit);
+            found.incrementAndGet();
+        }
+        catch (Exception | InvalidDepositException e) {
+            log.error("Unable to open deposit from path {}", path, e);
+        }
+    }
+}
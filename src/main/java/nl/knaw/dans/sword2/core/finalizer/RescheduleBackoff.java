@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * Decides how long a deposit that could not be finalized for lack of disk space waits before it is tried again. The delay doubles with every attempt, up to a maximum. A random part
+ * of up to half of it is taken off, so deposits that failed at the same time do not all come back at the same time and fail together again.
+ */
+public class RescheduleBackoff {
+    // beyond this many doublings any sensible initial delay exceeds any sensible maximum
+    private static final int MAX_DOUBLINGS = 30;
+
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final Random random;
+
+    public RescheduleBackoff(Duration initialDelay, Duration maxDelay) {
+        this(initialDelay, maxDelay, new Random());
+    }
+
+    RescheduleBackoff(Duration initialDelay, Duration maxDelay, Random random) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * Returns the delay before the next attempt.
+     *
+     * @param attempts the number of attempts that were postponed so far, including the last one
+     * @return a delay between half of and the full backoff for this attempt
+     */
+    public Duration getDelay(int attempts) {
+        var doublings = Math.min(Math.max(attempts, 1) - 1, MAX_DOUBLINGS);
+        var backoff = Math.min(initialDelay.toMillis() << doublings, maxDelay.toMillis());
+        var half = backoff / 2;
+
+        return Duration.ofMillis(backoff - half + (long) (random.nextDouble() * half));
+    }
+
+    @Override
+    public String toString() {
+        return "RescheduleBackoff{" +
+            "initialDelay=" + initialDelay +
+            ", maxDelay=" + maxDelay +
+            '}';
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import gov.loc.repository.bagit.domain.Bag;
+import gov.loc.repository.bagit.exceptions.InvalidBagitFileFormatException;
+import gov.loc.repository.bagit.exceptions.MaliciousPathException;
+import gov.loc.repository.bagit.exceptions.UnparsableVersionException;
+import gov.loc.repository.bagit.exceptions.UnsupportedAlgorithmException;
+import gov.loc.repository.bagit.reader.BagReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * State shared by the steps of a single finalization: the bag as parsed from disk and the digests calculated during extraction. Parsing a bag reads bag-info.txt and every manifest, so
+ * the parsed bag is kept until something on disk changes that the parsed bag does not reflect, at which point {@link #invalidate()} must be called.
+ * <p>
+ * A context belongs to one deposit and is not safe to use from several threads at the same time, but it may be handed from one thread to the next, as the stages of a staged
+ * finalization do.
+ * <p>
+ * If verification is deferred, the extractor does not verify the bag after the last archive but leaves it to be verified by a separate step, see {@link #takePendingVerification()}.
+ */
+public class BagContext {
+    private static final Logger log = LoggerFactory.getLogger(BagContext.class);
+
+    private final PayloadDigests payloadDigests = new PayloadDigests();
+    private Path bagDir;
+    private Bag bag;
+    private int parseCount;
+    private boolean verificationDeferred;
+    private Path pendingVerification;
+    private Map<String, String> uploadDigests = Map.of();
+
+    /**
+     * Returns the parsed bag, reading it from disk only if it was not parsed since the last invalidation.
+     *
+     * @param bagDir the bag directory
+     * @return the parsed bag
+     */
+    public Bag getBag(Path bagDir) throws MaliciousPathException, UnparsableVersionException, UnsupportedAlgorithmException, InvalidBagitFileFormatException, IOException {
+        var normalized = bagDir.toAbsolutePath().normalize();
+
+        if (bag == null || !normalized.equals(this.bagDir)) {
+            log.trace("Parsing bag on path {}", bagDir);
+            bag = new BagReader().read(bagDir);
+            this.bagDir = normalized;
+            parseCount++;
+        }
+
+        return bag;
+    }
+
+    public void invalidate() {
+        bag = null;
+        bagDir = null;
+    }
+
+    public void deferVerification() {
+        verificationDeferred = true;
+    }
+
+    public boolean isVerificationDeferred() {
+        return verificationDeferred;
+    }
+
+    void setPendingVerification(Path bagDir) {
+        pendingVerification = bagDir;
+    }
+
+    /**
+     * Returns the bag that the extractor left to be verified, and forgets it.
+     *
+     * @return the bag directory, or null if there is nothing left to verify
+     */
+    public Path takePendingVerification() {
+        var bagDir = pendingVerification;
+        pendingVerification = null;
+        return bagDir;
+    }
+
+    /**
+     * Returns the digests of the payload as the client sent it, if they became known during finalization, as they do when the parts of a continued deposit are merged.
+     *
+     * @return the lower case hex digests, by algorithm; empty if they are not known
+     */
+    public Map<String, String> getUploadDigests() {
+        return uploadDigests;
+    }
+
+    void setUploadDigests(Map<String, String> uploadDigests) {
+        this.uploadDigests = uploadDigests;
+    }
+
+    public PayloadDigests getPayloadDigests() {
+        return payloadDigests;
+    }
+
+    /**
+     * Returns how often the bag was read from disk through this context.
+     *
+     * @return the number of times the bag was parsed
+     */
+    public int getParseCount() {
+        return parseCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BagContext{" +
+            "bagDir=" + bagDir +
+            ", parseCount=" + parseCount +
+            ", verificationDeferred=" + verificationDeferred +
+            ", pendingVerification=" + pendingVerification +
+            ", uploadDigests=" + uploadDigests +
+            ", payloadDigests=" + payloadDigests +
+            '}';
+    }
+}
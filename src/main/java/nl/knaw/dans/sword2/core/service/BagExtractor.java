@@ -20,10 +20,43 @@ import nl.knaw.dans.sword2.core.exceptions.InvalidPartialFileException;
 import nl.knaw.dans.sword2.core.exceptions.NotEnoughDiskSpaceException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 
 public interface BagExtractor {
     void extractBag(Path path, long diskSpaceMargin, String mimeType, boolean filePathMapping) throws InvalidDepositException, InvalidPartialFileException, IOException, NotEnoughDiskSpaceException;
 
+    void extractBag(Path path, long diskSpaceMargin, String mimeType, boolean filePathMapping, BagContext bagContext)
+        throws InvalidDepositException, InvalidPartialFileException, IOException, NotEnoughDiskSpaceException;
+
+    /**
+     * Extracts a zip archive into a staging directory in the deposit while it is being uploaded. If this succeeds, {@link #extractBag} moves the staged files into place instead of extracting
+     * the uploaded file again. Any failure is logged and leaves nothing staged, so the uploaded file is extracted as usual.
+     * <p>
+     * Disk space is reserved as the files are extracted, and staging is given up if the archive expands to much more than the upload, so an archive that expands without end cannot fill
+     * the file store.
+     *
+     * @param inputStream     the archive as it is being uploaded
+     * @param depositPath     the directory of the deposit
+     * @param filePathMapping whether payload files are to be renamed, as in {@link #extractBag}
+     * @param diskSpaceMargin the space that must remain free
+     * @param uploadSize      the size of the upload, or -1 if unknown, in which case nothing is staged
+     */
+    void stageBag(InputStream inputStream, Path depositPath, boolean filePathMapping, long diskSpaceMargin, long uploadSize);
+
+    /**
+     * Removes whatever was staged by {@link #stageBag}, e.g. because the upload turned out to be corrupt.
+     *
+     * @param depositPath the directory of the deposit
+     */
+    void discardStagedBag(Path depositPath);
+
+    /**
+     * Removes what {@link #extractBag} extracted into the deposit, but not the uploaded files or what was staged, so that the next attempt extracts the bag from scratch.
+     *
+     * @param depositPath the directory of the deposit
+     */
+    void discardExtractedBag(Path depositPath);
+
     Path getBagDir(Path path) throws IOException, InvalidDepositException;
 }
@@ -15,6 +15,9 @@
  */
 package nl.knaw.dans.sword2.core.service;
 
+import gov.loc.repository.bagit.exceptions.UnsupportedAlgorithmException;
+import gov.loc.repository.bagit.hash.BagitAlgorithmNameToSupportedAlgorithmMapping;
+import gov.loc.repository.bagit.hash.StandardBagitAlgorithmNameToSupportedAlgorithmMapping;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidPartialFileException;
 import nl.knaw.dans.sword2.core.exceptions.NotEnoughDiskSpaceException;
@@ -22,12 +25,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -35,31 +39,53 @@ import java.util.stream.Collectors;
 public class BagExtractorImpl implements BagExtractor {
 
     private static final Logger log = LoggerFactory.getLogger(BagExtractorImpl.class);
+    private static final String STAGING_DIR = ".staging";
+    private static final String STAGED_FILES_DIR = "files";
+    private static final String STAGED_MAPPING_FILE = "file-mapping.txt";
+    // the most that is extracted while uploading, as a multiple of the size of the upload; a larger archive is extracted during finalization, after its central directory was checked
+    static final long MAX_STAGED_EXPANSION = 20;
     private final Pattern defaultPrefixPattern = Pattern.compile("^[^/]+/data/");
+    private final Pattern manifestPattern = Pattern.compile("^[^/]+/manifest-([^/]+)\\.txt$");
+    private final BagitAlgorithmNameToSupportedAlgorithmMapping algorithmMapping = new StandardBagitAlgorithmNameToSupportedAlgorithmMapping();
     private final ZipService zipService;
     private final FileService fileService;
     private final BagItManager bagItManager;
     private final FilesystemSpaceVerifier filesystemSpaceVerifier;
+    private final PartialFileMerger partialFileMerger;
 
     public BagExtractorImpl(ZipService zipService, FileService fileService, BagItManager bagItManager, FilesystemSpaceVerifier filesystemSpaceVerifier) {
+        this(zipService, fileService, bagItManager, filesystemSpaceVerifier, new PartialFileMergerImpl(fileService));
+    }
+
+    public BagExtractorImpl(ZipService zipService, FileService fileService, BagItManager bagItManager, FilesystemSpaceVerifier filesystemSpaceVerifier,
+        PartialFileMerger partialFileMerger) {
         this.zipService = zipService;
         this.fileService = fileService;
         this.bagItManager = bagItManager;
         this.filesystemSpaceVerifier = filesystemSpaceVerifier;
+        this.partialFileMerger = partialFileMerger;
     }
 
     @Override
     public void extractBag(Path path, long diskSpaceMargin, String mimeType, boolean filePathMapping)
+        throws InvalidDepositException, InvalidPartialFileException, IOException, NotEnoughDiskSpaceException {
+        extractBag(path, diskSpaceMargin, mimeType, filePathMapping, new BagContext());
+    }
+
+    @Override
+    public void extractBag(Path path, long diskSpaceMargin, String mimeType, boolean filePathMapping, BagContext bagContext)
         throws InvalidDepositException, InvalidPartialFileException, IOException, NotEnoughDiskSpaceException {
         log.debug("Extracting bag {} with mimeType {} and file path mapping set to {}", path, mimeType, filePathMapping);
 
         switch (mimeType) {
             case "application/zip":
-                extractZips(path, diskSpaceMargin, filePathMapping);
+                if (!extractStagedBag(path, diskSpaceMargin, bagContext)) {
+                    extractZips(path, diskSpaceMargin, filePathMapping, bagContext);
+                }
                 break;
 
             case "application/octet-stream":
-                extractOctetStream(path, diskSpaceMargin, filePathMapping);
+                extractOctetStream(path, diskSpaceMargin, filePathMapping, bagContext);
                 break;
 
             default:
@@ -67,84 +93,363 @@ public class BagExtractorImpl implements BagExtractor {
         }
     }
 
-    void extractOctetStream(Path path, long diskSpaceMargin, boolean filePathMapping) throws InvalidPartialFileException, InvalidDepositException, IOException, NotEnoughDiskSpaceException {
-        var files = getDepositFiles(path);
-        var sorting = new HashMap<Path, Integer>();
+    @Override
+    public void stageBag(InputStream inputStream, Path depositPath, boolean filePathMapping, long diskSpaceMargin, long uploadSize) {
+        var staging = depositPath.resolve(STAGING_DIR);
+        var mapping = new LinkedHashMap<String, String>();
 
-        for (var file : files) {
-            var sequenceNumber = getSequenceNumber(file);
-            log.trace("Sequence number for file {}: {}", file, sequenceNumber);
-            sorting.put(file, sequenceNumber);
+        if (uploadSize < 0) {
+            log.debug("Size of the upload to {} is unknown, so it is not extracted while it is received", depositPath);
+            return;
         }
 
-        files.sort(Comparator.comparing(sorting::get));
+        var limit = uploadSize > Long.MAX_VALUE / MAX_STAGED_EXPANSION ? Long.MAX_VALUE : uploadSize * MAX_STAGED_EXPANSION;
 
-        var output = path.resolve("merged.zip");
-        fileService.mergeFiles(files, output);
+        // the central directory is only read at the end, so the space for the extracted files is reserved as they are written
+        var budget = new ExtractionBudget(filesystemSpaceVerifier, depositPath, diskSpaceMargin, limit);
 
-        log.debug("Extracting merged zip in path {}", path);
-        extractZips(path, diskSpaceMargin, filePathMapping);
+        try (budget) {
+            log.debug("Extracting upload to staging directory {} while it is received", staging);
+            zipService.extractZipStream(inputStream, staging.resolve(STAGED_FILES_DIR), name -> {
+                var target = filePathMapping ? mapFileName(name, defaultPrefixPattern) : name;
+                mapping.put(name, target);
+                return target;
+            }, budget);
+
+            if (mapping.isEmpty()) {
+                throw new IOException("Upload contains no zip entries");
+            }
+
+            if (mapping.keySet().stream().anyMatch(name -> name.contains("\t") || name.contains("\n") || name.contains("\r"))) {
+                throw new IOException("Upload contains entry names that cannot be recorded");
+            }
+
+            // written last, so a staging directory without it is known to be incomplete
+            fileService.writeLinesAtomically(staging.resolve(STAGED_MAPPING_FILE), mapping.entrySet().stream().map(e -> e.getKey() + "\t" + e.getValue()));
+        }
+        catch (IOException e) {
+            log.warn("Unable to extract upload in {} while it was received, it will be extracted during finalization", depositPath, e);
+            discardStagedBag(depositPath);
+            budget.discard();
+        }
     }
 
-    int getSequenceNumber(Path path) throws InvalidPartialFileException {
-        var parts = path.getFileName().toString().split("\\.");
-        var fileName = path.getFileName();
+    @Override
+    public void discardStagedBag(Path depositPath) {
+        var staging = depositPath.resolve(STAGING_DIR);
 
-        if (parts.length <= 1) {
-            throw new InvalidPartialFileException(String.format("Partial file %s has no extension. It should be a positive sequence number.", fileName));
+        try {
+            if (fileService.exists(staging)) {
+                log.debug("Removing staging directory {}", staging);
+                fileService.deleteDirectory(staging);
+            }
         }
+        catch (IOException e) {
+            log.error("Unable to remove staging directory {}", staging, e);
+        }
+    }
 
+    @Override
+    public void discardExtractedBag(Path depositPath) {
         try {
-            var value = Integer.parseInt(parts[parts.length - 1], 10);
+            for (var directory : fileService.listDirectories(depositPath)) {
+                if (!directory.getFileName().toString().equals(STAGING_DIR)) {
+                    log.debug("Removing extracted directory {}", directory);
+                    fileService.deleteDirectory(directory);
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("Unable to remove the extracted bag from {}", depositPath, e);
+        }
+    }
+
+    /**
+     * Moves the files extracted by {@link #stageBag} into the deposit, if the upload was extracted completely and the local headers read while streaming name the same files as the central
+     * directory of the uploaded file. The staging directory is removed in any case.
+     *
+     * @return true if the staged files were used, false if the uploaded file must be extracted
+     */
+    boolean extractStagedBag(Path path, long diskSpaceMargin, BagContext bagContext) throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
+        var staging = path.resolve(STAGING_DIR);
+
+        if (!fileService.exists(staging)) {
+            return false;
+        }
+
+        // the staged files already take up their space, so only the margin must still be free; if it is not, they are kept for the next attempt
+        log.debug("Checking if adequate diskspace is available");
+        filesystemSpaceVerifier.assertDirHasEnoughDiskspaceMargin(path, diskSpaceMargin);
 
-            if (value <= 0) {
-                throw new InvalidPartialFileException(String.format("Partial file %s has an incorrect extension. It should be a positive sequence number (> 0), but was: %s", fileName, value));
+        Map<String, String> mapping;
+
+        try {
+            var mappingFile = staging.resolve(STAGED_MAPPING_FILE);
+            var files = getDepositFiles(path);
+
+            if (!fileService.exists(mappingFile) || files.size() != 1) {
+                log.debug("Staging directory {} is incomplete or does not belong to a single upload, not using it", staging);
+                return false;
+            }
+
+            mapping = readStagedMapping(mappingFile);
+
+            if (!matchesCentralDirectory(files.get(0), mapping)) {
+                log.warn("Entries extracted while uploading {} differ from its central directory, extracting it again", files.get(0));
+                return false;
             }
 
-            return value;
+            log.debug("Moving staged files from {} to {}", staging, path);
+            verifyPending(bagContext);
+            bagContext.invalidate();
+            var stagedFiles = staging.resolve(STAGED_FILES_DIR);
+
+            for (var directory : fileService.listDirectories(stagedFiles)) {
+                fileService.move(directory, path.resolve(directory.getFileName()));
+            }
+
+            try (var stagedTopLevelFiles = fileService.listFiles(stagedFiles)) {
+                for (var file : stagedTopLevelFiles.collect(Collectors.toList())) {
+                    fileService.move(file, path.resolve(file.getFileName()));
+                }
+            }
         }
-        catch (NumberFormatException e) {
-            throw new InvalidPartialFileException(String.format("Partial file %s has an incorrect extension. Should be a positive sequence number.", fileName));
+        finally {
+            discardStagedBag(path);
         }
+
+        // only renamed files need to be rewritten in the manifests
+        var filePathMapping = mapping.entrySet().stream().filter(e -> !e.getKey().equals(e.getValue())).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+
+        log.debug("Updating bag manifests");
+        verifyPending(bagContext);
+        bagItManager.updateManifests(path, filePathMapping, bagContext);
+
+        verify(path, bagContext);
+        return true;
+    }
+
+    Map<String, String> readStagedMapping(Path mappingFile) throws IOException {
+        var mapping = new LinkedHashMap<String, String>();
+
+        for (var line : fileService.readLines(mappingFile)) {
+            var parts = line.split("\t", 2);
+
+            if (parts.length != 2) {
+                throw new IOException(String.format("Unexpected line in %s: %s", mappingFile, line));
+            }
+
+            mapping.put(parts[0], parts[1]);
+        }
+
+        return mapping;
+    }
+
+    boolean matchesCentralDirectory(Path zipFile, Map<String, String> mapping) {
+        try (var zipIndex = zipService.openZipIndex(zipFile)) {
+            var names = zipService.getFilesInZip(zipIndex).stream().filter(name -> !name.contains("../")).collect(Collectors.toList());
+            return names.size() == mapping.size() && mapping.keySet().containsAll(names);
+        }
+        catch (IOException e) {
+            log.debug("Unable to read central directory of {}", zipFile, e);
+            return false;
+        }
+    }
+
+    void extractOctetStream(Path path, long diskSpaceMargin, boolean filePathMapping, BagContext bagContext)
+        throws InvalidPartialFileException, InvalidDepositException, IOException, NotEnoughDiskSpaceException {
+        // most parts were already appended when they were uploaded, so only the ones that arrived last are left to merge
+        var merged = partialFileMerger.completeMerge(path);
+        bagContext.setUploadDigests(Map.of("MD5", merged.getMd5()));
+
+        log.debug("Extracting merged zip {}", merged.getPath());
+        extractZips(path, diskSpaceMargin, filePathMapping, bagContext);
     }
 
-    void extractZips(Path path, long diskSpaceMargin, boolean filePathMapping) throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
+    int getSequenceNumber(Path path) throws InvalidPartialFileException {
+        return partialFileMerger.getSequenceNumber(path);
+    }
+
+    void extractZips(Path path, long diskSpaceMargin, boolean filePathMapping, BagContext bagContext) throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
         var files = getDepositFiles(path);
 
+        // the context is shared by all archives, so files extracted from an earlier archive need not be read again when the bag is verified after a later one;
+        // without an extraction executor nothing is gained by extracting them together, so each archive is extracted, added to the manifests and verified in turn
+        if (files.size() > 1 && zipService.isConcurrent() && extractConcurrently(files, path, diskSpaceMargin, filePathMapping, bagContext)) {
+            return;
+        }
+
         for (var zipFile : files) {
-            extract(zipFile, path, diskSpaceMargin, filePathMapping);
+            extract(zipFile, path, diskSpaceMargin, filePathMapping, bagContext);
         }
     }
 
-    List<Path> getDepositFiles(Path path) throws IOException {
-        return fileService.listFiles(path).filter(f -> !f.getFileName().equals(Path.of("deposit.properties"))).collect(Collectors.toList());
+    /**
+     * Extracts several archives into the same target at the same time. This is only done if no two archives write to the same file; otherwise the outcome would depend on which archive
+     * happens to be extracted first, and the caller should extract them one by one instead.
+     *
+     * @return true if the archives were extracted, false if they overlap and nothing was done
+     */
+    boolean extractConcurrently(List<Path> zipFiles, Path target, long diskSpaceMargin, boolean filePathMapping, BagContext bagContext)
+        throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
+        var zipIndexes = new LinkedHashMap<ZipIndex, Map<String, String>>();
+
+        try {
+            for (var zipFile : zipFiles) {
+                var zipIndex = zipService.openZipIndex(zipFile);
+                zipIndexes.put(zipIndex, filePathMapping ? generateFilePathMapping(zipIndex, defaultPrefixPattern) : Map.of());
+                bagContext.getPayloadDigests().addAlgorithms(getManifestAlgorithms(zipIndex));
+            }
+
+            if (!haveDistinctTargets(zipIndexes)) {
+                log.debug("Archives in {} contain overlapping entries, extracting them one by one", target);
+                return false;
+            }
+
+            fileService.ensureDirectoriesExist(target);
+
+            log.debug("Checking if adequate diskspace is available");
+            var extractedSize = zipIndexes.keySet().stream().mapToLong(zipService::getExtractedSize).sum();
+
+            try (var reservation = filesystemSpaceVerifier.reserveDiskSpace(target, diskSpaceMargin, extractedSize)) {
+                log.debug("Extracting files {} to target {}", zipFiles, target);
+                verifyPending(bagContext);
+                bagContext.invalidate();
+                zipService.extractZipFilesWithFileMapping(zipIndexes, target, bagContext.getPayloadDigests(), reservation);
+            }
+        }
+        finally {
+            for (var zipIndex : zipIndexes.keySet()) {
+                zipIndex.close();
+            }
+        }
+
+        // manifests are updated in the same order as the archives, just like when extracting them one by one
+        for (var mapping : zipIndexes.values()) {
+            log.debug("Updating bag manifests");
+            verifyPending(bagContext);
+            bagItManager.updateManifests(target, mapping, bagContext);
+
+            verify(target, bagContext);
+        }
+
+        return true;
     }
 
-    void extract(Path zipFile, Path target, long diskSpaceMargin, boolean filePathMapping) throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
+    boolean haveDistinctTargets(Map<ZipIndex, Map<String, String>> zipIndexes) {
+        var targets = new HashSet<String>();
+
+        for (var entry : zipIndexes.entrySet()) {
+            var mapping = entry.getValue();
 
-        if (filePathMapping) {
-            extractWithFilePathMapping(zipFile, target, diskSpaceMargin, generateFilePathMapping(zipFile));
+            for (var name : zipService.getFilesInZip(entry.getKey())) {
+                if (!targets.add(mapping.getOrDefault(name, name))) {
+                    return false;
+                }
+            }
         }
-        else {
-            extractWithFilePathMapping(zipFile, target, diskSpaceMargin, Map.of());
+
+        return true;
+    }
+
+    List<Path> getDepositFiles(Path path) throws IOException {
+        // hidden files are payloads that were never completely received
+        return fileService.listFiles(path)
+            .filter(f -> !f.getFileName().equals(Path.of("deposit.properties")) && !f.getFileName().toString().startsWith("."))
+            .collect(Collectors.toList());
+    }
+
+    void extract(Path zipFile, Path target, long diskSpaceMargin, boolean filePathMapping, BagContext bagContext)
+        throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
+        // the central directory is parsed once and shared by the mapping, the size check and the extraction
+        try (var zipIndex = zipService.openZipIndex(zipFile)) {
+            if (filePathMapping) {
+                extractWithFilePathMapping(zipIndex, zipFile, target, diskSpaceMargin, generateFilePathMapping(zipIndex, defaultPrefixPattern), bagContext);
+            }
+            else {
+                extractWithFilePathMapping(zipIndex, zipFile, target, diskSpaceMargin, Map.of(), bagContext);
+            }
         }
     }
 
     void extractWithFilePathMapping(Path zipFile, Path target, long diskSpaceMargin, Map<String, String> filePathMapping) throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
+        try (var zipIndex = zipService.openZipIndex(zipFile)) {
+            extractWithFilePathMapping(zipIndex, zipFile, target, diskSpaceMargin, filePathMapping, new BagContext());
+        }
+    }
+
+    void extractWithFilePathMapping(ZipIndex zipIndex, Path zipFile, Path target, long diskSpaceMargin, Map<String, String> filePathMapping, BagContext bagContext)
+        throws IOException, InvalidDepositException, NotEnoughDiskSpaceException {
+        bagContext.getPayloadDigests().addAlgorithms(getManifestAlgorithms(zipIndex));
+
         fileService.ensureDirectoriesExist(target);
 
         log.debug("Checking if adequate diskspace is available");
-        var extractedSize = zipService.getExtractedSize(zipFile);
-        filesystemSpaceVerifier.assertDirHasEnoughDiskspaceMarginForFile(zipFile.getParent(), diskSpaceMargin, extractedSize);
-
-        log.debug("Extracting file {} to target {} with file path mapping set to {}", zipFile, target, filePathMapping);
-        zipService.extractZipFileWithFileMapping(zipFile, target, filePathMapping);
+        var extractedSize = zipService.getExtractedSize(zipIndex);
+
+        try (var reservation = filesystemSpaceVerifier.reserveDiskSpace(zipFile.getParent(), diskSpaceMargin, extractedSize)) {
+            log.debug("Extracting file {} to target {} with file path mapping set to {}", zipFile, target, filePathMapping);
+            // any bag parsed before is outdated as soon as the archive is extracted over it
+            verifyPending(bagContext);
+            bagContext.invalidate();
+            zipService.extractZipFileWithFileMapping(zipIndex, target, filePathMapping, bagContext.getPayloadDigests(), reservation);
+        }
 
         log.debug("Updating bag manifests");
-        bagItManager.updateManifests(target, filePathMapping);
+        verifyPending(bagContext);
+        bagItManager.updateManifests(target, filePathMapping, bagContext);
 
-        log.debug("Verifying the bag is valid");
-        bagItManager.verifyBagItRepository(target);
+        verify(target, bagContext);
+    }
+
+    private void verify(Path bagDir, BagContext bagContext) throws InvalidDepositException {
+        if (bagContext.isVerificationDeferred()) {
+            log.debug("Leaving verification of {} to the next step", bagDir);
+            bagContext.setPendingVerification(bagDir);
+        }
+        else {
+            log.debug("Verifying the bag is valid");
+            bagItManager.verifyBagItRepository(bagDir, bagContext);
+        }
+    }
+
+    /**
+     * Verifies the bag that was left to be verified after an earlier archive, before it is changed by the next one. Only the bag as it is after the last archive is verified by the next
+     * step, so a deferred verification checks what the extractor would have checked.
+     */
+    private void verifyPending(BagContext bagContext) throws InvalidDepositException {
+        var bagDir = bagContext.takePendingVerification();
+
+        if (bagDir != null) {
+            log.debug("Verifying the bag is valid");
+            bagItManager.verifyBagItRepository(bagDir, bagContext);
+        }
+    }
+
+    /**
+     * Returns the algorithms of the payload manifests in the top-level directory of the archive, so the payload can be digested with them while it is extracted. Algorithms that are not
+     * supported are left out; files that were not digested are read again during verification.
+     *
+     * @param zipIndex the archive
+     * @return the {@link java.security.MessageDigest} names of the algorithms
+     */
+    Set<String> getManifestAlgorithms(ZipIndex zipIndex) {
+        var algorithms = new HashSet<String>();
+
+        for (var name : zipService.getFilesInZip(zipIndex)) {
+            var matcher = manifestPattern.matcher(name);
+
+            if (matcher.matches()) {
+                try {
+                    algorithms.add(algorithmMapping.getSupportedAlgorithm(matcher.group(1)).getMessageDigestName());
+                }
+                catch (UnsupportedAlgorithmException e) {
+                    log.debug("Manifest {} uses an unsupported algorithm, not calculating its digests during extraction", name);
+                }
+            }
+        }
+
+        return algorithms;
     }
 
     Map<String, String> generateFilePathMapping(Path zipFile) throws IOException {
@@ -152,20 +457,28 @@ public class BagExtractorImpl implements BagExtractor {
     }
 
     Map<String, String> generateFilePathMapping(Path zipFile, Pattern prefixPattern) throws IOException {
-        var fileNames = zipService.getFilesInZip(zipFile);
+        try (var zipIndex = zipService.openZipIndex(zipFile)) {
+            return generateFilePathMapping(zipIndex, prefixPattern);
+        }
+    }
 
-        return fileNames.stream().map(fileName -> {
-            var matcher = prefixPattern.matcher(fileName);
+    Map<String, String> generateFilePathMapping(ZipIndex zipIndex, Pattern prefixPattern) {
+        var fileNames = zipService.getFilesInZip(zipIndex);
 
-            if (matcher.find()) {
-                var prefix = matcher.group();
-                var newPath = Path.of(prefix, UUID.randomUUID().toString()).toString();
+        return fileNames.stream()
+            .filter(fileName -> prefixPattern.matcher(fileName).find())
+            .collect(Collectors.toMap(fileName -> fileName, fileName -> mapFileName(fileName, prefixPattern)));
+    }
 
-                return Map.entry(fileName, newPath);
-            }
+    String mapFileName(String fileName, Pattern prefixPattern) {
+        var matcher = prefixPattern.matcher(fileName);
+
+        if (matcher.find()) {
+            var prefix = matcher.group();
+            return Path.of(prefix, UUID.randomUUID().toString()).toString();
+        }
 
-            return null;
-        }).filter(Objects::nonNull).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return fileName;
     }
 
     @Override
@@ -25,9 +25,32 @@ public interface BagItManager {
 
     BagItMetaData getBagItMetaData(Path path, String depositId) throws InvalidDepositException;
 
+    BagItMetaData getBagItMetaData(Path path, String depositId, BagContext bagContext) throws InvalidDepositException;
+
     void updateManifests(Path path, Map<String, String> filePathMapping) throws IOException, InvalidDepositException;
 
+    /**
+     * Rewrites the manifests for the file path mapping, invalidating the parsed bag in the context if anything is rewritten.
+     *
+     * @param path            the directory containing the bag
+     * @param filePathMapping the mapping from original to new file paths
+     * @param bagContext      the context of the current finalization
+     * @throws IOException             if the manifests could not be rewritten
+     * @throws InvalidDepositException if the directory does not contain exactly one bag
+     */
+    void updateManifests(Path path, Map<String, String> filePathMapping, BagContext bagContext) throws IOException, InvalidDepositException;
+
     void verifyBagItRepository(Path path) throws InvalidDepositException;
 
+    /**
+     * Verifies the bag like {@link #verifyBagItRepository(Path)}, but uses the bag parsed by earlier steps if it is still valid, and compares the payload manifests with the digests that
+     * were calculated while the payload was written, instead of reading the payload files again. Files without a digest for the algorithm of a manifest are still read.
+     *
+     * @param path       the directory containing the bag
+     * @param bagContext the context of the current finalization
+     * @throws InvalidDepositException if the bag is incomplete or invalid
+     */
+    void verifyBagItRepository(Path path, BagContext bagContext) throws InvalidDepositException;
+
     Path getBagDir(Path path) throws IOException, InvalidDepositException;
 }
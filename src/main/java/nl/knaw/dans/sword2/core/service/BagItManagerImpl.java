@@ -16,11 +16,12 @@
 package nl.knaw.dans.sword2.core.service;
 
 import gov.loc.repository.bagit.domain.Bag;
+import gov.loc.repository.bagit.domain.Manifest;
+import gov.loc.repository.bagit.exceptions.CorruptChecksumException;
 import gov.loc.repository.bagit.exceptions.InvalidBagitFileFormatException;
 import gov.loc.repository.bagit.exceptions.MaliciousPathException;
 import gov.loc.repository.bagit.exceptions.UnparsableVersionException;
 import gov.loc.repository.bagit.exceptions.UnsupportedAlgorithmException;
-import gov.loc.repository.bagit.reader.BagReader;
 import gov.loc.repository.bagit.verify.BagVerifier;
 import gov.loc.repository.bagit.writer.ManifestWriter;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
@@ -30,27 +31,60 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class BagItManagerImpl implements BagItManager {
     private static final Logger log = LoggerFactory.getLogger(BagItManagerImpl.class);
 
     private final FileService fileService;
     private final ChecksumCalculator checksumCalculator;
+    private final ExecutorService verificationExecutor;
 
     public BagItManagerImpl(FileService fileService, ChecksumCalculator checksumCalculator) {
+        this(fileService, checksumCalculator, null);
+    }
+
+    /**
+     * Creates a bag manager that hashes files on a shared executor, so the number of files hashed at the same time is capped across all verifications. The executor is never shut down by
+     * this class. If it is null, every verification creates its own.
+     *
+     * @param fileService          the file service
+     * @param checksumCalculator   the checksum calculator
+     * @param verificationExecutor the executor to hash files on, or null
+     */
+    public BagItManagerImpl(FileService fileService, ChecksumCalculator checksumCalculator, ExecutorService verificationExecutor) {
         this.fileService = fileService;
         this.checksumCalculator = checksumCalculator;
+        this.verificationExecutor = verificationExecutor;
     }
 
     @Override
     public BagItMetaData getBagItMetaData(Path path, String depositId) throws InvalidDepositException {
+        return getBagItMetaData(path, depositId, new BagContext());
+    }
+
+    @Override
+    public BagItMetaData getBagItMetaData(Path path, String depositId, BagContext bagContext) throws InvalidDepositException {
         try {
-            var bag = new BagReader().read(path);
+            var bag = bagContext.getBag(path);
             var metadata = new BagItMetaData();
 
             var swordToken = bag.getMetadata().get("Is-Version-Of");
@@ -88,28 +122,28 @@ public class BagItManagerImpl implements BagItManager {
     }
 
     List<Pair<String, String>> parseManifestFile(Path path, Map<String, String> filePathMapping) throws IOException {
-        return fileService.readLines(path).stream().map(line -> line.split("\\s+", 2)).filter(line -> line.length == 2).map(line -> Pair.of(line[0], line[1]))
-            .map(item -> Pair.of(item.getKey(), filePathMapping.getOrDefault(item.getValue(), item.getValue()))).collect(Collectors.toList());
+        return parseManifestLines(fileService.readLines(path).stream(), filePathMapping).collect(Collectors.toList());
     }
 
-    String formatFileOutput(Pair<String, String> pair) {
-        return String.format("%s  %s", pair.getKey(), pair.getValue());
+    Stream<Pair<String, String>> parseManifestLines(Stream<String> lines, Map<String, String> filePathMapping) {
+        return lines.map(line -> line.split("\\s+", 2)).filter(line -> line.length == 2).map(line -> Pair.of(line[0], line[1]))
+            .map(item -> Pair.of(item.getKey(), filePathMapping.getOrDefault(item.getValue(), item.getValue())));
     }
 
-    Bag getBag(Path path) throws MaliciousPathException, UnparsableVersionException, UnsupportedAlgorithmException, InvalidBagitFileFormatException, IOException {
-        return new BagReader().read(path);
+    String formatFileOutput(Pair<String, String> pair) {
+        return String.format("%s  %s", pair.getKey(), pair.getValue());
     }
 
     Path writeFilePathMapping(Path bagDir, Map<String, String> filePathMapping) throws IOException, InvalidDepositException {
         var output = bagDir.resolve("original-filepaths.txt");
 
-        var content = filePathMapping.entrySet().stream().map(entry -> {
+        var lines = filePathMapping.entrySet().stream().map(entry -> {
             var originalName = entry.getKey();
             var newName = entry.getValue();
             return String.format("%s  %s", newName, originalName);
-        }).collect(Collectors.joining("\n"));
+        });
 
-        return fileService.writeContentToFile(output, content);
+        return fileService.writeLinesAtomically(output, lines);
     }
 
     Map<String, String> createRelativeFilePathMapping(Path bagDir, Map<String, String> filePathMapping) {
@@ -128,6 +162,11 @@ public class BagItManagerImpl implements BagItManager {
 
     @Override
     public void updateManifests(Path path, Map<String, String> filePathMapping) throws IOException, InvalidDepositException {
+        updateManifests(path, filePathMapping, new BagContext());
+    }
+
+    @Override
+    public void updateManifests(Path path, Map<String, String> filePathMapping, BagContext bagContext) throws IOException, InvalidDepositException {
         if (filePathMapping.isEmpty()) {
             log.debug("No file path mapping entries, not renaming payload manifest entries");
             return;
@@ -136,29 +175,60 @@ public class BagItManagerImpl implements BagItManager {
         var bagDir = getBagDir(path);
         var relativeFilePathMapping = createRelativeFilePathMapping(bagDir, filePathMapping);
 
+        // the tag files as extracted; tag manifest entries of files that are still the same afterwards need not be hashed again
+        var unchangedTagFiles = fingerprintTagFiles(bagDir);
+
         // write a file with file path mapping
         var originalFilePaths = writeFilePathMapping(bagDir, relativeFilePathMapping);
+        unchangedTagFiles.remove(normalize(originalFilePaths));
 
         // rewrite the manifest files to reference the renamed files
-        writePayloadManifestFiles(bagDir, relativeFilePathMapping);
+        bagContext.invalidate();
+        for (var manifestFile : writePayloadManifestFiles(bagDir, relativeFilePathMapping)) {
+            unchangedTagFiles.remove(normalize(manifestFile));
+        }
 
         // rewrite the tag manifest files
-        writeTagManifestFiles(bagDir, originalFilePaths);
+        writeTagManifestFiles(bagDir, bagContext, unchangedTagFiles, originalFilePaths);
     }
 
     @Override
     public void verifyBagItRepository(Path path) throws InvalidDepositException {
+        verifyBagItRepository(path, new BagContext());
+    }
+
+    @Override
+    public void verifyBagItRepository(Path path, BagContext bagContext) throws InvalidDepositException {
         try {
             var bagDir = getBagDir(path);
-            var bag = getBag(bagDir);
+            var bag = bagContext.getBag(bagDir);
+            var payloadDigests = bagContext.getPayloadDigests();
             var ignoreHiddenFiles = true;
-            var verifier = new BagVerifier();
+            var verifier = createBagVerifier();
+
+            try {
+                log.trace("Verifying bag is complete on path {}", bagDir);
+                verifier.isComplete(bag, ignoreHiddenFiles);
 
-            log.trace("Verifying bag is complete on path {}", bagDir);
-            verifier.isComplete(bag, ignoreHiddenFiles);
+                if (payloadDigests.isEmpty()) {
+                    log.trace("Verifying bag is valid on path {}", bagDir);
+                    verifier.isValid(bag, ignoreHiddenFiles);
+                    return;
+                }
+            }
+            finally {
+                closeBagVerifier(verifier);
+            }
 
-            log.trace("Verifying bag is valid on path {}", bagDir);
-            verifier.isValid(bag, ignoreHiddenFiles);
+            log.trace("Verifying bag is valid on path {} using the digests calculated during extraction", bagDir);
+            for (var manifest : bag.getPayLoadManifests()) {
+                verifyManifest(manifest, payloadDigests);
+            }
+
+            // tag files may have been rewritten after extraction, so these are always read again
+            for (var manifest : bag.getTagManifests()) {
+                verifyManifest(manifest, new PayloadDigests());
+            }
         }
         catch (Exception e) {
             // not only the exception message (e.g. a file path) but also the exception class (e.g. FileNotFoundException)
@@ -166,22 +236,170 @@ public class BagItManagerImpl implements BagItManager {
         }
     }
 
-    void writePayloadManifestFiles(Path bagDir, Map<String, String> filePathMapping) throws IOException {
+    BagVerifier createBagVerifier() {
+        return verificationExecutor != null ? new BagVerifier(verificationExecutor) : new BagVerifier();
+    }
+
+    void closeBagVerifier(BagVerifier verifier) {
+        // closing a verifier shuts down its executor, so only a verifier with an executor of its own is closed, not one on the shared executor
+        if (verificationExecutor == null) {
+            verifier.close();
+        }
+    }
+
+    void verifyManifest(Manifest manifest, PayloadDigests payloadDigests) throws CorruptChecksumException, IOException, NoSuchAlgorithmException, InterruptedException {
+        var algorithm = manifest.getAlgorithm().getMessageDigestName();
+        var checks = new ArrayList<Future<Void>>();
+
+        try {
+            for (var entry : manifest.getFileToChecksumMap().entrySet()) {
+                var file = entry.getKey();
+                var expected = entry.getValue();
+                var actual = payloadDigests.get(file, algorithm);
+
+                if (actual != null) {
+                    assertChecksum(file, algorithm, expected, actual);
+                }
+                else if (verificationExecutor == null) {
+                    assertChecksum(file, algorithm, expected, checksumCalculator.calculateChecksum(file, algorithm));
+                }
+                else {
+                    checks.add(verificationExecutor.submit(() -> {
+                        assertChecksum(file, algorithm, expected, checksumCalculator.calculateChecksum(file, algorithm));
+                        return null;
+                    }));
+                }
+            }
+
+            for (var check : checks) {
+                awaitCheck(check);
+            }
+        }
+        finally {
+            checks.forEach(check -> check.cancel(true));
+        }
+    }
+
+    private void assertChecksum(Path file, String algorithm, String expected, String actual) throws CorruptChecksumException {
+        if (!actual.equalsIgnoreCase(expected)) {
+            throw new CorruptChecksumException("File [{}] is suppose to have a [{}] hash of [{}] but was computed [{}].", file, algorithm, expected, actual);
+        }
+    }
+
+    private void awaitCheck(Future<Void> check) throws CorruptChecksumException, IOException, NoSuchAlgorithmException, InterruptedException {
+        try {
+            check.get();
+        }
+        catch (ExecutionException e) {
+            var cause = e.getCause();
+
+            if (cause instanceof CorruptChecksumException) {
+                throw (CorruptChecksumException) cause;
+            }
+            else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+
+            throw new IOException("Unable to calculate checksum", cause);
+        }
+    }
+
+    List<Path> writePayloadManifestFiles(Path bagDir, Map<String, String> filePathMapping) throws IOException {
         var files = getManifestFiles(bagDir);
 
         for (var file : files) {
-            var fileList = parseManifestFile(file, filePathMapping);
+            log.trace("Writing new payload manifest to path {}", file);
+
+            // streamed line by line, so the memory used does not depend on the number of files in the bag
+            try (var lines = fileService.streamLines(file)) {
+                fileService.writeLinesAtomically(file, parseManifestLines(lines, filePathMapping).map(this::formatFileOutput));
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Records the size and modification time of every file in the bag outside the payload directory.
+     *
+     * @param bagDir the bag directory
+     * @return the fingerprints, by absolute, normalized path
+     * @throws IOException if the bag directory could not be read
+     */
+    Map<Path, FileFingerprint> fingerprintTagFiles(Path bagDir) throws IOException {
+        var payloadDir = bagDir.resolve("data");
+        var fingerprints = new HashMap<Path, FileFingerprint>();
+
+        Files.walkFileTree(bagDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.equals(payloadDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    fingerprints.put(normalize(file), new FileFingerprint(attrs));
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return fingerprints;
+    }
 
-            var outputContent = fileList.stream().map(this::formatFileOutput).collect(Collectors.joining("\n"));
+    boolean isUnchanged(Path file, Map<Path, FileFingerprint> fingerprints) {
+        var fingerprint = fingerprints.get(normalize(file));
 
-            log.trace("Writing new payload manifest to path {}: {}", file, outputContent);
-            fileService.writeContentToFile(file, outputContent);
+        if (fingerprint == null) {
+            return false;
+        }
+
+        try {
+            return fingerprint.equals(new FileFingerprint(Files.readAttributes(file, BasicFileAttributes.class)));
         }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
     }
 
-    void writeTagManifestFiles(Path path, Path... extraFiles) {
+    /**
+     * Rewrites the tag manifests, adding the extra files. Files whose fingerprint is still the same keep the checksums already in the tag manifests; all other files, and the extra files, are
+     * hashed again.
+     */
+    void writeTagManifestFiles(Path path, BagContext bagContext, Map<Path, FileFingerprint> unchangedFiles, Path... extraFiles) {
         try {
-            var bag = getBag(path);
+            // the tag manifests are updated in place, so the parsed bag stays in sync with what is written to disk
+            var bag = bagContext.getBag(path);
+
+            var algorithms = bag.getTagManifests().stream().map(manifest -> manifest.getAlgorithm().getMessageDigestName()).collect(Collectors.toSet());
+            var changedFiles = new LinkedHashSet<Path>();
+
+            for (var manifest : bag.getTagManifests()) {
+                for (var file : manifest.getFileToChecksumMap().keySet()) {
+                    if (!isUnchanged(file, unchangedFiles)) {
+                        changedFiles.add(file);
+                    }
+                }
+            }
+
+            changedFiles.addAll(Arrays.asList(extraFiles));
+            log.debug("Rehashing {} changed tag file(s) in {}", changedFiles.size(), path);
+
+            // every file is read once for all tag manifest algorithms, instead of once per algorithm
+            var checksums = new HashMap<Path, Map<String, String>>();
+
+            for (var file : changedFiles) {
+                checksums.put(file, checksumCalculator.calculateChecksums(file, algorithms));
+            }
 
             for (var manifest : bag.getTagManifests()) {
                 var map = manifest.getFileToChecksumMap();
@@ -189,11 +407,12 @@ public class BagItManagerImpl implements BagItManager {
                 var algorithm = manifest.getAlgorithm().getMessageDigestName();
 
                 for (var entry : map.entrySet()) {
-                    newMap.put(entry.getKey(), checksumCalculator.calculateChecksum(entry.getKey(), algorithm));
+                    var checksum = changedFiles.contains(entry.getKey()) ? checksums.get(entry.getKey()).get(algorithm) : entry.getValue();
+                    newMap.put(entry.getKey(), checksum);
                 }
 
                 for (var entry : extraFiles) {
-                    newMap.put(entry, checksumCalculator.calculateChecksum(entry, algorithm));
+                    newMap.put(entry, checksums.get(entry).get(algorithm));
                 }
 
                 manifest.setFileToChecksumMap(newMap);
@@ -203,10 +422,38 @@ public class BagItManagerImpl implements BagItManager {
             ManifestWriter.writeTagManifests(bag.getTagManifests(), path, path, StandardCharsets.UTF_8);
         }
         catch (Exception e) {
+            bagContext.invalidate();
             log.error("Unable to get bag", e);
         }
     }
 
+    static final class FileFingerprint {
+        private final long size;
+        private final FileTime lastModifiedTime;
+
+        FileFingerprint(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.lastModifiedTime = attributes.lastModifiedTime();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            var that = (FileFingerprint) o;
+            return size == that.size && lastModifiedTime.equals(that.lastModifiedTime);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, lastModifiedTime);
+        }
+    }
+
     String getMetadata(Bag bag, String key, String defaultValue) {
         var data = bag.getMetadata().get(key);
 
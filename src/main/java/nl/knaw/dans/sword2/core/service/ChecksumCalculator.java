@@ -19,8 +19,21 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
 
 public interface ChecksumCalculator {
 
     String calculateChecksum(Path path, String algorithm) throws NoSuchAlgorithmException, IOException;
+
+    /**
+     * Calculates the checksums of a file for several algorithms, reading the file only once.
+     *
+     * @param path       the file
+     * @param algorithms the {@link MessageDigest} names of the algorithms
+     * @return the lower case hex checksums, by algorithm
+     * @throws NoSuchAlgorithmException if one of the algorithms is not supported
+     * @throws IOException              if the file could not be read
+     */
+    Map<String, String> calculateChecksums(Path path, Set<String> algorithms) throws NoSuchAlgorithmException, IOException;
 }
@@ -21,27 +21,69 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class ChecksumCalculatorImpl implements
     ChecksumCalculator {
 
+    // large enough to keep the number of reads low on big payload files
+    static final int BUFFER_SIZE = 256 * 1024;
+    // buffers are borrowed for one file and given back, so they are reused whatever kind of thread calculates the checksums; a virtual thread would never reuse a buffer
+    // kept per thread. More buffers are only allocated while more files than this are read at the same time, and those are dropped afterwards
+    static final int MAX_POOLED_BUFFERS = 16;
+    final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
     @Override
     public String calculateChecksum(Path path, String algorithm)
         throws NoSuchAlgorithmException, IOException {
 
-        var md = MessageDigest.getInstance(algorithm);
-        var is = Files.newInputStream(path);
-        var buf = new byte[1024 * 8];
+        return calculateChecksums(path, Set.of(algorithm)).get(algorithm);
+    }
+
+    @Override
+    public Map<String, String> calculateChecksums(Path path, Set<String> algorithms)
+        throws NoSuchAlgorithmException, IOException {
+
+        var digests = new LinkedHashMap<String, MessageDigest>();
+
+        for (var algorithm : algorithms) {
+            digests.put(algorithm, MessageDigest.getInstance(algorithm));
+        }
+
+        // a heap buffer rather than a mapped one: MessageDigest copies direct buffers into a small array before hashing them
+        var buf = borrowBuffer();
+
+        try (var is = Files.newInputStream(path)) {
+            var bytesRead = 0;
+
+            while ((bytesRead = is.read(buf)) != -1) {
+                for (var md : digests.values()) {
+                    md.update(buf, 0, bytesRead);
+                }
+            }
+        }
+        finally {
+            buffers.offer(buf);
+        }
 
-        var bytesRead = 0;
+        var result = new HashMap<String, String>();
 
-        while ((bytesRead = is.read(buf)) != -1) {
-            md.update(buf, 0, bytesRead);
+        for (var digest : digests.entrySet()) {
+            result.put(digest.getKey(), DatatypeConverter.printHexBinary(digest.getValue().digest())
+                .toLowerCase(Locale.ROOT));
         }
 
-        return DatatypeConverter.printHexBinary(md.digest())
-            .toLowerCase(Locale.ROOT);
+        return result;
     }
-}
 
+    private byte[] borrowBuffer() {
+        var buf = buffers.poll();
+        return buf != null ? buf : new byte[BUFFER_SIZE];
+    }
+}
@@ -20,6 +20,7 @@ import nl.knaw.dans.sword2.core.auth.Depositor;
 import nl.knaw.dans.sword2.core.exceptions.CollectionNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositReadOnlyException;
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
 import nl.knaw.dans.sword2.core.exceptions.HashMismatchException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidContentTypeException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
@@ -31,6 +32,8 @@ import javax.ws.rs.core.MediaType;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 public interface DepositHandler {
 
@@ -40,16 +43,53 @@ public interface DepositHandler {
 
     List<Deposit> getOpenDeposits();
 
-    Deposit createDepositWithPayload(String collectionId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, String packaging, String filename, long filesize,
-        InputStream inputStream)
-        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, HashMismatchException, InvalidDepositException, InvalidSupportedBagPackagingException, InvalidContentTypeException;
+    /**
+     * Stores the payload as a new deposit. The MD5 of the payload must match the hash; any other expected digests must match as well. A deposit that is not in progress is refused with a
+     * {@link FinalizingQueueFullException} before the payload is read if there is no room for it in the finalization backlog.
+     */
+    Deposit createDepositWithPayload(String collectionId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, Map<String, String> expectedDigests, String packaging,
+        String filename, long filesize, InputStream inputStream)
+        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, HashMismatchException, InvalidDepositException, InvalidSupportedBagPackagingException, InvalidContentTypeException,
+        FinalizingQueueFullException;
 
-    Deposit addPayloadToDeposit(String depositId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, String packaging, String filename, long filesize,
-        InputStream inputStream)
-        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, HashMismatchException, DepositNotFoundException, DepositReadOnlyException, InvalidDepositException;
+    Deposit addPayloadToDeposit(String depositId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, Map<String, String> expectedDigests, String packaging,
+        String filename, long filesize, InputStream inputStream)
+        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, HashMismatchException, DepositNotFoundException, DepositReadOnlyException, InvalidDepositException,
+        FinalizingQueueFullException;
+
+    /**
+     * Returns whether an upload is extracted while it is received. Only {@link #createDepositWithPayload(String, Depositor, boolean, MediaType, String, Map, String, String, long, InputStream)}
+     * does so, because the archive is read by a thread that waits for the data; the asynchronous methods leave it to the finalization.
+     */
+    boolean isExtractedWhileUploading(boolean inProgress, MediaType contentType);
+
+    /**
+     * Like {@link #createDepositWithPayload(String, Depositor, boolean, MediaType, String, Map, String, String, long, InputStream)}, but the payload is written as it arrives. The checks
+     * that do not need the payload are done before this method returns; the returned stage completes with the deposit, or exceptionally with a {@link java.util.concurrent.CompletionException}
+     * that has the cause the synchronous method would have thrown.
+     */
+    CompletionStage<Deposit> createDepositWithPayloadAsync(String collectionId, Depositor depositor, boolean inProgress, MediaType contentType, String hash,
+        Map<String, String> expectedDigests, String packaging, String filename, long filesize, PayloadSource payloadSource)
+        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, FinalizingQueueFullException;
+
+    /**
+     * Like {@link #addPayloadToDeposit(String, Depositor, boolean, MediaType, String, Map, String, String, long, InputStream)}, but the payload is written as it arrives, as in
+     * {@link #createDepositWithPayloadAsync(String, Depositor, boolean, MediaType, String, Map, String, String, long, PayloadSource)}.
+     */
+    CompletionStage<Deposit> addPayloadToDepositAsync(String depositId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, Map<String, String> expectedDigests,
+        String packaging, String filename, long filesize, PayloadSource payloadSource)
+        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, DepositNotFoundException, DepositReadOnlyException, InvalidDepositException,
+        FinalizingQueueFullException;
 
     Deposit finalizeDeposit(String depositId)
         throws DepositNotFoundException, InvalidDepositException, InvalidPartialFileException, CollectionNotFoundException, IOException, NotEnoughDiskSpaceException;
 
+    /**
+     * Like {@link #finalizeDeposit(String)}, but the steps after setting the deposit to FINALIZING may run on other threads. The state of the deposit is updated on failure just as by the
+     * synchronous method. The returned stage completes with the deposit, or exceptionally with a {@link java.util.concurrent.CompletionException} that has the cause the synchronous method
+     * would have thrown.
+     */
+    CompletionStage<Deposit> finalizeDepositAsync(String depositId);
+
 }
 
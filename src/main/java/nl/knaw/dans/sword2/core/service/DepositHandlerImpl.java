@@ -23,6 +23,7 @@ import nl.knaw.dans.sword2.core.config.UriRegistry;
 import nl.knaw.dans.sword2.core.exceptions.CollectionNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositReadOnlyException;
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
 import nl.knaw.dans.sword2.core.exceptions.HashMismatchException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidContentTypeException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
@@ -30,21 +31,30 @@ import nl.knaw.dans.sword2.core.exceptions.InvalidPartialFileException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidSupportedBagPackagingException;
 import nl.knaw.dans.sword2.core.exceptions.NotEnoughDiskSpaceException;
 import nl.knaw.dans.sword2.core.finalizer.DepositFinalizerEvent;
+import nl.knaw.dans.sword2.core.finalizer.FinalizationAdmission;
+import nl.knaw.dans.sword2.core.finalizer.FinalizationJournal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.MediaType;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -65,71 +75,274 @@ public class DepositHandlerImpl implements DepositHandler {
     private final BagItManager bagItManager;
     private final FilesystemSpaceVerifier filesystemSpaceVerifier;
     private final String emailAddress;
-
-    public DepositHandlerImpl(BagExtractor bagExtractor, FileService fileService, DepositPropertiesManager depositPropertiesManager, CollectionManager collectionManager,
-        UserManager userManager, BlockingQueue<DepositFinalizerEvent> depositFinalizerQueue, BagItManager bagItManager, FilesystemSpaceVerifier filesystemSpaceVerifier, String emailAddress) {
-        this.bagExtractor = bagExtractor;
-        this.fileService = fileService;
-        this.depositPropertiesManager = depositPropertiesManager;
-        this.collectionManager = collectionManager;
-        this.userManager = userManager;
-        this.depositFinalizerQueue = depositFinalizerQueue;
-        this.bagItManager = bagItManager;
-        this.filesystemSpaceVerifier = filesystemSpaceVerifier;
-        this.emailAddress = emailAddress;
+    private final PartialFileMerger partialFileMerger;
+    private final Executor mergeExecutor;
+    private final boolean extractWhileUploading;
+    private final Set<String> digestAlgorithms;
+    private final FinalizationPipeline finalizationPipeline;
+    private final FinalizationAdmission finalizationAdmission;
+    private final FinalizationJournal finalizationJournal;
+    private final DepositLocationIndex depositLocationIndex;
+
+    private DepositHandlerImpl(Builder builder) {
+        this.bagExtractor = builder.bagExtractor;
+        this.fileService = builder.fileService;
+        this.depositPropertiesManager = builder.depositPropertiesManager;
+        this.collectionManager = builder.collectionManager;
+        this.userManager = builder.userManager;
+        this.depositFinalizerQueue = builder.depositFinalizerQueue;
+        this.bagItManager = builder.bagItManager;
+        this.filesystemSpaceVerifier = builder.filesystemSpaceVerifier;
+        this.emailAddress = builder.emailAddress;
+        this.partialFileMerger = builder.partialFileMerger != null ? builder.partialFileMerger : new PartialFileMergerImpl(builder.fileService);
+        this.mergeExecutor = builder.mergeExecutor;
+        this.extractWhileUploading = builder.extractWhileUploading;
+        this.digestAlgorithms = Set.copyOf(builder.digestAlgorithms);
+        this.finalizationPipeline = builder.finalizationPipeline;
+        this.finalizationAdmission = builder.finalizationAdmission;
+        this.finalizationJournal = builder.finalizationJournal;
+        this.depositLocationIndex = builder.depositLocationIndex;
     }
 
     @Override
-    public Deposit createDepositWithPayload(String collectionId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, String packaging, String filename, long filesize,
-        InputStream inputStream) throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, HashMismatchException, InvalidDepositException, InvalidSupportedBagPackagingException,
-        InvalidContentTypeException {
+    public Deposit createDepositWithPayload(String collectionId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, Map<String, String> expectedDigests,
+        String packaging, String filename, long filesize, InputStream inputStream) throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, HashMismatchException, InvalidDepositException, InvalidSupportedBagPackagingException,
+        InvalidContentTypeException, FinalizingQueueFullException {
 
         var id = UUID.randomUUID().toString();
         var collection = collectionManager.getCollectionByPath(collectionId, depositor);
+        checkFinalizationCapacity(inProgress);
         var path = collection.getUploads().resolve(id).resolve(filename);
+        var uploadingPath = getUploadingPath(path);
         var depositFolder = path.getParent();
 
-        try {
-            // make sure the upload directory exists
-            fileService.ensureDirectoriesExist(collection.getUploads());
-            filesystemSpaceVerifier.assertDirHasEnoughDiskspaceMarginForFile(collection.getUploads(), collection.getDiskSpaceMargin(), filesize);
+        // make sure the upload directory exists
+        fileService.ensureDirectoriesExist(collection.getUploads());
 
-            // check if the hash matches the one provided by the user
-            var calculatedHash = fileService.copyFileWithMD5Hash(inputStream, path);
+        // the space stays reserved until the file is written, so concurrent uploads cannot count on the same free space
+        var reservation = filesystemSpaceVerifier.reserveDiskSpace(collection.getUploads(), collection.getDiskSpaceMargin(), filesize);
 
-            if (hash == null || !hash.equals(calculatedHash)) {
-                throw new HashMismatchException(String.format("Hash %s does not match expected hash %s", calculatedHash, hash));
+        try {
+            Map<String, String> digests;
+
+            try (reservation) {
+                // check if the hash matches the one provided by the user
+                digests = fileService.copyFileWithDigests(trackWrites(reservation, inputStream), uploadingPath, getDigestAlgorithms(expectedDigests), isExtractedWhileUploading(inProgress, contentType)
+                    ? stream -> bagExtractor.stageBag(stream, depositFolder, Boolean.TRUE.equals(depositor.getFilepathMapping()), collection.getDiskSpaceMargin(), filesize)
+                    : null);
             }
 
-            checkContentError(contentType, packaging);
+            return saveNewDeposit(id, collection, depositor, inProgress, contentType, hash, expectedDigests, packaging, filename, filesize, uploadingPath, digests);
+        }
+        catch (HashMismatchException | IOException | InvalidDepositException | InvalidSupportedBagPackagingException | InvalidContentTypeException e) {
+            // cleanup files
+            cleanupFile(uploadingPath);
+            cleanupFile(path);
+            discardReservation(reservation);
+            bagExtractor.discardStagedBag(depositFolder);
+            throw e;
+        }
+    }
 
-            var deposit = new Deposit();
-            deposit.setId(id);
-            deposit.setCollectionId(collection.getName());
-            deposit.setInProgress(inProgress);
-            deposit.setFilename(filename);
-            deposit.setMd5(calculatedHash);
-            deposit.setPackaging(packaging);
-            deposit.setContentLength(filesize);
-            deposit.setDepositor(depositor.getName());
-            deposit.setState(DepositState.DRAFT);
-            deposit.setStateDescription("Deposit is open for additional data");
-            deposit.setCreated(OffsetDateTime.now());
-            deposit.setMimeType(contentType.toString());
+    @Override
+    public CompletionStage<Deposit> createDepositWithPayloadAsync(String collectionId, Depositor depositor, boolean inProgress, MediaType contentType, String hash,
+        Map<String, String> expectedDigests, String packaging, String filename, long filesize, PayloadSource payloadSource)
+        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, FinalizingQueueFullException {
 
-            // now store these properties
-            // set state to draft
-            depositPropertiesManager.saveProperties(depositFolder, deposit);
+        var id = UUID.randomUUID().toString();
+        var collection = collectionManager.getCollectionByPath(collectionId, depositor);
+        checkFinalizationCapacity(inProgress);
+        var path = collection.getUploads().resolve(id).resolve(filename);
+        var uploadingPath = getUploadingPath(path);
 
-            startFinalizingDeposit(deposit);
+        // make sure the upload directory exists
+        fileService.ensureDirectoriesExist(collection.getUploads());
+        var reservation = filesystemSpaceVerifier.reserveDiskSpace(collection.getUploads(), collection.getDiskSpaceMargin(), filesize);
 
-            return deposit;
+        // not extracted while uploading, because the zip file would have to be read by a thread that waits for the data; see isExtractedWhileUploading
+        return receivePayload(payloadSource, uploadingPath, getDigestAlgorithms(expectedDigests), reservation).thenApply(digests -> {
+            try {
+                return saveNewDeposit(id, collection, depositor, inProgress, contentType, hash, expectedDigests, packaging, filename, filesize, uploadingPath, digests);
+            }
+            catch (HashMismatchException | IOException | InvalidDepositException | InvalidSupportedBagPackagingException | InvalidContentTypeException e) {
+                cleanupFile(uploadingPath);
+                cleanupFile(path);
+                discardReservation(reservation);
+                throw new CompletionException(e);
+            }
+            catch (CollectionNotFoundException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Writes the payload to the file as it arrives. The reservation is closed when the payload is complete, and the file is removed and the reservation discarded if it failed.
+     */
+    CompletionStage<Map<String, String>> receivePayload(PayloadSource payloadSource, Path path, Set<String> algorithms, DiskSpaceReservation reservation) throws IOException {
+        DigestingOutputStream output;
+
+        try {
+            output = fileService.newDigestingOutputStream(path, algorithms);
         }
-        catch (HashMismatchException | IOException | InvalidDepositException | InvalidSupportedBagPackagingException | InvalidContentTypeException e) {
-            // cleanup files
-            cleanupFile(path);
+        catch (IOException e) {
+            closeReservation(reservation);
             throw e;
         }
+
+        CompletionStage<Void> transfer;
+
+        try {
+            transfer = payloadSource.transferTo(trackWrites(reservation, output));
+        }
+        catch (RuntimeException e) {
+            transfer = CompletableFuture.failedFuture(e);
+        }
+
+        return transfer.handle((result, error) -> {
+            var failure = error;
+
+            try {
+                output.close();
+            }
+            catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            finally {
+                closeReservation(reservation);
+            }
+
+            if (failure != null) {
+                log.warn("Unable to receive the payload for {}", path, failure);
+                cleanupFile(path);
+                discardReservation(reservation);
+                throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+            }
+
+            return output.getDigests();
+        });
+    }
+
+    private void closeReservation(DiskSpaceReservation reservation) {
+        if (reservation != null) {
+            reservation.close();
+        }
+    }
+
+    private void discardReservation(DiskSpaceReservation reservation) {
+        if (reservation != null) {
+            reservation.discard();
+        }
+    }
+
+    private InputStream trackWrites(DiskSpaceReservation reservation, InputStream inputStream) {
+        return reservation != null ? reservation.trackWrites(inputStream) : inputStream;
+    }
+
+    private OutputStream trackWrites(DiskSpaceReservation reservation, OutputStream outputStream) {
+        return reservation != null ? reservation.trackWrites(outputStream) : outputStream;
+    }
+
+    /**
+     * A deposit that is complete goes to the finalizer as soon as its payload is stored, so it is refused up front if the finalizer has more work than it can take. Parts of a deposit that is
+     * still in progress are always accepted.
+     */
+    void checkFinalizationCapacity(boolean inProgress) throws FinalizingQueueFullException {
+        if (!inProgress && finalizationAdmission != null) {
+            finalizationAdmission.checkCapacity();
+        }
+    }
+
+    /**
+     * Returns the hidden file to which a payload is written while it is received. The merger and the extractor ignore hidden files, so they never see a part that is still being written or
+     * that turns out not to match its digests. The name is unique, so a part that is sent twice at the same time does not overwrite itself.
+     */
+    Path getUploadingPath(Path path) {
+        return path.resolveSibling("." + path.getFileName() + "." + UUID.randomUUID() + ".uploading");
+    }
+
+    /**
+     * Gives a payload whose digests were checked its final name, which makes it available to the merger.
+     */
+    void acceptPayload(Path uploadingPath, Path path) throws IOException {
+        fileService.move(uploadingPath, path);
+    }
+
+    Deposit saveNewDeposit(String id, CollectionConfig collection, Depositor depositor, boolean inProgress, MediaType contentType, String hash, Map<String, String> expectedDigests,
+        String packaging, String filename, long filesize, Path uploadingPath, Map<String, String> digests)
+        throws HashMismatchException, InvalidSupportedBagPackagingException, InvalidContentTypeException, CollectionNotFoundException, InvalidDepositException, IOException {
+
+        var calculatedHash = digests.get("MD5");
+
+        checkDigests(hash, expectedDigests, digests);
+
+        checkContentError(contentType, packaging);
+
+        var depositFolder = collection.getUploads().resolve(id);
+        acceptPayload(uploadingPath, depositFolder.resolve(filename));
+
+        var deposit = new Deposit();
+        deposit.setId(id);
+        deposit.setCollectionId(collection.getName());
+        deposit.setInProgress(inProgress);
+        deposit.setFilename(filename);
+        deposit.setMd5(calculatedHash);
+        deposit.setDigests(digests);
+        deposit.setPackaging(packaging);
+        deposit.setContentLength(filesize);
+        deposit.setDepositor(depositor.getName());
+        deposit.setState(DepositState.DRAFT);
+        deposit.setStateDescription("Deposit is open for additional data");
+        deposit.setCreated(OffsetDateTime.now());
+        deposit.setMimeType(contentType.toString());
+
+        // now store these properties
+        // set state to draft
+        depositPropertiesManager.saveProperties(depositFolder, deposit);
+
+        if (depositLocationIndex != null) {
+            depositLocationIndex.put(id, collection.getName(), depositFolder);
+        }
+
+        mergeAvailableParts(deposit, depositFolder);
+        startFinalizingDeposit(deposit);
+
+        return deposit;
+    }
+
+    Set<String> getDigestAlgorithms(Map<String, String> expectedDigests) {
+        var algorithms = new HashSet<>(digestAlgorithms);
+        // Content-MD5 is always checked, and digests sent by the client are checked even if they are not configured
+        algorithms.add("MD5");
+        algorithms.addAll(expectedDigests.keySet());
+        return algorithms;
+    }
+
+    void checkDigests(String hash, Map<String, String> expectedDigests, Map<String, String> digests) throws HashMismatchException {
+        var calculatedHash = digests.get("MD5");
+
+        if (hash == null || !hash.equals(calculatedHash)) {
+            throw new HashMismatchException(String.format("Hash %s does not match expected hash %s", calculatedHash, hash));
+        }
+
+        for (var expected : expectedDigests.entrySet()) {
+            var calculated = digests.get(expected.getKey());
+
+            if (!expected.getValue().equals(calculated)) {
+                throw new HashMismatchException(String.format("%s digest %s does not match expected digest %s", expected.getKey(), calculated, expected.getValue()));
+            }
+        }
+    }
+
+    /**
+     * A complete zip file that is uploaded in one go is extracted while it is received, so finalization only has to verify it. Partial uploads are not, because the parts cannot be read as zip
+     * files on their own.
+     */
+    @Override
+    public boolean isExtractedWhileUploading(boolean inProgress, MediaType contentType) {
+        return extractWhileUploading && !inProgress && "application/zip".equals(contentType.toString());
     }
 
     private void checkContentError(MediaType contentType, String packaging) throws InvalidSupportedBagPackagingException, InvalidContentTypeException {
@@ -153,34 +366,128 @@ public class DepositHandlerImpl implements DepositHandler {
     }
 
     @Override
-    public Deposit addPayloadToDeposit(String depositId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, String packaging, String filename, long filesize,
-        InputStream inputStream)
-        throws IOException, NotEnoughDiskSpaceException, HashMismatchException, DepositNotFoundException, DepositReadOnlyException, CollectionNotFoundException, InvalidDepositException {
+    public Deposit addPayloadToDeposit(String depositId, Depositor depositor, boolean inProgress, MediaType contentType, String hash, Map<String, String> expectedDigests,
+        String packaging, String filename, long filesize, InputStream inputStream)
+        throws IOException, NotEnoughDiskSpaceException, HashMismatchException, DepositNotFoundException, DepositReadOnlyException, CollectionNotFoundException, InvalidDepositException,
+        FinalizingQueueFullException {
 
         var deposit = getDeposit(depositId, depositor);
         var path = deposit.getPath().resolve(filename);
+        var uploadingPath = getUploadingPath(path);
         var collection = collectionManager.getCollectionByName(deposit.getCollectionId());
+        checkFinalizationCapacity(inProgress);
+
+        var reservation = filesystemSpaceVerifier.reserveDiskSpace(path.getParent(), collection.getDiskSpaceMargin(), filesize);
+
+        try {
+            Map<String, String> digests;
+
+            try (reservation) {
+                if (!DepositState.DRAFT.equals(deposit.getState())) {
+                    throw new DepositReadOnlyException(String.format("Deposit id %s is not in DRAFT state.", deposit.getId()));
+                }
+
+                // check if the hash matches the one provided by the user
+                digests = fileService.copyFileWithDigests(trackWrites(reservation, inputStream), uploadingPath, getDigestAlgorithms(expectedDigests), null);
+            }
+
+            return savePayload(deposit, uploadingPath, path, filesize, inProgress, hash, expectedDigests, digests);
+        }
+        catch (HashMismatchException | IOException e) {
+            // a part that was not accepted is removed, so the client can send it again
+            cleanupFile(uploadingPath);
+            discardReservation(reservation);
+            throw e;
+        }
+    }
 
-        filesystemSpaceVerifier.assertDirHasEnoughDiskspaceMarginForFile(path.getParent(), collection.getDiskSpaceMargin(), filesize);
+    @Override
+    public CompletionStage<Deposit> addPayloadToDepositAsync(String depositId, Depositor depositor, boolean inProgress, MediaType contentType, String hash,
+        Map<String, String> expectedDigests, String packaging, String filename, long filesize, PayloadSource payloadSource)
+        throws CollectionNotFoundException, IOException, NotEnoughDiskSpaceException, DepositNotFoundException, DepositReadOnlyException, InvalidDepositException,
+        FinalizingQueueFullException {
+
+        var deposit = getDeposit(depositId, depositor);
+        var path = deposit.getPath().resolve(filename);
+        var collection = collectionManager.getCollectionByName(deposit.getCollectionId());
 
         if (!DepositState.DRAFT.equals(deposit.getState())) {
             throw new DepositReadOnlyException(String.format("Deposit id %s is not in DRAFT state.", deposit.getId()));
         }
 
-        // check if the hash matches the one provided by the user
-        var calculatedHash = fileService.copyFileWithMD5Hash(inputStream, path);
+        checkFinalizationCapacity(inProgress);
 
-        if (hash == null || !hash.equals(calculatedHash)) {
-            throw new HashMismatchException(String.format("Hash %s does not match expected hash %s", calculatedHash, hash));
+        var reservation = filesystemSpaceVerifier.reserveDiskSpace(path.getParent(), collection.getDiskSpaceMargin(), filesize);
+
+        var uploadingPath = getUploadingPath(path);
+
+        return receivePayload(payloadSource, uploadingPath, getDigestAlgorithms(expectedDigests), reservation).thenApply(digests -> {
+            try {
+                return savePayload(deposit, uploadingPath, path, filesize, inProgress, hash, expectedDigests, digests);
+            }
+            catch (HashMismatchException | IOException e) {
+                // a part that was not accepted is removed, so the client can send it again
+                cleanupFile(uploadingPath);
+                discardReservation(reservation);
+                throw new CompletionException(e);
+            }
+            catch (CollectionNotFoundException | InvalidDepositException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    Deposit savePayload(Deposit deposit, Path uploadingPath, Path path, long filesize, boolean inProgress, String hash, Map<String, String> expectedDigests, Map<String, String> digests)
+        throws HashMismatchException, CollectionNotFoundException, InvalidDepositException, IOException {
+
+        checkDigests(hash, expectedDigests, digests);
+        acceptPayload(uploadingPath, path);
+
+        // the total size of the payload, which the finalizer may use to order deposits; a part of unknown size leaves it as it was
+        if (filesize > -1) {
+            deposit.setContentLength(Math.max(deposit.getContentLength(), 0) + filesize);
         }
 
+        // the recorded digests are those of the first upload, which is no longer the whole payload
+        deposit.setDigests(Map.of());
         deposit.setInProgress(inProgress);
         depositPropertiesManager.saveProperties(path.getParent(), deposit);
 
+        mergeAvailableParts(deposit, path.getParent());
         startFinalizingDeposit(deposit);
         return deposit;
     }
 
+    void mergeAvailableParts(Deposit deposit, Path depositFolder) {
+        // once the last part is in, the deposit is finalized, which merges whatever is left
+        if (!"application/octet-stream".equals(deposit.getMimeType()) || !deposit.isInProgress()) {
+            return;
+        }
+
+        if (mergeExecutor == null) {
+            mergeAvailableParts(deposit.getId(), depositFolder);
+            return;
+        }
+
+        // merged after the response is sent, so the request does not wait for the part to be copied
+        try {
+            mergeExecutor.execute(() -> mergeAvailableParts(deposit.getId(), depositFolder));
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Not merging the parts of deposit {} now, the merger is busy", deposit.getId());
+        }
+    }
+
+    private void mergeAvailableParts(String depositId, Path depositFolder) {
+        // a failure here is not fatal, whatever is left is merged with the next part or when the deposit is finalized
+        try {
+            partialFileMerger.mergeAvailableParts(depositFolder);
+        }
+        catch (IOException e) {
+            log.warn("Unable to merge the parts of deposit {} that were uploaded so far", depositId, e);
+        }
+    }
+
     @Override
     public Deposit getDeposit(String depositId, Depositor depositor) throws DepositNotFoundException, InvalidDepositException {
         var deposit = getDeposit(depositId);
@@ -194,42 +501,70 @@ public class DepositHandlerImpl implements DepositHandler {
 
     @Override
     public Deposit getDeposit(String depositId) throws DepositNotFoundException, InvalidDepositException {
-        var collections = collectionManager.getCollections();
+        if (depositLocationIndex != null) {
+            if (depositLocationIndex.isMissing(depositId)) {
+                throw new DepositNotFoundException(String.format("Deposit with id %s could not be found", depositId));
+            }
 
-        for (var collection : collections) {
-            var basePaths = new ArrayList<Path>();
-            basePaths.add(collection.getUploads());
-            basePaths.add(collection.getDeposits());
+            var location = depositLocationIndex.get(depositId);
 
-            if (collection.getDepositTrackingPath() != null) {
-                basePaths.addAll(collection.getDepositTrackingPath());
+            // other services move deposits on without telling the index, so the location is checked before it is used
+            if (location != null) {
+                if (fileService.exists(location.getPath())) {
+                    return readDeposit(location.getPath(), location.getCollectionName());
+                }
+
+                log.debug("Deposit {} is no longer at {}", depositId, location.getPath());
+                // a deposit that was moved in the meantime keeps its new location
+                depositLocationIndex.remove(depositId, location);
             }
+        }
 
-            for (var path : basePaths) {
+        for (var collection : collectionManager.getCollections()) {
+            for (var path : DepositLocationIndex.getBasePaths(collection)) {
                 var depositPath = path.resolve(depositId);
                 var exists = fileService.exists(depositPath);
 
                 log.trace("Checking if {} exists (answer: {})", depositPath, exists);
 
                 if (exists) {
-                    var deposit = depositPropertiesManager.getProperties(depositPath);
-                    deposit.setPath(depositPath);
-                    deposit.setCollectionId(collection.getName());
+                    if (depositLocationIndex != null) {
+                        depositLocationIndex.put(depositId, collection.getName(), depositPath);
+                    }
 
-                    return deposit;
+                    return readDeposit(depositPath, collection.getName());
                 }
             }
         }
 
+        if (depositLocationIndex != null) {
+            depositLocationIndex.putMissing(depositId);
+        }
+
         throw new DepositNotFoundException(String.format("Deposit with id %s could not be found", depositId));
     }
 
+    private Deposit readDeposit(Path depositPath, String collectionName) throws InvalidDepositException {
+        var deposit = depositPropertiesManager.getProperties(depositPath);
+        deposit.setPath(depositPath);
+        deposit.setCollectionId(collectionName);
+
+        return deposit;
+    }
+
     @Override
     public List<Deposit> getOpenDeposits() {
         return collectionManager.getCollections().stream().map(collection -> {
                 try {
                     return fileService.listDirectories(collection.getUploads()).stream().map(path -> {
                         try {
+                            // most deposits are drafts or done; only the state is read to skip those
+                            var state = depositPropertiesManager.getState(path);
+
+                            if (!DepositState.UPLOADED.equals(state) && !DepositState.FINALIZING.equals(state)) {
+                                return null;
+                            }
+
                             var deposit = depositPropertiesManager.getProperties(path);
                             deposit.setPath(path);
                             deposit.setCollectionId(collection.getName());
@@ -271,8 +606,21 @@ public class DepositHandlerImpl implements DepositHandler {
         deposit.setState(DepositState.UPLOADED);
         depositPropertiesManager.saveProperties(path, deposit);
 
+        // recorded before it is queued, so a restart finds it even if the queue was lost
+        if (finalizationJournal != null) {
+            finalizationJournal.enqueued(deposit.getId());
+        }
+
+        var event = new DepositFinalizerEvent(deposit);
+
+        // this runs on the thread that received the payload, which must not wait for the finalizer to make room
+        if (finalizationAdmission != null) {
+            finalizationAdmission.submit(event);
+            return;
+        }
+
         try {
-            depositFinalizerQueue.put(new DepositFinalizerEvent(deposit.getId()));
+            depositFinalizerQueue.put(event);
         }
         catch (InterruptedException e) {
             log.error("Interrupted while putting task on queue", e);
@@ -284,57 +632,172 @@ public class DepositHandlerImpl implements DepositHandler {
         throws DepositNotFoundException, IOException, NotEnoughDiskSpaceException, InvalidDepositException, InvalidPartialFileException, CollectionNotFoundException {
 
         try {
-            var deposit = getDeposit(depositId);
-            var path = deposit.getPath();
-            var depositor = userManager.getDepositorById(deposit.getDepositor());
+            var finalization = startFinalization(depositId);
+            extract(finalization);
+            verify(finalization);
+            return handOff(finalization);
+        }
+        catch (InvalidDepositException | InvalidPartialFileException e) {
+            setDepositToInvalid(depositId, e.getMessage());
+            throw e;
+        }
+        catch (CollectionNotFoundException e) {
+            setDepositToFailed(depositId, getGenericErrorMessage(depositId));
+            throw e;
+        }
+        catch (NotEnoughDiskSpaceException e) {
+            setDepositToRetrying(depositId, "Rescheduled, waiting for more disk space");
+            throw e;
+        }
+    }
 
-            log.info("Finalizing deposit with id {}", depositId);
-            deposit.setState(DepositState.FINALIZING);
-            deposit.setStateDescription("Finalizing deposit");
-            depositPropertiesManager.saveProperties(path, deposit);
+    @Override
+    public CompletionStage<Deposit> finalizeDepositAsync(String depositId) {
+        if (finalizationPipeline == null) {
+            try {
+                return CompletableFuture.completedFuture(finalizeDeposit(depositId));
+            }
+            catch (Throwable e) {
+                return CompletableFuture.failedFuture(new CompletionException(e));
+            }
+        }
 
-            var collection = collectionManager.getCollectionByName(deposit.getCollectionId());
+        Finalization finalization;
 
-            log.info("Extracting files for deposit {}", depositId);
-            bagExtractor.extractBag(path,
-                collection.getDiskSpaceMargin(),
-                deposit.getMimeType(),
-                depositor.getFilepathMapping());
+        try {
+            finalization = startFinalization(depositId);
+        }
+        catch (Throwable e) {
+            return CompletableFuture.failedFuture(new CompletionException(handleFinalizationError(depositId, e)));
+        }
 
-            var bagDir = bagExtractor.getBagDir(path);
-            log.info("Bag dir found, it is named {}", bagDir);
+        return finalizationPipeline.getExtraction().run(() -> extract(finalization))
+            .thenCompose(f -> finalizationPipeline.getVerification().run(() -> verify(f)))
+            .thenCompose(f -> finalizationPipeline.getHandOff().run(() -> handOff(f)))
+            .handle((deposit, error) -> {
+                if (error != null) {
+                    throw new CompletionException(handleFinalizationError(depositId, error instanceof CompletionException ? error.getCause() : error));
+                }
 
-            deposit.setState(DepositState.SUBMITTED);
-            deposit.setStateDescription("Deposit is valid and ready for post-submission processing");
-            deposit.setBagName(bagDir.getFileName().toString());
-            deposit.setMimeType(null);
+                return deposit;
+            });
+    }
 
-            var metadata = bagItManager.getBagItMetaData(path.resolve(deposit.getBagName()), depositId);
-            deposit.setSwordToken(metadata.getSwordToken());
-            deposit.setOtherId(metadata.getOtherId());
-            deposit.setOtherIdVersion(metadata.getOtherIdVersion());
+    /**
+     * Updates the state of a deposit whose finalization failed, as {@link #finalizeDeposit(String)} does.
+     *
+     * @return the error to report, which is the one that was given unless updating the state failed
+     */
+    Throwable handleFinalizationError(String depositId, Throwable error) {
+        try {
+            try {
+                throw error;
+            }
+            catch (InvalidDepositException | InvalidPartialFileException e) {
+                setDepositToInvalid(depositId, e.getMessage());
+            }
+            catch (CollectionNotFoundException e) {
+                setDepositToFailed(depositId, getGenericErrorMessage(depositId));
+            }
+            catch (NotEnoughDiskSpaceException e) {
+                setDepositToRetrying(depositId, "Rescheduled, waiting for more disk space");
+            }
+            catch (RejectedExecutionException e) {
+                // a stage that is full is busy, not broken; otherwise the deposit would stay FINALIZING until the next start
+                setDepositToRetrying(depositId, "Rescheduled, waiting for the finalizer to have room");
+            }
+            catch (Throwable e) {
+                // other errors leave the state as it is, as in the synchronous finalization
+            }
+        }
+        catch (Throwable e) {
+            return e;
+        }
 
-            depositPropertiesManager.saveProperties(path, deposit);
+        return error;
+    }
 
-            removeZipFiles(path);
+    Finalization startFinalization(String depositId) throws DepositNotFoundException, InvalidDepositException, CollectionNotFoundException {
+        var deposit = getDeposit(depositId);
+        var path = deposit.getPath();
+        var depositor = userManager.getDepositorById(deposit.getDepositor());
 
-            var targetPath = getDepositPath(collection, depositId);
-            fileService.move(path, targetPath);
+        log.info("Finalizing deposit with id {}", depositId);
+        deposit.setState(DepositState.FINALIZING);
+        deposit.setStateDescription("Finalizing deposit");
+        depositPropertiesManager.saveProperties(path, deposit);
 
-            return deposit;
-        }
-        catch (InvalidDepositException | InvalidPartialFileException e) {
-            setDepositToInvalid(depositId, e.getMessage());
-            throw e;
+        var collection = collectionManager.getCollectionByName(deposit.getCollectionId());
+        // shared by extraction, verification and reading the metadata, so the bag is not parsed again by every step
+        var bagContext = new BagContext();
+        bagContext.deferVerification();
+
+        return new Finalization(deposit, collection, depositor.getFilepathMapping(), bagContext);
+    }
+
+    Finalization extract(Finalization finalization) throws InvalidDepositException, InvalidPartialFileException, IOException, NotEnoughDiskSpaceException {
+        var deposit = finalization.deposit;
+
+        log.info("Extracting files for deposit {}", deposit.getId());
+        bagExtractor.extractBag(deposit.getPath(),
+            finalization.collection.getDiskSpaceMargin(),
+            deposit.getMimeType(),
+            finalization.filePathMapping,
+            finalization.bagContext);
+
+        return finalization;
+    }
+
+    Finalization verify(Finalization finalization) throws InvalidDepositException {
+        // the extractor leaves the bag as it is after the last archive to be verified here
+        var bagDir = finalization.bagContext.takePendingVerification();
+
+        if (bagDir != null) {
+            log.info("Verifying bag of deposit {}", finalization.deposit.getId());
+            bagItManager.verifyBagItRepository(bagDir, finalization.bagContext);
         }
-        catch (CollectionNotFoundException e) {
-            setDepositToFailed(depositId, getGenericErrorMessage(depositId));
-            throw e;
+
+        return finalization;
+    }
+
+    Deposit handOff(Finalization finalization) throws IOException, InvalidDepositException {
+        var deposit = finalization.deposit;
+        var depositId = deposit.getId();
+        var path = deposit.getPath();
+        var bagContext = finalization.bagContext;
+
+        var bagDir = bagExtractor.getBagDir(path);
+        log.info("Bag dir found, it is named {}", bagDir);
+
+        deposit.setState(DepositState.SUBMITTED);
+        deposit.setStateDescription("Deposit is valid and ready for post-submission processing");
+        deposit.setBagName(bagDir.getFileName().toString());
+        deposit.setMimeType(null);
+        deposit.setFinalizationAttempts(0);
+
+        var metadata = bagItManager.getBagItMetaData(path.resolve(deposit.getBagName()), depositId, bagContext);
+        log.debug("Bag of deposit {} was parsed {} time(s) during finalization", depositId, bagContext.getParseCount());
+        deposit.setSwordToken(metadata.getSwordToken());
+        deposit.setOtherId(metadata.getOtherId());
+        deposit.setOtherIdVersion(metadata.getOtherIdVersion());
+
+        // a continued deposit has no digests of its own until its parts are merged, which keeps the digest of the whole payload
+        if (deposit.getDigests().isEmpty()) {
+            deposit.setDigests(bagContext.getUploadDigests());
         }
-        catch (NotEnoughDiskSpaceException e) {
-            setDepositToRetrying(depositId);
-            throw e;
+
+        depositPropertiesManager.saveProperties(path, deposit);
+
+        removeZipFiles(path);
+
+        var targetPath = getDepositPath(finalization.collection, depositId);
+        fileService.move(path, targetPath);
+
+        if (depositLocationIndex != null) {
+            depositLocationIndex.put(depositId, finalization.collection.getName(), targetPath);
         }
+
+        return deposit;
     }
 
     void cleanupDepositFiles(Deposit deposit, DepositState state) throws CollectionNotFoundException {
@@ -392,16 +855,21 @@ public class DepositHandlerImpl implements DepositHandler {
         }
     }
 
-    void setDepositToRetrying(String depositId) throws InvalidDepositException, DepositNotFoundException, CollectionNotFoundException {
+    void setDepositToRetrying(String depositId, String message) throws InvalidDepositException, DepositNotFoundException, CollectionNotFoundException {
         var deposit = getDeposit(depositId);
 
         try {
             var path = deposit.getPath();
 
-            log.info("Rescheduling deposit with id {}", depositId);
+            // persisted, so the backoff continues where it was after a restart
+            deposit.setFinalizationAttempts(deposit.getFinalizationAttempts() + 1);
+            log.info("Rescheduling deposit with id {} after {} attempt(s)", depositId, deposit.getFinalizationAttempts());
             deposit.setState(DepositState.UPLOADED);
-            deposit.setStateDescription("Rescheduled, waiting for more disk space");
+            deposit.setStateDescription(message);
             depositPropertiesManager.saveProperties(path, deposit);
+
+            // extracting again over what an earlier attempt left would mix two bags, e.g. payload files under two generated names
+            bagExtractor.discardExtractedBag(path);
         }
         finally {
             cleanupDepositFiles(deposit, DepositState.UPLOADED);
@@ -457,4 +925,155 @@ public class DepositHandlerImpl implements DepositHandler {
     private boolean confirmContentType(MediaType contentType) {
         return SUPPORTED_CONTENT_TYPES.contains(contentType);
     }
+
+    /**
+     * What the steps of one finalization hand to each other.
+     */
+    static final class Finalization {
+        private final Deposit deposit;
+        private final CollectionConfig collection;
+        private final boolean filePathMapping;
+        private final BagContext bagContext;
+
+        private Finalization(Deposit deposit, CollectionConfig collection, boolean filePathMapping, BagContext bagContext) {
+            this.deposit = deposit;
+            this.collection = collection;
+            this.filePathMapping = filePathMapping;
+            this.bagContext = bagContext;
+        }
+    }
+
+    /**
+     * Builds a deposit handler. Besides the collaborators that every deposit handler needs, all settings are optional; those that are not set leave their feature off.
+     */
+    public static class Builder {
+        private BagExtractor bagExtractor;
+        private FileService fileService;
+        private DepositPropertiesManager depositPropertiesManager;
+        private CollectionManager collectionManager;
+        private UserManager userManager;
+        private BlockingQueue<DepositFinalizerEvent> depositFinalizerQueue;
+        private BagItManager bagItManager;
+        private FilesystemSpaceVerifier filesystemSpaceVerifier;
+        private String emailAddress;
+        private PartialFileMerger partialFileMerger;
+        private Executor mergeExecutor;
+        private boolean extractWhileUploading;
+        private Set<String> digestAlgorithms = Set.of("MD5");
+        private FinalizationPipeline finalizationPipeline;
+        private FinalizationAdmission finalizationAdmission;
+        private FinalizationJournal finalizationJournal;
+        private DepositLocationIndex depositLocationIndex;
+
+        public Builder setBagExtractor(BagExtractor bagExtractor) {
+            this.bagExtractor = bagExtractor;
+            return this;
+        }
+
+        public Builder setFileService(FileService fileService) {
+            this.fileService = fileService;
+            return this;
+        }
+
+        public Builder setDepositPropertiesManager(DepositPropertiesManager depositPropertiesManager) {
+            this.depositPropertiesManager = depositPropertiesManager;
+            return this;
+        }
+
+        public Builder setCollectionManager(CollectionManager collectionManager) {
+            this.collectionManager = collectionManager;
+            return this;
+        }
+
+        public Builder setUserManager(UserManager userManager) {
+            this.userManager = userManager;
+            return this;
+        }
+
+        public Builder setDepositFinalizerQueue(BlockingQueue<DepositFinalizerEvent> depositFinalizerQueue) {
+            this.depositFinalizerQueue = depositFinalizerQueue;
+            return this;
+        }
+
+        public Builder setBagItManager(BagItManager bagItManager) {
+            this.bagItManager = bagItManager;
+            return this;
+        }
+
+        public Builder setFilesystemSpaceVerifier(FilesystemSpaceVerifier filesystemSpaceVerifier) {
+            this.filesystemSpaceVerifier = filesystemSpaceVerifier;
+            return this;
+        }
+
+        public Builder setEmailAddress(String emailAddress) {
+            this.emailAddress = emailAddress;
+            return this;
+        }
+
+        /**
+         * @param partialFileMerger the merger that combines the parts of a continued deposit; by default a {@link PartialFileMergerImpl} on the file service
+         */
+        public Builder setPartialFileMerger(PartialFileMerger partialFileMerger) {
+            this.partialFileMerger = partialFileMerger;
+            return this;
+        }
+
+        /**
+         * @param mergeExecutor the executor on which the parts of a continued deposit are merged as they arrive; if not set, they are merged before the upload is answered
+         */
+        public Builder setMergeExecutor(Executor mergeExecutor) {
+            this.mergeExecutor = mergeExecutor;
+            return this;
+        }
+
+        public Builder setExtractWhileUploading(boolean extractWhileUploading) {
+            this.extractWhileUploading = extractWhileUploading;
+            return this;
+        }
+
+        /**
+         * @param digestAlgorithms the algorithms of the digests that are calculated while a payload is received; MD5 by default
+         */
+        public Builder setDigestAlgorithms(Set<String> digestAlgorithms) {
+            this.digestAlgorithms = digestAlgorithms;
+            return this;
+        }
+
+        /**
+         * @param finalizationPipeline the stages in which deposits are finalized by {@link DepositHandlerImpl#finalizeDepositAsync(String)}; if not set, they are finalized on the calling thread
+         */
+        public Builder setFinalizationPipeline(FinalizationPipeline finalizationPipeline) {
+            this.finalizationPipeline = finalizationPipeline;
+            return this;
+        }
+
+        /**
+         * @param finalizationAdmission decides whether a deposit that is complete can still be accepted, and hands it to the finalizer without blocking; if not set, every deposit is
+         *                              accepted and waits for room on the queue
+         */
+        public Builder setFinalizationAdmission(FinalizationAdmission finalizationAdmission) {
+            this.finalizationAdmission = finalizationAdmission;
+            return this;
+        }
+
+        /**
+         * @param finalizationJournal the journal in which deposits are recorded when they are handed to the finalizer
+         */
+        public Builder setFinalizationJournal(FinalizationJournal finalizationJournal) {
+            this.finalizationJournal = finalizationJournal;
+            return this;
+        }
+
+        /**
+         * @param depositLocationIndex the index in which deposits are looked up before the base paths of the collections are searched; if not set, they are always searched
+         */
+        public Builder setDepositLocationIndex(DepositLocationIndex depositLocationIndex) {
+            this.depositLocationIndex = depositLocationIndex;
+            return this;
+        }
+
+        public DepositHandlerImpl build() {
+            return new DepositHandlerImpl(this);
+        }
+    }
 }
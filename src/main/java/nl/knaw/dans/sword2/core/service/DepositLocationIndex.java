@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.sword2.core.config.CollectionConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where each deposit is, by id, so a deposit can be found without checking every base path of every collection. The index is filled from the base paths in the background when started, and
+ * kept up to date by the deposit handler when it creates or moves a deposit. Other services move deposits on from the deposits folder, so a location must be checked before it is trusted and
+ * {@link #remove(String, Location)} called if it turns out to be gone.
+ * <p>
+ * Deposits that could not be found anywhere are remembered for a short while as well, so clients polling for a deposit that does not exist do not cause a full search on every request.
+ */
+public class DepositLocationIndex implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(DepositLocationIndex.class);
+    private static final int MISSING_PRUNE_THRESHOLD = 10000;
+
+    private final List<CollectionConfig> collections;
+    private final Duration missingTtl;
+    private final Clock clock;
+    private final Map<String, Location> locations = new ConcurrentHashMap<>();
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+    private Thread populateThread;
+
+    public DepositLocationIndex(List<CollectionConfig> collections, Duration missingTtl) {
+        this(collections, missingTtl, Clock.systemUTC());
+    }
+
+    DepositLocationIndex(List<CollectionConfig> collections, Duration missingTtl, Clock clock) {
+        this.collections = collections;
+        this.missingTtl = missingTtl;
+        this.clock = clock;
+    }
+
+    @Override
+    public void start() {
+        // requests that come in before the index is filled search the base paths and add what they find
+        populateThread = new Thread(this::populate, "deposit-index-populate");
+        populateThread.setDaemon(true);
+        populateThread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (populateThread != null) {
+            populateThread.interrupt();
+        }
+    }
+
+    /**
+     * Adds the deposits in the base paths of all collections, in the order in which the deposit handler searches them. Locations that were recorded in the meantime are newer than what
+     * was listed, so they are kept.
+     */
+    void populate() {
+        var start = clock.millis();
+        var count = 0;
+
+        for (var collection : collections) {
+            for (var basePath : getBasePaths(collection)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    log.info("Filling of the deposit index was interrupted");
+                    return;
+                }
+
+                count += populate(collection.getName(), basePath);
+            }
+        }
+
+        log.info("Indexed {} deposit(s) in {} ms", count, clock.millis() - start);
+    }
+
+    private int populate(String collectionName, Path basePath) {
+        var count = 0;
+
+        // only the names are needed, so the entries are not checked one by one for being a directory
+        try (var entries = Files.newDirectoryStream(basePath)) {
+            for (var entry : entries) {
+                if (locations.putIfAbsent(entry.getFileName().toString(), new Location(collectionName, entry)) == null) {
+                    count++;
+                }
+            }
+        }
+        catch (NoSuchFileException e) {
+            log.debug("Base path {} does not exist yet", basePath);
+        }
+        catch (IOException | DirectoryIteratorException e) {
+            // what is missing is found by searching when it is asked for
+            log.warn("Unable to list deposits in {}", basePath, e);
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the folders that may hold deposits of a collection, in the order in which they are searched.
+     *
+     * @param collection the collection
+     * @return the uploads and deposits folders, followed by the deposit tracking paths
+     */
+    public static List<Path> getBasePaths(CollectionConfig collection) {
+        var basePaths = new ArrayList<Path>();
+        basePaths.add(collection.getUploads());
+        basePaths.add(collection.getDeposits());
+
+        if (collection.getDepositTrackingPath() != null) {
+            basePaths.addAll(collection.getDepositTrackingPath());
+        }
+
+        return basePaths;
+    }
+
+    /**
+     * Returns where a deposit was last seen.
+     *
+     * @param depositId the id of the deposit
+     * @return the location, or null if it is not in the index
+     */
+    public Location get(String depositId) {
+        return locations.get(depositId);
+    }
+
+    /**
+     * Records where a deposit is, replacing whatever was recorded for it.
+     *
+     * @param depositId      the id of the deposit
+     * @param collectionName the name of the collection that the deposit belongs to
+     * @param path           the deposit directory
+     */
+    public void put(String depositId, String collectionName, Path path) {
+        locations.put(depositId, new Location(collectionName, path));
+        missing.remove(depositId);
+    }
+
+    /**
+     * Forgets where a deposit was, unless another location was recorded for it since it was looked up.
+     *
+     * @param depositId the id of the deposit
+     * @param expected  the location that turned out to be gone, as returned by {@link #get(String)}
+     */
+    public void remove(String depositId, Location expected) {
+        locations.remove(depositId, expected);
+    }
+
+    /**
+     * Records that a deposit could not be found in any of the base paths. It is reported as missing until the TTL has passed or its location is recorded.
+     *
+     * @param depositId the id of the deposit
+     */
+    public void putMissing(String depositId) {
+        var now = clock.millis();
+
+        // every unknown id that is asked for is kept until it expires, so the expired ones are dropped once there are many
+        if (missing.size() >= MISSING_PRUNE_THRESHOLD) {
+            missing.values().removeIf(expiry -> expiry <= now);
+        }
+
+        missing.put(depositId, now + missingTtl.toMillis());
+    }
+
+    /**
+     * Returns whether a deposit was recently found to be missing.
+     *
+     * @param depositId the id of the deposit
+     * @return true if it could not be found less than the TTL ago
+     */
+    public boolean isMissing(String depositId) {
+        var expiry = missing.get(depositId);
+
+        if (expiry == null) {
+            return false;
+        }
+
+        if (expiry <= clock.millis()) {
+            missing.remove(depositId, expiry);
+            return false;
+        }
+
+        return true;
+    }
+
+    public int getSize() {
+        return locations.size();
+    }
+
+    public int getMissing() {
+        return missing.size();
+    }
+
+    public static class Location {
+        private final String collectionName;
+        private final Path path;
+
+        public Location(String collectionName, Path path) {
+            this.collectionName = collectionName;
+            this.path = path;
+        }
+
+        public String getCollectionName() {
+            return collectionName;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return "Location{" +
+                "collectionName='" + collectionName + '\'' +
+                ", path=" + path +
+                '}';
+        }
+    }
+}
@@ -16,13 +16,33 @@
 package nl.knaw.dans.sword2.core.service;
 
 import nl.knaw.dans.sword2.core.Deposit;
+import nl.knaw.dans.sword2.core.DepositState;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
 
 import java.nio.file.Path;
+import java.time.Instant;
 
 public interface DepositPropertiesManager {
 
     Deposit getProperties(Path path) throws InvalidDepositException;
 
     void saveProperties(Path path, Deposit deposit) throws InvalidDepositException;
+
+    /**
+     * Reads only the state of a deposit, which is much cheaper than {@link #getProperties(Path)} when most deposits are skipped because of their state.
+     *
+     * @param path the deposit directory
+     * @return the state
+     * @throws InvalidDepositException if the properties cannot be read or have no valid state
+     */
+    DepositState getState(Path path) throws InvalidDepositException;
+
+    /**
+     * Returns when the properties of a deposit were last saved.
+     *
+     * @param path the deposit directory
+     * @return the modification time of the properties file
+     * @throws InvalidDepositException if the properties cannot be read
+     */
+    Instant getLastModified(Path path) throws InvalidDepositException;
 }
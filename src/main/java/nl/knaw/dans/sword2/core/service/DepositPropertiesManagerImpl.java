@@ -26,12 +26,25 @@ import org.apache.commons.configuration2.builder.fluent.Parameters;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
 import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 @Singleton
 public class DepositPropertiesManagerImpl implements DepositPropertiesManager {
     private static final String FILENAME = "deposit.properties";
+    private static final String DIGEST_PREFIX = "easy-sword2.client-message.digest";
+    private static final String FINALIZATION_ATTEMPTS = "easy-sword2.finalization.attempts";
+    private static final String CONTENT_LENGTH = "easy-sword2.client-message.content-length";
+    private static final Pattern STATE_LABEL = Pattern.compile("\\s*state\\.label\\s*[=:\\s]\\s*(\\S+)\\s*");
 
     public DepositPropertiesManagerImpl() {
     }
@@ -79,6 +92,41 @@ public class DepositPropertiesManagerImpl implements DepositPropertiesManager {
         }
     }
 
+    @Override
+    public DepositState getState(Path path) throws InvalidDepositException {
+        var propertiesFile = getDepositPath(path);
+
+        // properties files are ISO-8859-1, and the state is plain ASCII, so it can be matched without a full properties parser
+        try (var reader = Files.newBufferedReader(propertiesFile, StandardCharsets.ISO_8859_1)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                var matcher = STATE_LABEL.matcher(line);
+
+                if (matcher.matches()) {
+                    return DepositState.valueOf(matcher.group(1));
+                }
+            }
+        }
+        catch (IOException | IllegalArgumentException e) {
+            throw new InvalidDepositException(String.format("Unable to read the state from %s", propertiesFile), e);
+        }
+
+        throw new InvalidDepositException(String.format("No state found in %s", propertiesFile));
+    }
+
+    @Override
+    public Instant getLastModified(Path path) throws InvalidDepositException {
+        var propertiesFile = getDepositPath(path);
+
+        try {
+            return Files.getLastModifiedTime(propertiesFile).toInstant();
+        }
+        catch (IOException e) {
+            throw new InvalidDepositException(String.format("Unable to read the modification time of %s", propertiesFile), e);
+        }
+    }
+
     Deposit mapToDeposit(Configuration config) {
         var deposit = new Deposit();
         deposit.setId(config.getString("bag-store.bag-id"));
@@ -91,6 +139,9 @@ public class DepositPropertiesManagerImpl implements DepositPropertiesManager {
         deposit.setMimeType(config.getString("easy-sword2.client-message.content-type"));
         deposit.setDoi(config.getString("identifier.doi"));
         deposit.setUrn(config.getString("identifier.urn"));
+        deposit.setDigests(getDigests(config));
+        deposit.setFinalizationAttempts(config.getInt(FINALIZATION_ATTEMPTS, 0));
+        deposit.setContentLength(config.getLong(CONTENT_LENGTH, -1L));
 
         return deposit;
     }
@@ -122,5 +173,46 @@ public class DepositPropertiesManagerImpl implements DepositPropertiesManager {
         else {
             config.clearProperty("easy-sword2.client-message.content-type");
         }
+
+        setDigests(config, deposit.getDigests());
+
+        if (deposit.getFinalizationAttempts() > 0) {
+            config.setProperty(FINALIZATION_ATTEMPTS, deposit.getFinalizationAttempts());
+        }
+        else {
+            config.clearProperty(FINALIZATION_ATTEMPTS);
+        }
+
+        if (deposit.getContentLength() > -1) {
+            config.setProperty(CONTENT_LENGTH, deposit.getContentLength());
+        }
+        else {
+            config.clearProperty(CONTENT_LENGTH);
+        }
+    }
+
+    Map<String, String> getDigests(Configuration config) {
+        var digests = new HashMap<String, String>();
+        var keys = config.getKeys(DIGEST_PREFIX);
+
+        while (keys.hasNext()) {
+            var key = keys.next();
+            // the key ends with the algorithm, e.g. sha-256, which is MessageDigest's SHA-256 in lower case
+            digests.put(key.substring(DIGEST_PREFIX.length() + 1).toUpperCase(Locale.ROOT), config.getString(key));
+        }
+
+        return digests;
+    }
+
+    void setDigests(Configuration config, Map<String, String> digests) {
+        var keys = new ArrayList<String>();
+        config.getKeys(DIGEST_PREFIX).forEachRemaining(keys::add);
+        keys.forEach(config::clearProperty);
+
+        if (digests != null) {
+            for (var digest : digests.entrySet()) {
+                config.setProperty(DIGEST_PREFIX + "." + digest.getKey().toLowerCase(Locale.ROOT), digest.getValue());
+            }
+        }
     }
 }
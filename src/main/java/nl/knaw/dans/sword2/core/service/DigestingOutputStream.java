@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Calculates the digests of everything that is written through it. Unlike a chain of {@link java.security.DigestInputStream}s it can be written to as data arrives, so it can be used
+ * by readers that are called back with data instead of reading it themselves.
+ */
+public class DigestingOutputStream extends FilterOutputStream {
+    private final Map<String, MessageDigest> messageDigests = new LinkedHashMap<>();
+
+    public DigestingOutputStream(OutputStream outputStream, Set<String> algorithms) throws NoSuchAlgorithmException {
+        super(outputStream);
+
+        for (var algorithm : algorithms) {
+            messageDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+
+        for (var messageDigest : messageDigests.values()) {
+            messageDigest.update((byte) b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+
+        for (var messageDigest : messageDigests.values()) {
+            messageDigest.update(b, off, len);
+        }
+    }
+
+    /**
+     * Returns the digests of everything written so far and resets them, so it should be called once, after the last write.
+     *
+     * @return the lower case hex digests, by algorithm
+     */
+    public Map<String, String> getDigests() {
+        var digests = new HashMap<String, String>();
+
+        for (var messageDigest : messageDigests.entrySet()) {
+            digests.put(messageDigest.getKey(), DatatypeConverter.printHexBinary(messageDigest.getValue().digest()).toLowerCase(Locale.ROOT));
+        }
+
+        return digests;
+    }
+}
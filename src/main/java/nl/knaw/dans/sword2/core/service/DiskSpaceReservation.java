@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Disk space that was set aside for a file that is being written. The space stays reserved until the reservation is closed, which should be done when the file is complete or could not be
+ * written. Closing it more than once has no effect. If the file is removed again, the reservation should be discarded instead, so the bytes that were written to it stop counting as well.
+ * <p>
+ * Bytes that are reported as written stop being reserved, because from then on they are missing from the free space of the file store itself; otherwise they would be counted twice until
+ * the reservation is closed.
+ */
+public class DiskSpaceReservation implements AutoCloseable {
+    // writes are passed on in batches, so that concurrent writers do not contend for the ledger of their file store on every buffer
+    static final long REPORT_SIZE = 1024 * 1024;
+
+    private final long size;
+    private final Accounting accounting;
+    private long written;
+    private long reported;
+    private boolean released;
+    private boolean discarded;
+
+    DiskSpaceReservation(long size, Accounting accounting) {
+        this.size = size;
+        this.accounting = accounting;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    /**
+     * Reports bytes that were written to the file the space is reserved for.
+     *
+     * @param bytes the number of bytes
+     */
+    public void written(long bytes) {
+        long batch;
+        long fromReservation;
+
+        synchronized (this) {
+            written += bytes;
+
+            if (written - reported < REPORT_SIZE) {
+                return;
+            }
+
+            batch = written - reported;
+            fromReservation = released ? 0 : getReservedPart(written) - getReservedPart(reported);
+            reported = written;
+        }
+
+        accounting.written(batch, fromReservation);
+    }
+
+    /**
+     * Returns a stream that reports every byte that is read from it as written, for a stream that is copied to the file the space is reserved for.
+     *
+     * @param inputStream the stream to read
+     * @return the reporting stream
+     */
+    public InputStream trackWrites(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+
+            @Override
+            public int read() throws IOException {
+                var b = super.read();
+
+                if (b != -1) {
+                    written(1);
+                }
+
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                var n = super.read(b, off, len);
+
+                if (n > 0) {
+                    written(n);
+                }
+
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that reports every byte that is written to it as written, for a stream to the file the space is reserved for.
+     *
+     * @param outputStream the stream to write to
+     * @return the reporting stream
+     */
+    public OutputStream trackWrites(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written(len);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        long batch;
+        long fromReservation;
+        long unwritten;
+
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+
+            released = true;
+            batch = written - reported;
+            fromReservation = getReservedPart(written) - getReservedPart(reported);
+            reported = written;
+            unwritten = size - getReservedPart(written);
+        }
+
+        if (batch > 0) {
+            accounting.written(batch, fromReservation);
+        }
+
+        accounting.released(unwritten);
+    }
+
+    /**
+     * Closes the reservation if that was not done yet, and takes back the bytes that were reported as written, because the file they were written to has been removed.
+     */
+    public void discard() {
+        close();
+
+        long kept;
+
+        synchronized (this) {
+            if (discarded) {
+                return;
+            }
+
+            discarded = true;
+            kept = reported;
+        }
+
+        if (kept > 0) {
+            accounting.written(-kept, 0);
+        }
+    }
+
+    private long getReservedPart(long bytes) {
+        return Math.min(bytes, size);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskSpaceReservation{" +
+            "size=" + size +
+            ", written=" + written +
+            ", released=" + released +
+            ", discarded=" + discarded +
+            '}';
+    }
+
+    /**
+     * Keeps the books of the file store that the space is reserved on.
+     */
+    interface Accounting {
+
+        /**
+         * @param bytes    the number of bytes that were written, or minus the number of written bytes that were removed again
+         * @param reserved the part of them that was still reserved, and is not anymore
+         */
+        void written(long bytes, long reserved);
+
+        /**
+         * @param unwritten the reserved space that was never written, and is not reserved anymore
+         */
+        void released(long unwritten);
+    }
+}
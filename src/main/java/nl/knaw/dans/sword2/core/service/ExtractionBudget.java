@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import nl.knaw.dans.sword2.core.exceptions.NotEnoughDiskSpaceException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Disk space for files that are extracted from a stream, whose total size is only known once the stream ends. Space is reserved in chunks before the bytes are written, and the extraction is
+ * stopped with an {@link IOException} as soon as it would write more than the limit or the file store cannot take the next chunk. Closing the budget releases all reservations, and
+ * discarding it also takes back what was written, for when the extracted files are removed again.
+ * <p>
+ * A budget is used by one extraction at a time and is not safe to use from several threads.
+ */
+public class ExtractionBudget implements AutoCloseable {
+    static final long CHUNK_SIZE = 64L * 1024 * 1024;
+
+    private final FilesystemSpaceVerifier filesystemSpaceVerifier;
+    private final Path destination;
+    private final long diskSpaceMargin;
+    private final long limit;
+    private final List<DiskSpaceReservation> reservations = new ArrayList<>();
+    private long reserved;
+    private long written;
+    private int filling;
+
+    /**
+     * @param filesystemSpaceVerifier reserves the space
+     * @param destination             a directory on the file store that is written to
+     * @param diskSpaceMargin         the space that must remain free
+     * @param limit                   the maximum number of bytes that may be written
+     */
+    public ExtractionBudget(FilesystemSpaceVerifier filesystemSpaceVerifier, Path destination, long diskSpaceMargin, long limit) {
+        this.filesystemSpaceVerifier = filesystemSpaceVerifier;
+        this.destination = destination;
+        this.diskSpaceMargin = diskSpaceMargin;
+        this.limit = limit;
+    }
+
+    /**
+     * Accounts for bytes that are about to be written, reserving more space if needed.
+     *
+     * @param bytes the number of bytes
+     * @throws IOException if the limit would be exceeded or the space could not be reserved
+     */
+    public void claim(long bytes) throws IOException {
+        if (written + bytes > limit) {
+            throw new IOException(String.format("Extraction to %s would write more than the %d bytes it is allowed", destination, limit));
+        }
+
+        written += bytes;
+
+        while (written > reserved) {
+            var size = Math.min(Math.max(CHUNK_SIZE, written - reserved), limit - reserved);
+
+            try {
+                var reservation = filesystemSpaceVerifier.reserveDiskSpace(destination, diskSpaceMargin, size);
+
+                if (reservation != null) {
+                    reservations.add(reservation);
+                }
+            }
+            catch (NotEnoughDiskSpaceException e) {
+                throw new IOException(String.format("Not enough disk space to extract more than %d bytes to %s", reserved, destination), e);
+            }
+
+            reserved += size;
+        }
+
+        // the bytes stop being reserved once they are written, so the chunks are filled in the order they were reserved
+        var unreported = bytes;
+
+        while (unreported > 0 && filling < reservations.size()) {
+            var reservation = reservations.get(filling);
+            var n = Math.min(unreported, reservation.getSize() - reservation.getWritten());
+
+            reservation.written(n);
+            unreported -= n;
+
+            if (reservation.getWritten() >= reservation.getSize()) {
+                filling++;
+            }
+        }
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public void close() {
+        for (var reservation : reservations) {
+            reservation.close();
+        }
+    }
+
+    public void discard() {
+        for (var reservation : reservations) {
+            reservation.discard();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ExtractionBudget{" +
+            "destination=" + destination +
+            ", limit=" + limit +
+            ", reserved=" + reserved +
+            ", written=" + written +
+            '}';
+    }
+}
@@ -17,8 +17,11 @@ package nl.knaw.dans.sword2.core.service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileStore;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 
 public interface FileService {
@@ -29,10 +32,46 @@ public interface FileService {
 
     String copyFileWithMD5Hash(InputStream inputStream, Path target) throws IOException;
 
+    /**
+     * Copies the stream to the target while the reader reads the same bytes, so they can be processed while they are still arriving. Everything the reader reads has been written to the target
+     * by then; whatever it leaves unread is written after it returns. Closing the stream that is handed to the reader has no effect.
+     *
+     * @param inputStream the stream to copy
+     * @param target      the file to write, which must not exist yet
+     * @param reader      reads the stream while it is copied
+     * @return the MD5 hash of all bytes copied, as lower case hex
+     * @throws IOException if the stream could not be copied, or the reader failed
+     */
+    String copyFileWithMD5Hash(InputStream inputStream, Path target, StreamReader reader) throws IOException;
+
+    /**
+     * Copies the stream to the target, calculating a digest for each of the algorithms in the same pass.
+     *
+     * @param inputStream the stream to copy
+     * @param target      the file to write, which must not exist yet
+     * @param algorithms  the {@link java.security.MessageDigest} names of the algorithms
+     * @param reader      reads the stream while it is copied, as in {@link #copyFileWithMD5Hash(InputStream, Path, StreamReader)}; may be null
+     * @return the lower case hex digests, by algorithm
+     * @throws IOException if the stream could not be copied, an algorithm is not supported, or the reader failed
+     */
+    Map<String, String> copyFileWithDigests(InputStream inputStream, Path target, Set<String> algorithms, StreamReader reader) throws IOException;
+
+    /**
+     * Creates the target and opens it for writing, calculating a digest for each of the algorithms while it is written.
+     *
+     * @param target     the file to write, which must not exist yet
+     * @param algorithms the {@link java.security.MessageDigest} names of the algorithms
+     * @return the output, which the caller must close
+     * @throws IOException if the file could not be created or an algorithm is not supported
+     */
+    DigestingOutputStream newDigestingOutputStream(Path target, Set<String> algorithms) throws IOException;
+
     Path copyFile(Path source, Path target) throws IOException;
 
     long getAvailableDiskSpace(Path path) throws IOException;
 
+    FileStore getFileStore(Path path) throws IOException;
+
     Stream<Path> listFiles(Path path) throws IOException;
 
     List<Path> listDirectories(Path path) throws IOException;
@@ -41,17 +80,40 @@ public interface FileService {
 
     void move(Path sourcePath, Path targetPath) throws IOException;
 
-    Path mergeFiles(List<Path> files, Path target) throws IOException;
-
     boolean exists(Path path);
 
     Path writeContentToFile(Path path, String content) throws IOException;
 
     List<String> readLines(Path file) throws IOException;
 
+    /**
+     * Reads the lines of a UTF-8 file lazily. The caller must close the stream.
+     *
+     * @param file the file to read
+     * @return the lines, split in the same way as {@link #readLines(Path)}
+     * @throws IOException if the file could not be opened
+     */
+    Stream<String> streamLines(Path file) throws IOException;
+
+    /**
+     * Writes the lines to a temporary file next to the target, separated by a newline and without a newline after the last line, and then replaces the target with it. This produces the same
+     * bytes as {@link #writeContentToFile(Path, String)} with the lines joined by newlines, without holding all of them in memory, and the target is never left half written.
+     *
+     * @param path  the file to write
+     * @param lines the lines to write, consumed once
+     * @return the path of the file written
+     * @throws IOException if the file could not be written
+     */
+    Path writeLinesAtomically(Path path, Stream<String> lines) throws IOException;
+
     void deleteDirectory(Path directory) throws IOException;
 
     boolean isSameFileSystem(Path ...paths) throws IOException;
 
     boolean canWriteTo(Path path);
+
+    interface StreamReader {
+
+        void read(InputStream inputStream) throws IOException;
+    }
 }
@@ -16,26 +16,28 @@
 package nl.knaw.dans.sword2.core.service;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Singleton;
-import javax.xml.bind.DatatypeConverter;
 import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -60,18 +62,44 @@ public class FileServiceImpl implements FileService {
 
     @Override
     public String copyFileWithMD5Hash(InputStream inputStream, Path target) throws IOException {
-        try {
-            var digest = MessageDigest.getInstance("MD5");
-            var stream = new DigestInputStream(inputStream, digest);
+        return copyFileWithDigests(inputStream, target, Set.of("MD5"), null).get("MD5");
+    }
 
-            copyFile(stream, target);
+    @Override
+    public String copyFileWithMD5Hash(InputStream inputStream, Path target, StreamReader reader) throws IOException {
+        return copyFileWithDigests(inputStream, target, Set.of("MD5"), reader).get("MD5");
+    }
 
-            return DatatypeConverter.printHexBinary(digest.digest())
-                .toLowerCase(Locale.ROOT);
+    @Override
+    public Map<String, String> copyFileWithDigests(InputStream inputStream, Path target, Set<String> algorithms, StreamReader reader) throws IOException {
+        try (var output = newDigestingOutputStream(target, algorithms)) {
+            if (reader == null) {
+                inputStream.transferTo(output);
+            }
+            else {
+                var copyingStream = new CopyingInputStream(inputStream, output);
+
+                reader.read(copyingStream);
+                // the reader may stop before the end of the stream, e.g. at the central directory of a zip file
+                copyingStream.transferTo(OutputStream.nullOutputStream());
+            }
 
+            return output.getDigests();
+        }
+    }
+
+    @Override
+    public DigestingOutputStream newDigestingOutputStream(Path target, Set<String> algorithms) throws IOException {
+        ensureDirectoriesExist(target.getParent());
+        var fileOutput = new BufferedOutputStream(Files.newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+
+        try {
+            return new DigestingOutputStream(fileOutput, algorithms);
         }
         catch (NoSuchAlgorithmException e) {
-            throw new IOException(String.format("Unable to copy file to target %s because the system does not support MD5 hasing", target), e);
+            fileOutput.close();
+            Files.deleteIfExists(target);
+            throw new IOException(String.format("Unable to copy file to target %s because the system does not support %s hashing", target, algorithms), e);
         }
     }
 
@@ -87,6 +115,11 @@ public class FileServiceImpl implements FileService {
         return fileStore.getUsableSpace();
     }
 
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        return Files.getFileStore(path);
+    }
+
     @Override
     public Stream<Path> listFiles(Path path) throws IOException {
         return Files.list(path).filter(Files::isRegularFile);
@@ -108,22 +141,6 @@ public class FileServiceImpl implements FileService {
         Files.move(sourcePath, targetPath);
     }
 
-    @Override
-    public Path mergeFiles(List<Path> files, Path target) throws IOException {
-        try (var output = new BufferedOutputStream(new FileOutputStream(target.toFile(), true))) {
-            for (var file : files) {
-                IOUtils.copy(Files.newInputStream(file), output);
-            }
-        }
-        finally {
-            for (var file : files) {
-                Files.deleteIfExists(file);
-            }
-        }
-
-        return target;
-    }
-
     @Override
     public boolean exists(Path path) {
         return Files.exists(path);
@@ -139,6 +156,46 @@ public class FileServiceImpl implements FileService {
         return Files.readAllLines(file);
     }
 
+    @Override
+    public Stream<String> streamLines(Path file) throws IOException {
+        return Files.lines(file, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Path writeLinesAtomically(Path path, Stream<String> lines) throws IOException {
+        // a hidden sibling, so it is on the same file system and ignored by bag verification if it is ever left behind
+        var temp = path.resolveSibling("." + path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+
+        try {
+            try (var writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                var iterator = lines.iterator();
+
+                while (iterator.hasNext()) {
+                    writer.write(iterator.next());
+
+                    if (iterator.hasNext()) {
+                        writer.write('\n');
+                    }
+                }
+            }
+            catch (UncheckedIOException e) {
+                // thrown by streams from streamLines
+                throw e.getCause();
+            }
+
+            try {
+                return Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                log.debug("Atomic move not supported for {}, replacing it non-atomically", path);
+                return Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
     @Override
     public void deleteDirectory(Path directory) throws IOException {
         FileUtils.deleteDirectory(directory.toFile());
@@ -176,4 +233,54 @@ public class FileServiceImpl implements FileService {
         }
     }
 
+
+    /**
+     * Writes every byte that is read from it to the output. Closing it closes neither the wrapped stream nor the output.
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+        private final OutputStream output;
+
+        CopyingInputStream(InputStream inputStream, OutputStream output) {
+            super(inputStream);
+            this.output = output;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+
+            if (b != -1) {
+                output.write(b);
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var read = super.read(b, off, len);
+
+            if (read > 0) {
+                output.write(b, off, read);
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be copied too
+            return n > 0 ? Math.max(0, read(new byte[(int) Math.min(n, 8192)])) : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // the caller closes the stream and the output
+        }
+    }
 }
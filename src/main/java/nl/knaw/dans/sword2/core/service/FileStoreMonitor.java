@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+
+/**
+ * Keeps track of the free space of the file stores that hold the configured directories, so it can be read without asking the file system every time.
+ */
+public interface FileStoreMonitor {
+
+    /**
+     * Returns the usable space of the file store that the path is on, as sampled last and minus what was written since. For paths outside the monitored directories, the file system is asked.
+     *
+     * @param path a path on the file store
+     * @return the number of usable bytes
+     */
+    long getAvailableDiskSpace(Path path) throws IOException;
+
+    /**
+     * Returns the file store that the path is on, without looking it up again for paths inside the monitored directories.
+     *
+     * @param path a path on the file store
+     * @return the file store
+     */
+    FileStore getFileStore(Path path) throws IOException;
+
+    /**
+     * Lowers the free space of the file store that the path is on until the next sample, because the given number of bytes were written to it.
+     *
+     * @param path  a path on the file store
+     * @param bytes the number of bytes written
+     */
+    void recordWrite(Path path, long bytes);
+
+    /**
+     * Samples the usable space of every monitored file store.
+     */
+    void refresh();
+
+    /**
+     * Registers a listener that is run after every refresh, on the refreshing thread.
+     *
+     * @param listener the listener
+     */
+    void addRefreshListener(Runnable listener);
+}
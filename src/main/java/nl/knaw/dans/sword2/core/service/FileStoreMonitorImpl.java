@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the file store of each directory once when started and samples their usable space at a fixed interval. On NFS every sample is a round trip to the server, which is now taken off
+ * the request path. Between samples, writes that are reported through {@link #recordWrite(Path, long)} are subtracted from the sampled value.
+ */
+public class FileStoreMonitorImpl implements FileStoreMonitor, Managed {
+    private static final Logger log = LoggerFactory.getLogger(FileStoreMonitorImpl.class);
+
+    private final FileService fileService;
+    private final List<Path> directories;
+    private final ScheduledExecutorService scheduler;
+    private final Duration refreshInterval;
+    private final List<Runnable> refreshListeners = new CopyOnWriteArrayList<>();
+    private volatile Map<Path, Sample> samples = Map.of();
+
+    public FileStoreMonitorImpl(FileService fileService, List<Path> directories, ScheduledExecutorService scheduler, Duration refreshInterval) {
+        this.fileService = fileService;
+        this.directories = directories;
+        this.scheduler = scheduler;
+        this.refreshInterval = refreshInterval;
+    }
+
+    @Override
+    public void start() {
+        resolveFileStores();
+        refresh();
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        // the scheduler is managed by the environment
+    }
+
+    void resolveFileStores() {
+        var byFileStore = new HashMap<FileStore, Sample>();
+        var byDirectory = new LinkedHashMap<Path, Sample>();
+
+        for (var directory : directories) {
+            try {
+                var fileStore = fileService.getFileStore(directory);
+                byDirectory.put(normalize(directory), byFileStore.computeIfAbsent(fileStore, Sample::new));
+            }
+            catch (IOException e) {
+                log.warn("Unable to determine the file store of {}, its free space will be looked up on every request", directory, e);
+            }
+        }
+
+        log.info("Monitoring {} file store(s) for directories {}", byFileStore.size(), byDirectory.keySet());
+        samples = byDirectory;
+    }
+
+    @Override
+    public void refresh() {
+        for (var sample : Set.copyOf(samples.values())) {
+            try {
+                sample.refresh();
+                log.trace("Usable space of {} is {}", sample.fileStore, sample.usableSpace);
+            }
+            catch (IOException | RuntimeException e) {
+                // an exception would cancel the schedule
+                log.error("Unable to sample the usable space of {}", sample.fileStore, e);
+            }
+        }
+
+        for (var listener : refreshListeners) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException e) {
+                log.error("Refresh listener {} failed", listener, e);
+            }
+        }
+    }
+
+    @Override
+    public void addRefreshListener(Runnable listener) {
+        refreshListeners.add(listener);
+    }
+
+    @Override
+    public long getAvailableDiskSpace(Path path) throws IOException {
+        var sample = getSample(path);
+
+        if (sample == null || sample.usableSpace < 0) {
+            return fileService.getAvailableDiskSpace(path);
+        }
+
+        return sample.getAvailableSpace();
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        var sample = getSample(path);
+        return sample != null ? sample.fileStore : fileService.getFileStore(path);
+    }
+
+    @Override
+    public void recordWrite(Path path, long bytes) {
+        var sample = getSample(path);
+
+        if (sample != null) {
+            sample.written.addAndGet(bytes);
+        }
+    }
+
+    private Sample getSample(Path path) {
+        var normalized = normalize(path);
+
+        for (var entry : samples.entrySet()) {
+            if (normalized.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    private Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private static final class Sample {
+        private final FileStore fileStore;
+        private final AtomicLong written = new AtomicLong();
+        private volatile long usableSpace = -1;
+
+        private Sample(FileStore fileStore) {
+            this.fileStore = fileStore;
+        }
+
+        private void refresh() throws IOException {
+            // writes recorded before the sample are in it; those recorded while sampling may be counted twice until the next one
+            var writtenBefore = written.get();
+            usableSpace = fileStore.getUsableSpace();
+            written.addAndGet(-writtenBefore);
+        }
+
+        private long getAvailableSpace() {
+            return usableSpace - written.get();
+        }
+    }
+}
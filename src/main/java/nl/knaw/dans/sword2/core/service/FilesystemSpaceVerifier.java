@@ -18,10 +18,46 @@ package nl.knaw.dans.sword2.core.service;
 import nl.knaw.dans.sword2.core.exceptions.NotEnoughDiskSpaceException;
 
 import java.io.IOException;
+import java.nio.file.FileStore;
 import java.nio.file.Path;
 
 public interface FilesystemSpaceVerifier {
     void assertDirHasEnoughDiskspaceMarginForFile(Path destination, long margin, long contentLength) throws IOException, NotEnoughDiskSpaceException;
 
     void assertDirHasEnoughDiskspaceMargin(Path destination, long margin) throws IOException, NotEnoughDiskSpaceException;
+
+    /**
+     * Checks that the file fits, like {@link #assertDirHasEnoughDiskspaceMarginForFile(Path, long, long)}, and reserves its size on the file store of the destination. Space reserved by
+     * other files that are still being written is not available.
+     *
+     * @param destination   a directory on the file store to write to
+     * @param margin        the space that must remain free
+     * @param contentLength the size of the file, or -1 if unknown, in which case nothing is checked or reserved
+     * @return the reservation, to be closed when the file has been written or could not be written
+     */
+    DiskSpaceReservation reserveDiskSpace(Path destination, long margin, long contentLength) throws IOException, NotEnoughDiskSpaceException;
+
+    /**
+     * Returns the space that is currently reserved on the file store of the destination.
+     *
+     * @param destination a directory on the file store
+     * @return the number of bytes reserved
+     */
+    long getReservedDiskSpace(Path destination) throws IOException;
+
+    /**
+     * Returns the free space on the file store of the destination that is not reserved. A file fits if this is at least its size plus the margin.
+     *
+     * @param destination a directory on the file store
+     * @return the number of bytes available for new reservations
+     */
+    long getUnreservedDiskSpace(Path destination) throws IOException;
+
+    /**
+     * Returns the file store of the destination, as the reservations are accounted for.
+     *
+     * @param destination a directory on the file store
+     * @return the file store
+     */
+    FileStore getFileStore(Path destination) throws IOException;
 }
@@ -20,28 +20,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.FileStore;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Checks the free space of a file store against the space that is reserved on it. Uploads and extractions reserve the space they will need before they start writing, so concurrent
+ * requests cannot all pass the check on the same free space and then fill the file store together. Reservations are kept in memory, per file store.
+ * <p>
+ * A reservation shrinks as its file is written, because the written bytes are already missing from the free space that the file system reports. If a {@link FileStoreMonitor} is given,
+ * free space and file stores are read from it instead of from the file system, and the written bytes are reported to it, so that they are missing from its cached free space as well.
+ */
 public class FilesystemSpaceVerifierImpl implements FilesystemSpaceVerifier {
     private static final Logger log = LoggerFactory.getLogger(DepositHandlerImpl.class);
     private final FileService fileService;
+    private final FileStoreMonitor fileStoreMonitor;
+    private final Map<FileStore, Ledger> ledgers = new ConcurrentHashMap<>();
 
     public FilesystemSpaceVerifierImpl(FileService fileService) {
+        this(fileService, null);
+    }
+
+    public FilesystemSpaceVerifierImpl(FileService fileService, FileStoreMonitor fileStoreMonitor) {
         this.fileService = fileService;
+        this.fileStoreMonitor = fileStoreMonitor;
     }
 
     @Override
     public void assertDirHasEnoughDiskspaceMarginForFile(Path destination, long margin, long contentLength) throws IOException, NotEnoughDiskSpaceException {
         if (contentLength > -1) {
-            var availableSpace = fileService.getAvailableDiskSpace(destination);
-            log.trace("Free space  = {}", availableSpace);
-            log.trace("File length = {}", contentLength);
-            log.trace("Margin      = {}", margin);
-            log.trace("Extra space = {}", availableSpace - contentLength - margin);
-
-            if (availableSpace - contentLength < margin) {
-                throw new NotEnoughDiskSpaceException("Not enough space available");
-            }
+            var availableSpace = getAvailableDiskSpace(destination) - getReservedDiskSpace(destination);
+            assertEnoughDiskSpace(destination, availableSpace, margin, contentLength);
         }
         else {
             log.trace("Content-length is -1, not checking for disk space margin");
@@ -50,10 +60,157 @@ public class FilesystemSpaceVerifierImpl implements FilesystemSpaceVerifier {
 
     @Override
     public void assertDirHasEnoughDiskspaceMargin(Path destination, long margin) throws IOException, NotEnoughDiskSpaceException {
-        var availableSpace = fileService.getAvailableDiskSpace(destination);
+        var availableSpace = getAvailableDiskSpace(destination) - getReservedDiskSpace(destination);
 
         if (availableSpace < margin) {
-            throw new NotEnoughDiskSpaceException("Not enough space available");
+            throw new NotEnoughDiskSpaceException("Not enough space available", destination, margin);
         }
     }
+
+    @Override
+    public DiskSpaceReservation reserveDiskSpace(Path destination, long margin, long contentLength) throws IOException, NotEnoughDiskSpaceException {
+        if (contentLength < 0) {
+            log.trace("Content-length is -1, not checking for disk space margin");
+            return new DiskSpaceReservation(0, new DiskSpaceReservation.Accounting() {
+
+                @Override
+                public void written(long bytes, long reserved) {
+                    recordWrite(destination, bytes);
+                }
+
+                @Override
+                public void released(long unwritten) {
+                }
+            });
+        }
+
+        var ledger = ledgers.computeIfAbsent(getFileStore(destination), fileStore -> new Ledger());
+
+        // the check and the reservation are one step, so no other reservation on the same file store can slip in between
+        synchronized (ledger) {
+            assertEnoughDiskSpace(destination, getAvailableDiskSpace(destination) - ledger.reserved, margin, contentLength);
+            ledger.reserved += contentLength;
+            ledger.count++;
+        }
+
+        log.debug("Reserved {} bytes for {}", contentLength, destination);
+        return new DiskSpaceReservation(contentLength, new DiskSpaceReservation.Accounting() {
+
+            @Override
+            public void written(long bytes, long reserved) {
+                FilesystemSpaceVerifierImpl.this.written(destination, ledger, bytes, reserved);
+            }
+
+            @Override
+            public void released(long unwritten) {
+                release(ledger, unwritten);
+            }
+        });
+    }
+
+    @Override
+    public long getReservedDiskSpace(Path destination) throws IOException {
+        // nothing was ever reserved, so the file store need not be looked up
+        if (ledgers.isEmpty()) {
+            return 0;
+        }
+
+        var ledger = ledgers.get(getFileStore(destination));
+
+        if (ledger == null) {
+            return 0;
+        }
+
+        synchronized (ledger) {
+            return ledger.reserved;
+        }
+    }
+
+    @Override
+    public long getUnreservedDiskSpace(Path destination) throws IOException {
+        return getAvailableDiskSpace(destination) - getReservedDiskSpace(destination);
+    }
+
+    @Override
+    public FileStore getFileStore(Path destination) throws IOException {
+        return fileStoreMonitor != null ? fileStoreMonitor.getFileStore(destination) : fileService.getFileStore(destination);
+    }
+
+    /**
+     * Returns the space that is reserved on all file stores together.
+     *
+     * @return the number of bytes reserved
+     */
+    public long getReservedDiskSpace() {
+        var reserved = 0L;
+
+        for (var ledger : ledgers.values()) {
+            synchronized (ledger) {
+                reserved += ledger.reserved;
+            }
+        }
+
+        return reserved;
+    }
+
+    /**
+     * Returns the number of reservations that have not been closed yet, on all file stores together.
+     *
+     * @return the number of open reservations
+     */
+    public int getReservationCount() {
+        var count = 0;
+
+        for (var ledger : ledgers.values()) {
+            synchronized (ledger) {
+                count += ledger.count;
+            }
+        }
+
+        return count;
+    }
+
+    private void assertEnoughDiskSpace(Path destination, long availableSpace, long margin, long contentLength) throws NotEnoughDiskSpaceException {
+        log.trace("Free space  = {}", availableSpace);
+        log.trace("File length = {}", contentLength);
+        log.trace("Margin      = {}", margin);
+        log.trace("Extra space = {}", availableSpace - contentLength - margin);
+
+        if (availableSpace - contentLength < margin) {
+            throw new NotEnoughDiskSpaceException("Not enough space available", destination, contentLength + margin);
+        }
+    }
+
+    private long getAvailableDiskSpace(Path destination) throws IOException {
+        return fileStoreMonitor != null ? fileStoreMonitor.getAvailableDiskSpace(destination) : fileService.getAvailableDiskSpace(destination);
+    }
+
+    private void written(Path destination, Ledger ledger, long bytes, long reserved) {
+        // the written bytes are subtracted from the cached free space before the reservation stops counting them, so they are never missing from both
+        recordWrite(destination, bytes);
+
+        synchronized (ledger) {
+            ledger.reserved -= reserved;
+        }
+    }
+
+    private void recordWrite(Path destination, long bytes) {
+        if (fileStoreMonitor != null) {
+            fileStoreMonitor.recordWrite(destination, bytes);
+        }
+    }
+
+    private void release(Ledger ledger, long unwritten) {
+        synchronized (ledger) {
+            ledger.reserved -= unwritten;
+            ledger.count--;
+        }
+
+        log.debug("Released {} unwritten bytes of reservation", unwritten);
+    }
+
+    private static final class Ledger {
+        private long reserved;
+        private int count;
+    }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+/**
+ * The stages of a staged finalization. Extraction is mostly disk I/O, verification mostly hashing, and the hand-off reads the metadata, removes the archives and moves the deposit. As
+ * each stage has its own threads, one deposit can be extracted while another is verified.
+ */
+public class FinalizationPipeline {
+    private final FinalizationStage extraction;
+    private final FinalizationStage verification;
+    private final FinalizationStage handOff;
+
+    public FinalizationPipeline(FinalizationStage extraction, FinalizationStage verification, FinalizationStage handOff) {
+        this.extraction = extraction;
+        this.verification = verification;
+        this.handOff = handOff;
+    }
+
+    public FinalizationStage getExtraction() {
+        return extraction;
+    }
+
+    public FinalizationStage getVerification() {
+        return verification;
+    }
+
+    public FinalizationStage getHandOff() {
+        return handOff;
+    }
+
+    @Override
+    public String toString() {
+        return "FinalizationPipeline{" +
+            "extraction=" + extraction +
+            ", verification=" + verification +
+            ", handOff=" + handOff +
+            '}';
+    }
+}
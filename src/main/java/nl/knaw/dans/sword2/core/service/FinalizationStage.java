@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of a staged finalization, with its own executor. Keeps track of how many deposits wait for the stage and how many it is working on, and of how long each took.
+ */
+public class FinalizationStage {
+    private final String name;
+    private final ExecutorService executor;
+    private final boolean callerRunsWhenFull;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final Timer serviceTime;
+
+    /**
+     * @param name               the name of the stage, used in the names of its metrics
+     * @param executor           the executor that runs the steps of this stage
+     * @param callerRunsWhenFull whether a step that the executor rejects runs on the calling thread, as long as the executor is not shut down; otherwise the step fails
+     * @param metrics            the registry in which the metrics of the stage are registered, or null
+     */
+    public FinalizationStage(String name, ExecutorService executor, boolean callerRunsWhenFull, MetricRegistry metrics) {
+        this.name = name;
+        this.executor = executor;
+        this.callerRunsWhenFull = callerRunsWhenFull;
+
+        if (metrics != null) {
+            metrics.register(MetricRegistry.name(FinalizationStage.class, name, "queued"), (Gauge<Integer>) queued::get);
+            metrics.register(MetricRegistry.name(FinalizationStage.class, name, "running"), (Gauge<Integer>) running::get);
+            this.serviceTime = metrics.timer(MetricRegistry.name(FinalizationStage.class, name, "service-time"));
+        }
+        else {
+            this.serviceTime = null;
+        }
+    }
+
+    /**
+     * Runs a step on the executor of this stage.
+     *
+     * @param step the step
+     * @param <T>  the type of the result of the step
+     * @return a stage that completes with the result of the step, or exceptionally with a {@link CompletionException} that has what the step threw as its cause
+     */
+    public <T> CompletableFuture<T> run(Step<T> step) {
+        var future = new CompletableFuture<T>();
+        queued.incrementAndGet();
+
+        Runnable task = () -> {
+            queued.decrementAndGet();
+            running.incrementAndGet();
+            var start = System.nanoTime();
+
+            try {
+                future.complete(step.run());
+            }
+            catch (Throwable e) {
+                future.completeExceptionally(new CompletionException(e));
+            }
+            finally {
+                running.decrementAndGet();
+
+                if (serviceTime != null) {
+                    serviceTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+        };
+
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            if (callerRunsWhenFull && !executor.isShutdown()) {
+                // the stage before this one waits, so it takes on no new deposits until there is room
+                task.run();
+            }
+            else {
+                queued.decrementAndGet();
+                future.completeExceptionally(new CompletionException(e));
+            }
+        }
+
+        return future;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * A step of a finalization, which may throw any of the exceptions of {@link DepositHandler#finalizeDeposit(String)}.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Step<T> {
+        T run() throws Throwable;
+    }
+
+    @Override
+    public String toString() {
+        return "FinalizationStage{" +
+            "name='" + name + '\'' +
+            ", queued=" + queued +
+            ", running=" + running +
+            '}';
+    }
+}
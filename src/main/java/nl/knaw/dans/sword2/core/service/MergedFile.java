@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import java.nio.file.Path;
+
+/**
+ * The file into which the parts of a deposit were merged, with the MD5 digest that was kept up to date while the parts were appended.
+ */
+public class MergedFile {
+    private final Path path;
+    private final String md5;
+
+    public MergedFile(Path path, String md5) {
+        this.path = path;
+        this.md5 = md5;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the lower case hex MD5 digest of the whole merged file
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    @Override
+    public String toString() {
+        return "MergedFile{" +
+            "path=" + path +
+            ", md5='" + md5 + '\'' +
+            '}';
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import nl.knaw.dans.sword2.core.exceptions.InvalidPartialFileException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Merges the sequence-numbered parts of an octet-stream deposit (e.g. <code>bag.zip.1</code>, <code>bag.zip.2</code>) into a single file. Parts can be merged while the deposit is still being
+ * uploaded, so that finalization only has to merge the parts that were not merged yet.
+ */
+public interface PartialFileMerger {
+
+    /**
+     * Appends the parts that are next in sequence to the merged file of the deposit and deletes them. Parts that arrive out of order are left on disk until the parts before them have
+     * arrived. Files that do not have a valid sequence number are ignored here; they are reported by {@link #completeMerge(Path)}.
+     *
+     * @param depositPath the directory of the deposit
+     * @throws IOException if a part could not be appended
+     */
+    void mergeAvailableParts(Path depositPath) throws IOException;
+
+    /**
+     * Appends all remaining parts to the merged file, in the order of their sequence numbers, and forgets the merge state of the deposit. If the merge was already completed, the merged
+     * file is returned as it is.
+     *
+     * @param depositPath the directory of the deposit
+     * @return the merged file and its MD5 digest
+     * @throws IOException                 if a part could not be appended
+     * @throws InvalidPartialFileException if a file in the deposit does not have a valid sequence number
+     */
+    MergedFile completeMerge(Path depositPath) throws IOException, InvalidPartialFileException;
+
+    /**
+     * Returns the sequence number of a part, which is its last extension.
+     *
+     * @param path the part
+     * @return the sequence number, at least 1
+     * @throws InvalidPartialFileException if the file does not have a valid sequence number
+     */
+    int getSequenceNumber(Path path) throws InvalidPartialFileException;
+}
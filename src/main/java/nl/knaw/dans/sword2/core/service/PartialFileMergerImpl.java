@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import nl.knaw.dans.sword2.core.exceptions.InvalidPartialFileException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Merges parts into <code>merged.zip</code> in the deposit directory. How far the merge has progressed is kept in a hidden state file next to it, which is written after each appended part has
+ * been flushed to disk and before the part is deleted. If the service stops halfway through appending a part, the merged file is truncated back to the size in the state file the next time, and
+ * the part is appended again.
+ * <p>
+ * A running MD5 digest of the merged file is kept in memory and updated with each part right after it is appended, when the part is still in the page cache. Only after a restart, or after a
+ * failed append, is it calculated again from the merged file, up to the size in the state file. The digest of a deposit is dropped when its merge is completed; a deposit that is abandoned
+ * while it is in progress keeps only that digest, until the service is restarted.
+ * <p>
+ * Hidden files are not parts. Payloads are received under a hidden name and only get their final name once their digests have been checked, so a part that is still being written, or that
+ * turned out to be corrupt, is never appended.
+ */
+public class PartialFileMergerImpl implements PartialFileMerger {
+    private static final Logger log = LoggerFactory.getLogger(PartialFileMergerImpl.class);
+
+    static final String MERGED_FILE = "merged.zip";
+    static final String STATE_FILE = ".merge-state";
+    private static final int DIGEST_BUFFER_SIZE = 256 * 1024;
+
+    private final FileService fileService;
+    // only held while a merge of the deposit is running or waiting, so deposits that are abandoned leave nothing behind
+    private final Map<Path, MergeLock> locks = new ConcurrentHashMap<>();
+    // the MD5 of the merged file up to the size in its state file; only used while holding the lock of the deposit
+    private final Map<Path, MessageDigest> digests = new ConcurrentHashMap<>();
+
+    public PartialFileMergerImpl(FileService fileService) {
+        this.fileService = fileService;
+    }
+
+    @Override
+    public void mergeAvailableParts(Path depositPath) throws IOException {
+        var lock = acquireLock(depositPath);
+
+        try {
+            synchronized (lock) {
+                var parts = new TreeMap<Integer, Path>();
+
+                for (var file : getPartialFiles(depositPath)) {
+                    try {
+                        parts.put(getSequenceNumber(file), file);
+                    }
+                    catch (InvalidPartialFileException e) {
+                        log.debug("Not merging {} yet: {}", file, e.getMessage());
+                    }
+                }
+
+                appendInSequence(depositPath, parts);
+            }
+        }
+        finally {
+            releaseLock(depositPath);
+        }
+    }
+
+    @Override
+    public MergedFile completeMerge(Path depositPath) throws IOException, InvalidPartialFileException {
+        var lock = acquireLock(depositPath);
+
+        try {
+            synchronized (lock) {
+                var parts = new TreeMap<Integer, Path>();
+
+                for (var file : getPartialFiles(depositPath)) {
+                    parts.put(getSequenceNumber(file), file);
+                }
+
+                var merged = depositPath.resolve(MERGED_FILE);
+
+                if (parts.isEmpty() && !fileService.exists(depositPath.resolve(STATE_FILE)) && fileService.exists(merged)) {
+                    // the merge was completed by an earlier attempt to finalize the deposit, so the digest is calculated from the whole file
+                    return new MergedFile(merged, takeDigest(depositPath, new MergeState(1, Files.size(merged))));
+                }
+
+                var state = appendInSequence(depositPath, parts);
+
+                if (!parts.isEmpty()) {
+                    // there is a gap in the sequence numbers; merge the rest in order anyway, as was always done
+                    log.warn("Parts {} of deposit {} do not directly follow the parts merged so far, appending them in order", parts.keySet(), depositPath);
+                    state = append(depositPath, state, parts.values());
+                }
+
+                var md5 = takeDigest(depositPath, state);
+                log.info("Merged {} bytes into {}, MD5 {}", state.mergedSize, merged, md5);
+                fileService.deleteFile(depositPath.resolve(STATE_FILE));
+
+                return new MergedFile(merged, md5);
+            }
+        }
+        finally {
+            releaseLock(depositPath);
+        }
+    }
+
+    @Override
+    public int getSequenceNumber(Path path) throws InvalidPartialFileException {
+        var parts = path.getFileName().toString().split("\\.");
+        var fileName = path.getFileName();
+
+        if (parts.length <= 1) {
+            throw new InvalidPartialFileException(String.format("Partial file %s has no extension. It should be a positive sequence number.", fileName));
+        }
+
+        try {
+            var value = Integer.parseInt(parts[parts.length - 1], 10);
+
+            if (value <= 0) {
+                throw new InvalidPartialFileException(String.format("Partial file %s has an incorrect extension. It should be a positive sequence number (> 0), but was: %s", fileName, value));
+            }
+
+            return value;
+        }
+        catch (NumberFormatException e) {
+            throw new InvalidPartialFileException(String.format("Partial file %s has an incorrect extension. Should be a positive sequence number.", fileName));
+        }
+    }
+
+    List<Path> getPartialFiles(Path depositPath) throws IOException {
+        try (Stream<Path> files = fileService.listFiles(depositPath)) {
+            return files.filter(f -> {
+                var name = f.getFileName().toString();
+                return !name.startsWith(".") && !name.equals("deposit.properties") && !name.equals(MERGED_FILE);
+            }).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Appends the parts that directly follow the last merged part, removing them from the given map. Parts that were already merged, but not deleted, are deleted and removed as well.
+     */
+    private MergeState appendInSequence(Path depositPath, TreeMap<Integer, Path> parts) throws IOException {
+        var state = readState(depositPath);
+
+        for (var stale : parts.headMap(state.nextSequenceNumber).values()) {
+            log.debug("Deleting part {}, it was already merged", stale);
+            fileService.deleteFile(stale);
+        }
+
+        parts.headMap(state.nextSequenceNumber).clear();
+
+        var next = new ArrayList<Path>();
+
+        while (parts.containsKey(state.nextSequenceNumber + next.size())) {
+            next.add(parts.remove(state.nextSequenceNumber + next.size()));
+        }
+
+        return next.isEmpty() ? state : append(depositPath, state, next);
+    }
+
+    private MergeState append(Path depositPath, MergeState state, Iterable<Path> parts) throws IOException {
+        var merged = depositPath.resolve(MERGED_FILE);
+
+        var digest = getDigest(depositPath, state);
+
+        try (var output = FileChannel.open(merged, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // anything after the last recorded size is a part that was not completely appended
+            output.truncate(state.mergedSize);
+            output.position(state.mergedSize);
+
+            for (var part : parts) {
+                var appended = appendPart(part, output, digest);
+                output.force(false);
+
+                state = new MergeState(state.nextSequenceNumber + 1, state.mergedSize + appended);
+                writeState(depositPath, state);
+
+                log.debug("Appended part {} to {}, merged size is now {}", part, merged, state.mergedSize);
+                fileService.deleteFile(part);
+            }
+        }
+        catch (IOException e) {
+            // the digest may include part of what failed to be appended, so it is calculated again from the merged file the next time
+            digests.remove(depositPath);
+            throw e;
+        }
+
+        return state;
+    }
+
+    /**
+     * Appends a part with transferTo, so the kernel copies the data without it passing through a buffer on the heap, and then adds the part to the running digest.
+     */
+    private long appendPart(Path part, FileChannel output, MessageDigest digest) throws IOException {
+        try (var input = FileChannel.open(part, StandardOpenOption.READ)) {
+            var size = input.size();
+            var position = 0L;
+
+            // transferTo may transfer fewer bytes than requested, e.g. more than 2 GB at once on Linux
+            while (position < size) {
+                var transferred = input.transferTo(position, size - position, output);
+
+                if (transferred <= 0) {
+                    throw new IOException(String.format("Unable to append %s after %d of %d bytes", part, position, size));
+                }
+
+                position += transferred;
+            }
+
+            updateDigest(digest, input, size);
+            return size;
+        }
+    }
+
+    /**
+     * Returns the running digest of the merged file, calculating it from the merged file if it is not in memory.
+     */
+    private MessageDigest getDigest(Path depositPath, MergeState state) throws IOException {
+        var digest = digests.get(depositPath);
+
+        if (digest == null) {
+            digest = newDigest();
+
+            if (state.mergedSize > 0) {
+                log.debug("Calculating MD5 of the first {} bytes of the merged file of deposit {}", state.mergedSize, depositPath);
+
+                try (var input = FileChannel.open(depositPath.resolve(MERGED_FILE), StandardOpenOption.READ)) {
+                    updateDigest(digest, input, state.mergedSize);
+                }
+            }
+
+            digests.put(depositPath, digest);
+        }
+
+        return digest;
+    }
+
+    private void updateDigest(MessageDigest digest, FileChannel input, long size) throws IOException {
+        var buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+        var position = 0L;
+
+        while (position < size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+            var read = input.read(buffer, position);
+
+            if (read < 0) {
+                throw new IOException(String.format("Unable to calculate the digest of %d bytes, end of file reached after %d", size, position));
+            }
+
+            digest.update(buffer.flip());
+            position += read;
+        }
+    }
+
+    /**
+     * Finishes the running digest of a deposit and forgets it.
+     *
+     * @return the lower case hex digest
+     */
+    private String takeDigest(Path depositPath, MergeState state) throws IOException {
+        var digest = getDigest(depositPath, state);
+        digests.remove(depositPath);
+        return DatatypeConverter.printHexBinary(digest.digest()).toLowerCase(Locale.ROOT);
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform supports MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MergeState readState(Path depositPath) throws IOException {
+        var file = depositPath.resolve(STATE_FILE);
+
+        if (!fileService.exists(file)) {
+            return new MergeState(1, 0);
+        }
+
+        var values = fileService.readLines(file).stream().map(line -> line.split("=", 2)).filter(line -> line.length == 2)
+            .collect(Collectors.toMap(line -> line[0], line -> line[1]));
+
+        try {
+            return new MergeState(Integer.parseInt(values.get("nextSequenceNumber")), Long.parseLong(values.get("mergedSize")));
+        }
+        catch (NumberFormatException e) {
+            throw new IOException(String.format("Merge state in %s is not readable: %s", file, values), e);
+        }
+    }
+
+    private void writeState(Path depositPath, MergeState state) throws IOException {
+        fileService.writeLinesAtomically(depositPath.resolve(STATE_FILE),
+            Stream.of("nextSequenceNumber=" + state.nextSequenceNumber, "mergedSize=" + state.mergedSize));
+    }
+
+    private MergeLock acquireLock(Path depositPath) {
+        return locks.compute(depositPath, (path, lock) -> {
+            var acquired = lock != null ? lock : new MergeLock();
+            acquired.holders++;
+            return acquired;
+        });
+    }
+
+    private void releaseLock(Path depositPath) {
+        locks.computeIfPresent(depositPath, (path, lock) -> --lock.holders == 0 ? null : lock);
+    }
+
+    /**
+     * Serializes the merges of one deposit. The number of holders is only changed inside the map's compute methods, which run one at a time for the same deposit.
+     */
+    private static final class MergeLock {
+        private int holders;
+    }
+
+    private static final class MergeState {
+        private final int nextSequenceNumber;
+        private final long mergedSize;
+
+        private MergeState(int nextSequenceNumber, long mergedSize) {
+            this.nextSequenceNumber = nextSequenceNumber;
+            this.mergedSize = mergedSize;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Digests of files, calculated while they were being written. The algorithms are identified by their {@link java.security.MessageDigest} name (e.g. SHA-1), and files by their absolute,
+ * normalized path, so the digests can be looked up with the paths from a bag manifest regardless of how the bag directory was referenced. Instances are safe to use from several extraction
+ * workers at the same time.
+ */
+public class PayloadDigests {
+
+    private final Set<String> algorithms = ConcurrentHashMap.newKeySet();
+    private final Map<Path, Map<String, String>> digests = new ConcurrentHashMap<>();
+
+    public void addAlgorithms(Collection<String> algorithms) {
+        this.algorithms.addAll(algorithms);
+    }
+
+    public Set<String> getAlgorithms() {
+        return Set.copyOf(algorithms);
+    }
+
+    /**
+     * Records the digests of a file, replacing anything recorded for it earlier.
+     *
+     * @param file    the file that was written
+     * @param digests the lower case hex digests, by algorithm
+     */
+    public void put(Path file, Map<String, String> digests) {
+        this.digests.put(normalize(file), Map.copyOf(digests));
+    }
+
+    /**
+     * Forgets the digests of a file, for example because it failed to be written completely.
+     *
+     * @param file the file
+     */
+    public void remove(Path file) {
+        digests.remove(normalize(file));
+    }
+
+    /**
+     * Returns the digest of a file.
+     *
+     * @param file      the file
+     * @param algorithm the name of the algorithm
+     * @return the lower case hex digest, or null if it was not calculated for this file and algorithm
+     */
+    public String get(Path file, String algorithm) {
+        var fileDigests = digests.get(normalize(file));
+        return fileDigests != null ? fileDigests.get(algorithm) : null;
+    }
+
+    public boolean isEmpty() {
+        return digests.isEmpty();
+    }
+
+    private Path normalize(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadDigests{" +
+            "algorithms=" + algorithms +
+            ", files=" + digests.size() +
+            '}';
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import java.io.OutputStream;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The body of an upload, delivered as it arrives instead of being read by the caller. This lets an upload be received without a thread waiting for the client while the data is on its
+ * way.
+ */
+public interface PayloadSource {
+
+    /**
+     * Starts writing the payload to the output. The returned stage completes when everything was written, or completes exceptionally if the payload could not be received; in both cases
+     * the output is not written to anymore, but it is not closed.
+     *
+     * @param outputStream the output
+     * @return a stage that completes when the payload was written
+     */
+    CompletionStage<Void> transferTo(OutputStream outputStream);
+}
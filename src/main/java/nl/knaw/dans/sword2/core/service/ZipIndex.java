@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index of the entries of a single zip archive. The central directory is parsed once when the index is opened, after which the index can be shared by the size check, the file path
+ * mapping generation and the extraction. The underlying file handle is kept open until {@link #close()} is called.
+ */
+public class ZipIndex implements Closeable {
+
+    private final ZipFile zipFile;
+    private final List<Entry> entries;
+
+    ZipIndex(ZipFile zipFile) {
+        this.zipFile = zipFile;
+        this.entries = zipFile.stream().map(Entry::new).collect(Collectors.toList());
+    }
+
+    public static ZipIndex open(Path path) throws IOException {
+        return new ZipIndex(new ZipFile(path.toFile()));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns all entries that are not directories.
+     *
+     * @return the file entries, in central directory order
+     */
+    public List<Entry> getFileEntries() {
+        return entries.stream().filter(e -> !e.isDirectory()).collect(Collectors.toList());
+    }
+
+    public List<String> getFileNames() {
+        return entries.stream().filter(e -> !e.isDirectory()).map(Entry::getName).collect(Collectors.toList());
+    }
+
+    public long getExtractedSize() {
+        return entries.stream().map(Entry::getSize).filter(size -> size > 0).reduce(0L, Long::sum);
+    }
+
+    public InputStream getInputStream(Entry entry) throws IOException {
+        return zipFile.getInputStream(entry.zipEntry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+
+    /**
+     * A single entry in the central directory. Besides the name and sizes, the entry keeps the handle that {@link ZipFile} uses to seek directly to the local header, so reading the entry does
+     * not require another lookup by name.
+     */
+    public static class Entry {
+        private final ZipEntry zipEntry;
+        private final String name;
+        private final long size;
+        private final long compressedSize;
+        private final int method;
+
+        Entry(ZipEntry zipEntry) {
+            this.zipEntry = zipEntry;
+            this.name = zipEntry.getName();
+            this.size = zipEntry.getSize();
+            this.compressedSize = zipEntry.getCompressedSize();
+            this.method = zipEntry.getMethod();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                "name='" + name + '\'' +
+                ", size=" + size +
+                ", compressedSize=" + compressedSize +
+                ", method=" + method +
+                '}';
+        }
+    }
+}
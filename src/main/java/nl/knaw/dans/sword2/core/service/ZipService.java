@@ -16,15 +16,75 @@
 package nl.knaw.dans.sword2.core.service;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.function.UnaryOperator;
 
 public interface ZipService {
 
+    /**
+     * Parses the central directory of the zip file once. The caller is responsible for closing the returned index.
+     *
+     * @param zipFile the zip file
+     * @return an open index of the zip file
+     * @throws IOException if the zip file could not be opened
+     */
+    ZipIndex openZipIndex(Path zipFile) throws IOException;
+
     void extractZipFileWithFileMapping(Path zipFile, Path targetPath, Map<String, String> fileMapping) throws IOException;
 
+    void extractZipFileWithFileMapping(ZipIndex zipIndex, Path targetPath, Map<String, String> fileMapping) throws IOException;
+
+    /**
+     * Extracts the archive and calculates the digests of every extracted file while it is being written, using the algorithms of the given payload digests.
+     *
+     * @param zipIndex       the archive to extract
+     * @param targetPath     the directory to extract to
+     * @param fileMapping    the mapping from entry names to target file names
+     * @param payloadDigests receives the digests of the extracted files
+     * @param reservation    the space reserved for the extracted files, to which every written byte is reported; or null
+     * @throws IOException if the extraction was interrupted or failed unexpectedly
+     */
+    void extractZipFileWithFileMapping(ZipIndex zipIndex, Path targetPath, Map<String, String> fileMapping, PayloadDigests payloadDigests, DiskSpaceReservation reservation)
+        throws IOException;
+
+    /**
+     * Extracts several archives into the same target path at the same time. The archives must not contain entries that map to the same target file.
+     *
+     * @param zipIndexes     the archives to extract, each with its own file mapping
+     * @param targetPath     the directory to extract to
+     * @param payloadDigests receives the digests of the extracted files
+     * @param reservation    the space reserved for the extracted files, to which every written byte is reported; or null
+     * @throws IOException if the extraction was interrupted or failed unexpectedly
+     */
+    void extractZipFilesWithFileMapping(Map<ZipIndex, Map<String, String>> zipIndexes, Path targetPath, PayloadDigests payloadDigests, DiskSpaceReservation reservation)
+        throws IOException;
+
+    /**
+     * @return true if entries are extracted on an executor, so that extracting several archives with {@link #extractZipFilesWithFileMapping(Map, Path, PayloadDigests, DiskSpaceReservation)} is faster than
+     * extracting them one by one
+     */
+    boolean isConcurrent();
+
+    /**
+     * Extracts the entries of a zip archive as they are read from the stream, using the local headers instead of the central directory. Reading stops at the first central directory header,
+     * and the stream is not closed.
+     *
+     * @param inputStream the archive
+     * @param targetPath  the directory to extract to
+     * @param fileMapping returns the target file name for the name of an entry
+     * @param budget      accounts for every extracted byte before it is written
+     * @throws IOException if the stream could not be read as a zip archive, an entry is larger than its local header says, the budget was exceeded, or an entry could not be written
+     */
+    void extractZipStream(InputStream inputStream, Path targetPath, UnaryOperator<String> fileMapping, ExtractionBudget budget) throws IOException;
+
     List<String> getFilesInZip(Path zipFile) throws IOException;
 
+    List<String> getFilesInZip(ZipIndex zipIndex);
+
     long getExtractedSize(Path zipFile) throws IOException;
+
+    long getExtractedSize(ZipIndex zipIndex);
 }
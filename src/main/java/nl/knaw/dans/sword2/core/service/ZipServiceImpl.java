@@ -20,63 +20,323 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.xml.bind.DatatypeConverter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 @Singleton
 public class ZipServiceImpl implements ZipService {
     private static final Logger log = LoggerFactory.getLogger(ZipServiceImpl.class);
 
     private final FileService fileService;
+    private final ExecutorService extractionExecutor;
+    private final int extractionWorkers;
 
     @Inject
     public ZipServiceImpl(FileService fileService) {
+        this(fileService, null, 1);
+    }
+
+    /**
+     * Creates a zip service that extracts entries in parallel. Each archive is extracted by at most <code>extractionWorkers</code> tasks on the given executor, each of which takes entries
+     * from a shared list until it is empty. If the executor is null, entries are extracted on the calling thread.
+     *
+     * @param fileService        the file service
+     * @param extractionExecutor the executor to run the extraction workers on, or null
+     * @param extractionWorkers  the maximum number of workers per archive
+     */
+    public ZipServiceImpl(FileService fileService, ExecutorService extractionExecutor, int extractionWorkers) {
         this.fileService = fileService;
+        this.extractionExecutor = extractionExecutor;
+        this.extractionWorkers = Math.max(1, extractionWorkers);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return extractionExecutor != null;
+    }
+
+    @Override
+    public ZipIndex openZipIndex(Path zipFile) throws IOException {
+        return ZipIndex.open(zipFile);
     }
 
     @Override
     public void extractZipFileWithFileMapping(Path path, Path targetPath, Map<String, String> fileMapping) throws IOException {
-        var file = new ZipFile(path.toFile());
-        extractZipFileWithFileMapping(file, targetPath, fileMapping);
+        try (var zipIndex = openZipIndex(path)) {
+            extractZipFileWithFileMapping(zipIndex, targetPath, fileMapping);
+        }
+    }
+
+    @Override
+    public void extractZipFileWithFileMapping(ZipIndex zipIndex, Path targetPath, Map<String, String> fileMapping) throws IOException {
+        awaitExtraction(startExtraction(zipIndex, targetPath, fileMapping, null, null));
+    }
+
+    @Override
+    public void extractZipFileWithFileMapping(ZipIndex zipIndex, Path targetPath, Map<String, String> fileMapping, PayloadDigests payloadDigests, DiskSpaceReservation reservation)
+        throws IOException {
+        awaitExtraction(startExtraction(zipIndex, targetPath, fileMapping, payloadDigests, reservation));
+    }
+
+    @Override
+    public void extractZipFilesWithFileMapping(Map<ZipIndex, Map<String, String>> zipIndexes, Path targetPath, PayloadDigests payloadDigests, DiskSpaceReservation reservation)
+        throws IOException {
+        var extractions = new ArrayList<CompletableFuture<Void>>();
+
+        for (var entry : zipIndexes.entrySet()) {
+            extractions.add(startExtraction(entry.getKey(), targetPath, entry.getValue(), payloadDigests, reservation));
+        }
+
+        awaitExtraction(CompletableFuture.allOf(extractions.toArray(new CompletableFuture[0])));
     }
 
-    void extractZipFileWithFileMapping(ZipFile zipFile, Path targetPath, Map<String, String> fileMapping) {
+    CompletableFuture<Void> startExtraction(ZipIndex zipIndex, Path targetPath, Map<String, String> fileMapping, PayloadDigests payloadDigests, DiskSpaceReservation reservation)
+        throws IOException {
+        var targets = new LinkedHashMap<ZipIndex.Entry, Path>();
 
-        zipFile.stream().filter(e -> !e.getName().endsWith("/")).forEach(entry -> {
+        for (var entry : zipIndex.getFileEntries()) {
             var name = entry.getName();
             if (name.contains("../")) {
                 log.warn("Ignoring entry {} because it is outside the target directory", name);
-                return;
+                continue;
             }
-            var target = targetPath.resolve(Path.of(fileMapping.getOrDefault(name, name)));
 
+            targets.put(entry, targetPath.resolve(Path.of(fileMapping.getOrDefault(name, name))));
+        }
+
+        // create every parent directory once up front, so the workers do not race each other creating them
+        var directories = targets.values().stream().map(Path::getParent).filter(Objects::nonNull).collect(Collectors.toCollection(TreeSet::new));
+
+        for (var directory : directories) {
+            fileService.ensureDirectoriesExist(directory);
+        }
+
+        var algorithms = payloadDigests != null ? payloadDigests.getAlgorithms() : Set.<String> of();
+        var pending = new ConcurrentLinkedQueue<>(targets.entrySet());
+        var workers = Math.min(extractionWorkers, Math.max(1, targets.size()));
+        var futures = new ArrayList<CompletableFuture<Void>>(workers);
+
+        for (var i = 0; i < workers; ++i) {
+            futures.add(startWorker(() -> {
+                Map.Entry<ZipIndex.Entry, Path> next;
+
+                while ((next = pending.poll()) != null) {
+                    if (algorithms.isEmpty()) {
+                        extractEntry(zipIndex, next.getKey(), next.getValue(), reservation);
+                    }
+                    else {
+                        extractEntry(zipIndex, next.getKey(), next.getValue(), algorithms, payloadDigests, reservation);
+                    }
+                }
+            }));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    void extractEntry(ZipIndex zipIndex, ZipIndex.Entry entry, Path target, DiskSpaceReservation reservation) {
+        try (var inputStream = zipIndex.getInputStream(entry)) {
+            log.trace("Extracting entry {} to target destination {}", entry.getName(), target);
+            fileService.copyFile(reservation != null ? reservation.trackWrites(inputStream) : inputStream, target);
+        }
+        catch (IOException e) {
+            log.error("Unable to copy entry {} to {}", entry.getName(), target, e);
+        }
+    }
+
+    /**
+     * Extracts the entry while passing its bytes through a digest for each algorithm, so the extracted file does not need to be read again to verify it.
+     */
+    void extractEntry(ZipIndex zipIndex, ZipIndex.Entry entry, Path target, Set<String> algorithms, PayloadDigests payloadDigests, DiskSpaceReservation reservation) {
+        // a file that is written again (by a later archive) must not keep the digests of its previous contents
+        payloadDigests.remove(target);
+
+        var messageDigests = new LinkedHashMap<String, MessageDigest>();
+
+        try {
+            for (var algorithm : algorithms) {
+                messageDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+            }
+        }
+        catch (NoSuchAlgorithmException e) {
+            log.warn("Unable to calculate digests for entry {}, it will be read again during verification", entry.getName(), e);
+            extractEntry(zipIndex, entry, target, reservation);
+            return;
+        }
+
+        try (var inputStream = zipIndex.getInputStream(entry)) {
+            InputStream stream = reservation != null ? reservation.trackWrites(inputStream) : inputStream;
+
+            for (var messageDigest : messageDigests.values()) {
+                stream = new DigestInputStream(stream, messageDigest);
+            }
+
+            log.trace("Extracting entry {} to target destination {}", entry.getName(), target);
+            fileService.copyFile(stream, target);
+
+            var digests = new HashMap<String, String>();
+
+            for (var messageDigest : messageDigests.entrySet()) {
+                digests.put(messageDigest.getKey(), DatatypeConverter.printHexBinary(messageDigest.getValue().digest()).toLowerCase(Locale.ROOT));
+            }
+
+            payloadDigests.put(target, digests);
+        }
+        catch (IOException e) {
+            log.error("Unable to copy entry {} to {}", entry.getName(), target, e);
+        }
+    }
+
+    private CompletableFuture<Void> startWorker(Runnable worker) {
+        if (extractionExecutor != null) {
             try {
-                log.trace("Extracting entry {} to target destination {}", entry.getName(), target);
-                fileService.copyFile(zipFile.getInputStream(entry), target);
+                return CompletableFuture.runAsync(worker, extractionExecutor);
             }
-            catch (IOException e) {
-                log.error("Unable to copy entry {} to {}", entry.getName(), target, e);
+            catch (RejectedExecutionException e) {
+                log.debug("Extraction executor is saturated, extracting on the calling thread");
             }
-        });
+        }
+
+        worker.run();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void awaitExtraction(CompletableFuture<Void> extraction) throws IOException {
+        try {
+            extraction.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for zip extraction to finish");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Unable to extract zip file", e.getCause());
+        }
+    }
+
+    @Override
+    public void extractZipStream(InputStream inputStream, Path targetPath, UnaryOperator<String> fileMapping, ExtractionBudget budget) throws IOException {
+        // not closed, because that would close the stream of the caller
+        var zipInputStream = new ZipInputStream(inputStream);
+        ZipEntry entry;
+
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            var name = entry.getName();
+
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            if (name.contains("../")) {
+                log.warn("Ignoring entry {} because it is outside the target directory", name);
+                continue;
+            }
+
+            var target = targetPath.resolve(Path.of(fileMapping.apply(name)));
+            log.trace("Extracting streamed entry {} to target destination {}", name, target);
+            fileService.copyFile(new BudgetedEntryStream(zipInputStream, entry, budget), target);
+        }
     }
 
     @Override
     public List<String> getFilesInZip(Path path) throws IOException {
-        return getFilesInZip(new ZipFile(path.toFile()));
+        try (var zipIndex = openZipIndex(path)) {
+            return getFilesInZip(zipIndex);
+        }
+    }
+
+    @Override
+    public List<String> getFilesInZip(ZipIndex zipIndex) {
+        return zipIndex.getFileNames();
     }
 
     @Override
     public long getExtractedSize(Path zipFile) throws IOException {
-        var file = new ZipFile(zipFile.toFile());
-        return file.stream().map(ZipEntry::getSize).reduce(0L, Long::sum);
+        try (var zipIndex = openZipIndex(zipFile)) {
+            return getExtractedSize(zipIndex);
+        }
+    }
+
+    @Override
+    public long getExtractedSize(ZipIndex zipIndex) {
+        return zipIndex.getExtractedSize();
     }
 
-    List<String> getFilesInZip(ZipFile zipFile) {
-        return zipFile.stream().map(ZipEntry::getName).filter(e -> !e.endsWith("/")).collect(Collectors.toList());
+    /**
+     * The data of one entry of a zip stream, which claims every byte from the budget before it is handed on to be written, and which fails if the entry turns out to be larger than its local
+     * header says. Closing it does not close the zip stream.
+     */
+    private static final class BudgetedEntryStream extends FilterInputStream {
+        private final ZipEntry entry;
+        private final ExtractionBudget budget;
+        private long read;
+
+        private BudgetedEntryStream(InputStream in, ZipEntry entry, ExtractionBudget budget) {
+            super(in);
+            this.entry = entry;
+            this.budget = budget;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+
+            if (b != -1) {
+                count(1);
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var n = super.read(b, off, len);
+
+            if (n > 0) {
+                count(n);
+            }
+
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            read += n;
+
+            if (entry.getSize() >= 0 && read > entry.getSize()) {
+                throw new IOException(String.format("Entry %s is larger than the %d bytes that it declares", entry.getName(), entry.getSize()));
+            }
+
+            budget.claim(n);
+        }
+
+        @Override
+        public void close() {
+            // the zip stream continues with the next entry
+        }
     }
 }
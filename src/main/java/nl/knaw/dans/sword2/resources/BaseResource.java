@@ -17,20 +17,39 @@ package nl.knaw.dans.sword2.resources;
 
 import nl.knaw.dans.sword2.core.config.SwordError;
 import nl.knaw.dans.sword2.core.config.UriRegistry;
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidHeaderException;
 import nl.knaw.dans.sword2.core.service.ErrorResponseFactory;
+import nl.knaw.dans.sword2.core.service.InputStreamPayloadSource;
+import nl.knaw.dans.sword2.core.service.PayloadSource;
 import org.apache.commons.fileupload.ParameterParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 public class BaseResource {
     private static final Logger log = LoggerFactory.getLogger(BaseResource.class);
 
+    // digest algorithm tokens of RFC 3230 and RFC 9530 that can be checked, and their MessageDigest names
+    private static final Map<String, String> DIGEST_ALGORITHMS = Map.of(
+        "md5", "MD5",
+        "sha", "SHA-1",
+        "sha-256", "SHA-256",
+        "sha-512", "SHA-512"
+    );
+
     private final ErrorResponseFactory errorResponseFactory;
     private final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss Z");
 
@@ -51,10 +70,45 @@ public class BaseResource {
             .build();
     }
 
+    /**
+     * Builds the response to a deposit that was refused because the finalizer has too much work, telling the client when to try again.
+     */
+    Response buildServiceUnavailableResponse(FinalizingQueueFullException e) {
+        var errorResponse = errorResponseFactory.buildSwordErrorResponse(SwordError.ERROR_SERVICE_UNAVAILABLE, e.getMessage());
+
+        return Response.status(errorResponse.getCode())
+            .header("Content-Type", "text/xml")
+            .header("Retry-After", Math.max(e.getRetryAfter().toSeconds(), 1))
+            .entity(errorResponse.getError())
+            .build();
+    }
+
     String formatDateTime(OffsetDateTime dateTime) {
         return dateTime.format(dateTimeFormatter);
     }
 
+    /**
+     * Returns the body of the request. A suspended request is read with non-blocking I/O, so no thread is held while the client is sending; otherwise it is read on the calling thread.
+     */
+    PayloadSource getPayloadSource(HttpServletRequest request) throws IOException {
+        if (request.isAsyncStarted()) {
+            return new ServletPayloadSource(request.getInputStream());
+        }
+
+        return new InputStreamPayloadSource(request.getInputStream());
+    }
+
+    /**
+     * Returns the exception that made an asynchronous step fail, without the {@link CompletionException} it is wrapped in.
+     */
+    Throwable getCause(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+
+        return error;
+    }
+
     String getParameterValueFromContentDisposition(String contentDisposition, String key) {
         if (contentDisposition == null || key == null) {
             return null;
@@ -109,4 +163,66 @@ public class BaseResource {
 
         return MediaType.valueOf(contentType);
     }
+
+    /**
+     * Parses the RFC 3230 Digest header and the RFC 9530 Repr-Digest header. Algorithms that cannot be checked are ignored, as both RFCs allow.
+     *
+     * @param digestHeader     the value of the Digest header, e.g. <code>sha-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=</code>
+     * @param reprDigestHeader the value of the Repr-Digest header, e.g. <code>sha-256=:X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=:</code>
+     * @return the lower case hex digests, by {@link java.security.MessageDigest} algorithm name
+     * @throws InvalidHeaderException if a digest is not valid base64, or the headers contradict each other
+     */
+    Map<String, String> getDigests(String digestHeader, String reprDigestHeader) throws InvalidHeaderException {
+        var digests = new HashMap<String, String>();
+
+        if (digestHeader != null) {
+            parseDigests(digestHeader, false, digests);
+        }
+
+        if (reprDigestHeader != null) {
+            parseDigests(reprDigestHeader, true, digests);
+        }
+
+        return digests;
+    }
+
+    private void parseDigests(String header, boolean structured, Map<String, String> digests) throws InvalidHeaderException {
+        for (var member : header.split(",")) {
+            var parts = member.split("=", 2);
+            var algorithm = DIGEST_ALGORITHMS.get(parts[0].trim().toLowerCase(Locale.ROOT));
+
+            if (algorithm == null || parts.length != 2) {
+                log.debug("Ignoring digest {}, its algorithm is not supported", member);
+                continue;
+            }
+
+            var value = parts[1].trim();
+
+            if (structured) {
+                // a byte sequence in a structured field dictionary, possibly followed by parameters
+                var end = value.indexOf(':', 1);
+
+                if (!value.startsWith(":") || end < 0) {
+                    throw new InvalidHeaderException(String.format("Repr-Digest header has an invalid value for %s: %s", parts[0].trim(), value));
+                }
+
+                value = value.substring(1, end);
+            }
+
+            String digest;
+
+            try {
+                digest = DatatypeConverter.printHexBinary(Base64.getDecoder().decode(value)).toLowerCase(Locale.ROOT);
+            }
+            catch (IllegalArgumentException e) {
+                throw new InvalidHeaderException(String.format("Digest for %s is not valid base64: %s", parts[0].trim(), value));
+            }
+
+            var previous = digests.put(algorithm, digest);
+
+            if (previous != null && !previous.equals(digest)) {
+                throw new InvalidHeaderException(String.format("Different %s digests were sent", algorithm));
+            }
+        }
+    }
 }
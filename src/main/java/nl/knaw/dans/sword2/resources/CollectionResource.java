@@ -20,17 +20,19 @@ import nl.knaw.dans.sword2.core.auth.Depositor;
 import nl.knaw.dans.sword2.api.statement.Feed;
 import org.glassfish.jersey.media.multipart.MultiPart;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.InputStream;
 
 @Path("/collection/{id}")
 public interface CollectionResource {
@@ -57,10 +59,11 @@ public interface CollectionResource {
     @POST
     @Consumes()
     @Produces(MediaType.APPLICATION_ATOM_XML)
-    Response depositAnything(InputStream inputStream,
-        @PathParam("id") String collectionId,
+    void depositAnything(@PathParam("id") String collectionId,
         @Context HttpHeaders headers,
-        @Auth Depositor depositor
+        @Context HttpServletRequest request,
+        @Auth Depositor depositor,
+        @Suspended AsyncResponse asyncResponse
     );
 
 }
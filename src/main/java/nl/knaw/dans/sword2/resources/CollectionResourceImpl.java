@@ -18,10 +18,12 @@ package nl.knaw.dans.sword2.resources;
 import nl.knaw.dans.sword2.api.error.Generator;
 import nl.knaw.dans.sword2.api.statement.Feed;
 import nl.knaw.dans.sword2.api.statement.FeedEntry;
+import nl.knaw.dans.sword2.core.Deposit;
 import nl.knaw.dans.sword2.core.auth.Depositor;
 import nl.knaw.dans.sword2.core.config.SwordError;
 import nl.knaw.dans.sword2.core.config.UriRegistry;
 import nl.knaw.dans.sword2.core.exceptions.CollectionNotFoundException;
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
 import nl.knaw.dans.sword2.core.exceptions.HashMismatchException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidContentTypeException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
@@ -33,12 +35,13 @@ import nl.knaw.dans.sword2.core.service.DepositReceiptFactory;
 import nl.knaw.dans.sword2.core.service.ErrorResponseFactory;
 import org.glassfish.jersey.media.multipart.MultiPart;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.util.List;
 
@@ -73,13 +76,14 @@ public class CollectionResourceImpl extends BaseResource implements CollectionRe
     }
 
     @Override
-    public Response depositAnything(InputStream inputStream, String collectionId, HttpHeaders headers, Depositor depositor) {
+    public void depositAnything(String collectionId, HttpHeaders headers, HttpServletRequest request, Depositor depositor, AsyncResponse asyncResponse) {
 
         try {
             MediaType contentType = getContentType(headers.getHeaderString("content-type"));
             var inProgress = getInProgress(headers.getHeaderString("in-progress"));
             var contentDisposition = headers.getHeaderString("content-disposition");
             var md5 = headers.getHeaderString("content-md5");
+            var digests = getDigests(headers.getHeaderString("digest"), headers.getHeaderString("repr-digest"));
             var packaging = getPackaging(headers.getHeaderString("packaging"));
 
             var filename = getParameterValueFromContentDisposition(contentDisposition, "filename");
@@ -90,34 +94,69 @@ public class CollectionResourceImpl extends BaseResource implements CollectionRe
 
             var fileSize = getContentLength(headers.getHeaderString("content-length"));
 
-            var deposit = depositHandler.createDepositWithPayload(collectionId, depositor, inProgress, contentType, md5, packaging, filename, fileSize, inputStream);
+            // extracting while uploading reads the archive as it arrives, which takes the request thread for the whole upload
+            if (depositHandler.isExtractedWhileUploading(inProgress, contentType)) {
+                var deposit = depositHandler.createDepositWithPayload(collectionId, depositor, inProgress, contentType, md5, digests, packaging, filename, fileSize,
+                    request.getInputStream());
+                asyncResponse.resume(buildCreatedResponse(deposit));
+                return;
+            }
 
-            var entry = depositReceiptFactory.createDepositReceipt(deposit);
+            // the request thread is released here; the response is sent from the thread that receives the last of the payload
+            depositHandler.createDepositWithPayloadAsync(collectionId, depositor, inProgress, contentType, md5, digests, packaging, filename, fileSize, getPayloadSource(request))
+                .thenApply(this::buildCreatedResponse)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        resumeWithError(asyncResponse, getCause(error));
+                    }
+                    else {
+                        asyncResponse.resume(response);
+                    }
+                });
+        }
+        catch (IOException | InvalidHeaderException | CollectionNotFoundException | NotEnoughDiskSpaceException | FinalizingQueueFullException | HashMismatchException |
+            InvalidDepositException | InvalidSupportedBagPackagingException | InvalidContentTypeException e) {
+            resumeWithError(asyncResponse, e);
+        }
+    }
 
-            return Response.status(Response.Status.CREATED)
-                .header("Last-Modified", formatDateTime(deposit.getCreated()))
-                .header("Location", depositReceiptFactory.getDepositLocation(deposit))
-                .entity(entry)
-                .build();
+    private Response buildCreatedResponse(Deposit deposit) {
+        var entry = depositReceiptFactory.createDepositReceipt(deposit);
 
+        return Response.status(Response.Status.CREATED)
+            .header("Last-Modified", formatDateTime(deposit.getCreated()))
+            .header("Location", depositReceiptFactory.getDepositLocation(deposit))
+            .entity(entry)
+            .build();
+    }
+
+    private void resumeWithError(AsyncResponse asyncResponse, Throwable error) {
+        try {
+            throw error;
         }
         catch (IOException | InvalidHeaderException | InvalidDepositException e) {
-            return buildSwordErrorResponse(SwordError.ERROR_BAD_REQUEST, e.getMessage());
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_BAD_REQUEST, e.getMessage()));
         }
         catch (CollectionNotFoundException e) {
-            return buildSwordErrorResponse(SwordError.ERROR_METHOD_NOT_ALLOWED, e.getMessage());
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_METHOD_NOT_ALLOWED, e.getMessage()));
         }
         catch (HashMismatchException e) {
-            return buildSwordErrorResponse(SwordError.ERROR_CHECKSUM_MISMATCH);
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_CHECKSUM_MISMATCH));
         }
         catch (NotEnoughDiskSpaceException e) {
-            throw new WebApplicationException(503);
+            asyncResponse.resume(new WebApplicationException(503));
+        }
+        catch (FinalizingQueueFullException e) {
+            asyncResponse.resume(buildServiceUnavailableResponse(e));
         }
         catch (InvalidSupportedBagPackagingException e) {
-            return buildSwordErrorResponse(SwordError.ERROR_CONTENT_UNSUPPORTED_MEDIA_TYPE);
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_CONTENT_UNSUPPORTED_MEDIA_TYPE));
         }
         catch (InvalidContentTypeException e) {
-            return buildSwordErrorResponse(SwordError.ERROR_CONTENT_NOT_ACCEPTABLE);
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_CONTENT_NOT_ACCEPTABLE));
+        }
+        catch (Throwable e) {
+            asyncResponse.resume(e);
         }
     }
 }
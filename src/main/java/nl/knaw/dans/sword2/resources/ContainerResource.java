@@ -18,17 +18,19 @@ package nl.knaw.dans.sword2.resources;
 import io.dropwizard.auth.Auth;
 import nl.knaw.dans.sword2.core.auth.Depositor;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
 import javax.ws.rs.HEAD;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.InputStream;
 
 @Path("/container/{id}")
 public interface ContainerResource {
@@ -41,5 +43,6 @@ public interface ContainerResource {
 
     @POST
     @Produces(MediaType.APPLICATION_XML)
-    Response addMedia(InputStream inputStream, @PathParam("id") String depositId, @Context HttpHeaders headers, @Auth Depositor depositor);
+    void addMedia(@PathParam("id") String depositId, @Context HttpHeaders headers, @Context HttpServletRequest request, @Auth Depositor depositor,
+        @Suspended AsyncResponse asyncResponse);
 }
@@ -15,11 +15,13 @@
  */
 package nl.knaw.dans.sword2.resources;
 
+import nl.knaw.dans.sword2.core.Deposit;
 import nl.knaw.dans.sword2.core.config.SwordError;
 import nl.knaw.dans.sword2.core.auth.Depositor;
 import nl.knaw.dans.sword2.core.exceptions.CollectionNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositReadOnlyException;
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
 import nl.knaw.dans.sword2.core.exceptions.HashMismatchException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidHeaderException;
@@ -30,11 +32,12 @@ import nl.knaw.dans.sword2.core.service.ErrorResponseFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
-import java.io.InputStream;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -104,7 +107,7 @@ public class ContainerResourceImpl extends BaseResource implements ContainerReso
     }
 
     @Override
-    public Response addMedia(InputStream inputStream, String depositId, HttpHeaders headers, Depositor depositor) {
+    public void addMedia(String depositId, HttpHeaders headers, HttpServletRequest request, Depositor depositor, AsyncResponse asyncResponse) {
         log.info("Received getDepositReceiptHead request for deposit with ID {} and user {}", depositId, depositor.getName());
 
         try {
@@ -113,49 +116,80 @@ public class ContainerResourceImpl extends BaseResource implements ContainerReso
 
             var contentDisposition = headers.getHeaderString("content-disposition");
             var md5 = headers.getHeaderString("content-md5");
+            var digests = getDigests(headers.getHeaderString("digest"), headers.getHeaderString("repr-digest"));
             var packaging = getPackaging(headers.getHeaderString("packaging"));
 
             var filename = getParameterValueFromContentDisposition(contentDisposition, "filename");
             var fileSize = getContentLength(headers.getHeaderString("content-length"));
 
-            var deposit = depositHandler.addPayloadToDeposit(depositId, depositor, inProgress, contentType, md5, packaging, filename, fileSize, inputStream);
-            var entry = depositReceiptFactory.createDepositReceipt(deposit);
-            var location = depositReceiptFactory.getDepositLocation(deposit);
+            // the request thread is released here; the response is sent from the thread that receives the last of the payload
+            depositHandler.addPayloadToDepositAsync(depositId, depositor, inProgress, contentType, md5, digests, packaging, filename, fileSize, getPayloadSource(request))
+                .thenApply(this::buildAddedResponse)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        resumeWithError(asyncResponse, depositId, getCause(error));
+                    }
+                    else {
+                        asyncResponse.resume(response);
+                    }
+                });
+        }
+        catch (IOException | InvalidHeaderException | CollectionNotFoundException | DepositReadOnlyException | NotEnoughDiskSpaceException | DepositNotFoundException
+               | InvalidDepositException | FinalizingQueueFullException e) {
+            resumeWithError(asyncResponse, depositId, e);
+        }
+    }
 
-            return Response.status(Response.Status.OK)
-                .header("Location", location)
-                .header("Content-Type", "application/atom+xml;type=entry")
-                .header("Last-Modified", OffsetDateTime.now().format(dateTimeFormatter))
-                .entity(entry)
-                .build();
+    private Response buildAddedResponse(Deposit deposit) {
+        var entry = depositReceiptFactory.createDepositReceipt(deposit);
+        var location = depositReceiptFactory.getDepositLocation(deposit);
+
+        return Response.status(Response.Status.OK)
+            .header("Location", location)
+            .header("Content-Type", "application/atom+xml;type=entry")
+            .header("Last-Modified", OffsetDateTime.now().format(dateTimeFormatter))
+            .entity(entry)
+            .build();
+    }
+
+    private void resumeWithError(AsyncResponse asyncResponse, String depositId, Throwable error) {
+        try {
+            throw error;
         }
         catch (IOException e) {
             log.error("An IOException occurred while processing the request for deposit with ID {}", depositId, e);
-            return buildSwordErrorResponse(SwordError.ERROR_BAD_REQUEST, e.getMessage());
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_BAD_REQUEST, e.getMessage()));
         }
         catch (InvalidHeaderException e) {
             log.error("An invalid header was received while processing the request for deposit with ID {}", depositId, e);
-            return buildSwordErrorResponse(SwordError.ERROR_BAD_REQUEST, e.getMessage());
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_BAD_REQUEST, e.getMessage()));
         }
         catch (CollectionNotFoundException | DepositReadOnlyException e) {
             log.error("The deposit with ID {} is read-only", depositId, e);
-            return buildSwordErrorResponse(SwordError.ERROR_METHOD_NOT_ALLOWED, e.getMessage());
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_METHOD_NOT_ALLOWED, e.getMessage()));
         }
         catch (HashMismatchException e) {
             log.error("The content has a different checksum than the one provided for deposit with ID {}", depositId, e);
-            return buildSwordErrorResponse(SwordError.ERROR_CHECKSUM_MISMATCH);
+            asyncResponse.resume(buildSwordErrorResponse(SwordError.ERROR_CHECKSUM_MISMATCH));
         }
         catch (NotEnoughDiskSpaceException e) {
             log.error("The content could not be stored due to insufficient disk space, for deposit with ID {}", depositId, e);
-            throw new WebApplicationException(e, 503);
+            asyncResponse.resume(new WebApplicationException(e, 503));
+        }
+        catch (FinalizingQueueFullException e) {
+            log.warn("The finalizer is too busy to accept deposit with ID {}, retry after {}", depositId, e.getRetryAfter());
+            asyncResponse.resume(buildServiceUnavailableResponse(e));
         }
         catch (DepositNotFoundException e) {
             log.error("Deposit with ID {} could not be found", depositId, e);
-            throw new WebApplicationException(e, 404);
+            asyncResponse.resume(new WebApplicationException(e, 404));
         }
         catch (InvalidDepositException e) {
             log.error("The deposit with ID {} is invalid", depositId, e);
-            throw new WebApplicationException(e, 500);
+            asyncResponse.resume(new WebApplicationException(e, 500));
+        }
+        catch (Throwable e) {
+            asyncResponse.resume(e);
         }
     }
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.resources;
+
+import nl.knaw.dans.sword2.core.service.PayloadSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The body of a request that is in asynchronous mode, read with servlet non-blocking I/O. The container calls back when data is available, so no thread waits for a slow client; each
+ * callback writes only what can be read without blocking and then returns the thread to the container.
+ */
+public class ServletPayloadSource implements PayloadSource {
+    private static final Logger log = LoggerFactory.getLogger(ServletPayloadSource.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServletInputStream inputStream;
+
+    public ServletPayloadSource(ServletInputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    @Override
+    public CompletionStage<Void> transferTo(OutputStream outputStream) {
+        var result = new CompletableFuture<Void>();
+        inputStream.setReadListener(new Listener(outputStream, result));
+        return result;
+    }
+
+    private class Listener implements ReadListener {
+        private final OutputStream outputStream;
+        private final CompletableFuture<Void> result;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private long received;
+
+        private Listener(OutputStream outputStream, CompletableFuture<Void> result) {
+            this.outputStream = outputStream;
+            this.result = result;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            // isReady() registers for another callback when it returns false, so the loop must not end any other way while data remains
+            while (inputStream.isReady()) {
+                var read = inputStream.read(buffer);
+
+                if (read == -1) {
+                    return;
+                }
+
+                try {
+                    outputStream.write(buffer, 0, read);
+                }
+                catch (IOException e) {
+                    result.completeExceptionally(e);
+                    throw e;
+                }
+
+                received += read;
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            log.trace("Received {} bytes", received);
+            result.complete(null);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.debug("Reading the request body failed after {} bytes", received, t);
+            result.completeExceptionally(t);
+        }
+    }
+}
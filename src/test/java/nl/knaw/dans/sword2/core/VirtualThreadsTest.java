@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class VirtualThreadsTest {
+
+    @Test
+    void newThreadFactory_should_create_named_threads_if_supported() throws InterruptedException {
+        Assumptions.assumeTrue(VirtualThreads.isSupported(), "virtual threads are not available on this runtime");
+
+        var name = new AtomicReference<String>();
+        var thread = VirtualThreads.newThreadFactory("worker-%d").newThread(() -> name.set(Thread.currentThread().getName()));
+        thread.start();
+        thread.join();
+
+        assertThat(name.get()).isEqualTo("worker-0");
+        assertThat(thread.isDaemon()).isTrue();
+    }
+
+    @Test
+    void newThreadFactory_should_throw_IllegalStateException_if_not_supported() {
+        Assumptions.assumeFalse(VirtualThreads.isSupported(), "virtual threads are available on this runtime");
+
+        assertThrows(IllegalStateException.class, () -> VirtualThreads.newThreadFactory("worker-%d"));
+    }
+}
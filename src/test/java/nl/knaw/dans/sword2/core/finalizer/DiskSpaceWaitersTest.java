@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.core.service.FilesystemSpaceVerifier;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DiskSpaceWaitersTest {
+    private final Path destination = Path.of("deposits");
+    private final Clock clock = Clock.systemUTC();
+
+    private FilesystemSpaceVerifier verifierWithUnreservedSpace(long unreserved) throws IOException {
+        var verifier = Mockito.mock(FilesystemSpaceVerifier.class);
+        Mockito.when(verifier.getFileStore(Mockito.any())).thenReturn(Mockito.mock(FileStore.class));
+        Mockito.when(verifier.getUnreservedDiskSpace(Mockito.any())).thenReturn(unreserved);
+        return verifier;
+    }
+
+    private RescheduleBackoff backoff() {
+        var random = Mockito.mock(Random.class);
+        Mockito.when(random.nextDouble()).thenReturn(0.0);
+        return new RescheduleBackoff(Duration.ofMinutes(1), Duration.ofHours(1), random);
+    }
+
+    private ArrayList<String> drain(BlockingQueue<DepositFinalizerEvent> queue) {
+        var ids = new ArrayList<String>();
+
+        for (var event : queue) {
+            ids.add(event.getDepositId());
+        }
+
+        return ids;
+    }
+
+    @Test
+    void admit_should_let_through_the_smallest_deposits_that_fit() throws Exception {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(10);
+        var waiters = new DiskSpaceWaiters(verifierWithUnreservedSpace(1000), queue, backoff(), clock);
+
+        waiters.add("large", 1, destination, 900);
+        waiters.add("medium", 1, destination, 500);
+        waiters.add("small", 1, destination, 300);
+        waiters.add("tiny", 1, destination, 100);
+
+        assertThat(waiters.admit()).isEqualTo(3);
+        assertThat(drain(queue)).containsExactly("tiny", "small", "medium");
+        assertThat(waiters.getSize()).isEqualTo(1);
+        assertThat(waiters.getRequiredSpace()).isEqualTo(900L);
+    }
+
+    @Test
+    void admit_should_keep_deposits_waiting_while_they_do_not_fit() throws Exception {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(10);
+        var waiters = new DiskSpaceWaiters(verifierWithUnreservedSpace(100), queue, backoff(), clock);
+
+        waiters.add("id", 1, destination, 500);
+
+        assertThat(waiters.admit()).isEqualTo(0);
+        assertThat(queue.size()).isEqualTo(0);
+        assertThat(waiters.getSize()).isEqualTo(1);
+    }
+
+    @Test
+    void admit_should_let_through_deposits_whose_backoff_delay_has_passed() throws Exception {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(10);
+        var clock = Mockito.mock(Clock.class);
+        Mockito.when(clock.millis()).thenReturn(0L, 0L, 31_000L);
+        var waiters = new DiskSpaceWaiters(verifierWithUnreservedSpace(100), queue, backoff(), clock);
+
+        // the delay is 30 seconds after the first attempt and 2 minutes after the third
+        waiters.add("first", 1, destination, 500);
+        waiters.add("third", 3, destination, 400);
+
+        assertThat(waiters.admit()).isEqualTo(1);
+        assertThat(drain(queue)).containsExactly("first");
+        assertThat(waiters.getSize()).isEqualTo(1);
+    }
+
+    @Test
+    void admit_should_stop_when_the_queue_is_full() throws Exception {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(1);
+        var waiters = new DiskSpaceWaiters(verifierWithUnreservedSpace(1000), queue, backoff(), clock);
+
+        waiters.add("first", 1, destination, 100);
+        waiters.add("second", 1, destination, 200);
+
+        assertThat(waiters.admit()).isEqualTo(1);
+        assertThat(drain(queue)).containsExactly("first");
+        assertThat(waiters.getSize()).isEqualTo(1);
+    }
+
+    @Test
+    void scheduleRetry_should_hand_deposits_with_a_known_size_to_the_waiters() throws Exception {
+        var rescheduleQueue = Mockito.mock(ScheduledExecutorService.class);
+        var waiters = new DiskSpaceWaiters(verifierWithUnreservedSpace(0), new ArrayBlockingQueue<>(1), backoff(), clock);
+        var listener = new DepositFinalizerListener(new ArrayBlockingQueue<>(1), Mockito.mock(ExecutorService.class), null, rescheduleQueue, backoff(), waiters, null, null);
+
+        listener.scheduleRetry(new DepositFinalizerRescheduleEvent("id", 2, destination, 500));
+
+        assertThat(waiters.getSize()).isEqualTo(1);
+        Mockito.verifyNoMoreInteractions(rescheduleQueue);
+    }
+}
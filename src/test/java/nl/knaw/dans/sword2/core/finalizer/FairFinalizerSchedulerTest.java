@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.sword2.core.Deposit;
+import nl.knaw.dans.sword2.core.config.CollectionConfig;
+import nl.knaw.dans.sword2.core.config.UserConfig;
+import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
+import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
+import nl.knaw.dans.sword2.core.service.DepositHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FairFinalizerSchedulerTest {
+    private final DepositHandler depositHandler = Mockito.mock(DepositHandler.class);
+    private final ExecutorService executor = Mockito.mock(ExecutorService.class);
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<String> finalized = new ArrayList<>();
+    private final CollectionConfig collection = new CollectionConfig("collection1", "1", Path.of("uploads"), Path.of("deposits"), 0, List.of());
+
+    @BeforeEach
+    void beforeEach() {
+        Mockito.doAnswer(invocation -> tasks.add(invocation.getArgument(0))).when(executor).execute(Mockito.any());
+        Mockito.when(depositHandler.finalizeDepositAsync(Mockito.anyString())).thenAnswer(invocation -> {
+            finalized.add(invocation.getArgument(0));
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private void submit(FairFinalizerScheduler scheduler, String depositor, String... depositIds) throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        for (var depositId : depositIds) {
+            submitWithSize(scheduler, depositor, depositId, -1);
+        }
+    }
+
+    private void submitWithSize(FairFinalizerScheduler scheduler, String depositor, String depositId, long contentLength) throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        var deposit = new Deposit();
+        deposit.setId(depositId);
+        deposit.setDepositor(depositor);
+        deposit.setCollectionId("collection1");
+        deposit.setContentLength(contentLength);
+        Mockito.when(depositHandler.getDeposit(depositId)).thenReturn(deposit);
+        scheduler.submit(new DepositFinalizerEvent(depositId));
+    }
+
+    private void runAll() {
+        // finishing a task starts the next ones, which are appended to the list
+        for (var i = 0; i < tasks.size(); i++) {
+            tasks.get(i).run();
+        }
+    }
+
+    private FairFinalizerScheduler.Builder schedulerBuilder() {
+        return new FairFinalizerScheduler.Builder()
+            .setFinalizerQueue(executor)
+            .setDepositHandler(depositHandler)
+            .setTaskQueue(new ArrayBlockingQueue<>(1))
+            .setCollections(List.of(collection));
+    }
+
+    private UserConfig user(String name, int weight, Integer maxConcurrentFinalizations) {
+        var user = new UserConfig(name, null, false, List.of("collection1"));
+        user.setFinalizationWeight(weight);
+        user.setMaxConcurrentFinalizations(maxConcurrentFinalizations);
+        return user;
+    }
+
+    @Test
+    void submit_should_let_other_depositors_in_between_a_bulk_depositor() throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        var scheduler = schedulerBuilder().setMaxRunning(2).build();
+
+        submit(scheduler, "bulk", "b1", "b2", "b3", "b4", "b5", "b6");
+        submit(scheduler, "interactive", "i1", "i2");
+
+        assertThat(tasks.size()).isEqualTo(2);
+        assertThat(scheduler.getQueued()).isEqualTo(6);
+
+        runAll();
+
+        assertThat(finalized).containsExactly("b1", "b2", "b3", "i1", "b4", "i2", "b5", "b6");
+        assertThat(scheduler.getRunning()).isEqualTo(0);
+        assertThat(scheduler.getQueued()).isEqualTo(0);
+    }
+
+    @Test
+    void submit_should_give_lanes_turns_as_long_as_their_weight() throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        var users = List.of(user("heavy", 2, null), user("light", 1, null));
+        var scheduler = schedulerBuilder().setUsers(users).build();
+
+        submit(scheduler, "heavy", "h1", "h2", "h3", "h4");
+        submit(scheduler, "light", "l1", "l2");
+        runAll();
+
+        assertThat(finalized).containsExactly("h1", "h2", "h3", "l1", "h4", "l2");
+    }
+
+    @Test
+    void submit_should_not_start_more_than_the_cap_of_a_depositor() throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        var users = List.of(user("bulk", 1, 1));
+        var scheduler = schedulerBuilder().setMaxRunning(4).setUsers(users).build();
+
+        submit(scheduler, "bulk", "b1", "b2", "b3");
+        submit(scheduler, "interactive", "i1");
+
+        assertThat(tasks.size()).isEqualTo(2);
+        assertThat(scheduler.getRunning()).isEqualTo(2);
+        assertThat(scheduler.getQueued()).isEqualTo(2);
+
+        runAll();
+
+        assertThat(finalized).containsExactly("b1", "i1", "b2", "b3");
+    }
+
+    @Test
+    void submit_should_take_small_deposits_first_but_not_overtake_a_large_one_forever() throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        var gigabyte = 1024L * 1024 * 1024;
+        var clock = Mockito.mock(Clock.class);
+        // the arrival times of the deposits below, in milliseconds
+        Mockito.when(clock.millis()).thenReturn(0L, 0L, 5_000L, 11_000L);
+        var order = new FinalizationOrder(gigabyte, clock);
+        var scheduler = schedulerBuilder().setOrder(order).build();
+
+        submitWithSize(scheduler, "user001", "busy", gigabyte);
+        // placed as if it arrived after 10 seconds
+        submitWithSize(scheduler, "user001", "large", 10 * gigabyte);
+        submitWithSize(scheduler, "user001", "small", 1024 * 1024);
+        submitWithSize(scheduler, "user001", "late", 1024 * 1024);
+        runAll();
+
+        assertThat(finalized).containsExactly("busy", "small", "large", "late");
+    }
+
+    @Test
+    void submit_should_take_the_lane_from_the_event_without_looking_up_the_deposit() throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        var scheduler = schedulerBuilder().build();
+        var deposit = new Deposit();
+        deposit.setId("d1");
+        deposit.setDepositor("user001");
+        deposit.setCollectionId("collection1");
+
+        scheduler.submit(new DepositFinalizerEvent(deposit));
+        runAll();
+
+        assertThat(finalized).containsExactly("d1");
+        Mockito.verify(depositHandler, Mockito.never()).getDeposit(Mockito.anyString());
+    }
+
+    @Test
+    void submit_should_remove_lanes_and_their_gauges_once_they_are_idle() throws DepositNotFoundException, InvalidDepositException, InterruptedException {
+        var metrics = new MetricRegistry();
+        var scheduler = schedulerBuilder().setMaxRunning(2).setMetrics(metrics).build();
+
+        submit(scheduler, "user001", "a1", "a2");
+        submit(scheduler, "user002", "b1");
+
+        assertThat(scheduler.getLanes()).isEqualTo(2);
+        assertThat(metrics.getNames()).hasSize(4);
+
+        runAll();
+
+        assertThat(scheduler.getLanes()).isEqualTo(0);
+        assertThat(metrics.getNames()).isEmpty();
+    }
+
+    @Test
+    void submit_should_wait_while_the_lanes_are_full() throws Exception, DepositNotFoundException, InvalidDepositException {
+        var scheduler = schedulerBuilder().setMaxQueued(1).build();
+
+        // one running and one queued, which is all the lanes may hold
+        submit(scheduler, "user001", "d1", "d2");
+
+        var waiting = new Thread(() -> {
+            try {
+                submit(scheduler, "user001", "d3");
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waiting.start();
+        waiting.join(200);
+
+        assertThat(waiting.isAlive()).isTrue();
+        assertThat(scheduler.getQueued()).isEqualTo(1);
+
+        // finishing the first deposit starts the second, which makes room for the third
+        tasks.get(0).run();
+        waiting.join(5000);
+
+        assertThat(waiting.isAlive()).isFalse();
+
+        for (var i = 1; i < tasks.size(); i++) {
+            tasks.get(i).run();
+        }
+
+        assertThat(finalized).containsExactly("d1", "d2", "d3");
+    }
+
+    @Test
+    void submit_should_count_deposits_being_looked_up_without_making_the_resolver_wait() throws Exception, DepositNotFoundException, InvalidDepositException {
+        var lookups = new CopyOnWriteArrayList<Runnable>();
+        var scheduler = schedulerBuilder().setMaxQueued(1).setLaneResolver(lookups::add).build();
+
+        // being looked up, which is all the lanes may hold
+        submit(scheduler, "user001", "d1");
+
+        assertThat(lookups).hasSize(1);
+        assertThat(scheduler.getQueued()).isEqualTo(1);
+
+        var waiting = new Thread(() -> {
+            try {
+                submit(scheduler, "user001", "d2");
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waiting.start();
+        waiting.join(200);
+
+        assertThat(waiting.isAlive()).isTrue();
+        assertThat(lookups).hasSize(1);
+
+        // the lookup queues the deposit without waiting, and starting it makes room for the next
+        lookups.get(0).run();
+        waiting.join(5000);
+
+        assertThat(waiting.isAlive()).isFalse();
+        assertThat(lookups).hasSize(2);
+
+        lookups.get(1).run();
+        runAll();
+
+        assertThat(finalized).containsExactly("d1", "d2");
+        assertThat(scheduler.getQueued()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FinalizationAdmissionTest {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong drained = new AtomicLong();
+
+    private FinalizationAdmission admission(BlockingQueue<DepositFinalizerEvent> queue, int maxBacklog) {
+        var clock = Mockito.mock(Clock.class);
+        Mockito.when(clock.millis()).thenAnswer(invocation -> now.get());
+        return new FinalizationAdmission(queue, queued::get, drained::get, maxBacklog, Duration.ofSeconds(5), Duration.ofMinutes(10), clock);
+    }
+
+    private ArrayList<String> ids(BlockingQueue<DepositFinalizerEvent> queue) {
+        var ids = new ArrayList<String>();
+
+        for (var event : queue) {
+            ids.add(event.getDepositId());
+        }
+
+        return ids;
+    }
+
+    @Test
+    void checkCapacity_should_count_deposits_waiting_in_the_scheduler() throws Exception, FinalizingQueueFullException {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(10);
+        var admission = admission(queue, 3);
+
+        queue.add(new DepositFinalizerEvent("1"));
+        queued.set(1);
+        admission.checkCapacity();
+
+        queued.set(2);
+        assertThrows(FinalizingQueueFullException.class, admission::checkCapacity);
+        assertThat(admission.getBacklog()).isEqualTo(3);
+    }
+
+    @Test
+    void checkCapacity_should_ask_to_retry_when_the_excess_has_drained() {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(10);
+        var admission = admission(queue, 10);
+
+        admission.sample();
+        now.set(60_000);
+        drained.set(30);
+        queued.set(19);
+
+        // 10 deposits over the limit, draining at half a deposit per second
+        var e = assertThrows(FinalizingQueueFullException.class, admission::checkCapacity);
+        assertThat(e.getRetryAfter()).isEqualTo(Duration.ofSeconds(20));
+    }
+
+    @Test
+    void checkCapacity_should_keep_retry_after_within_bounds() {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(10);
+        var admission = admission(queue, 10);
+        queued.set(10);
+
+        // nothing drained, so there is no estimate
+        var e = assertThrows(FinalizingQueueFullException.class, admission::checkCapacity);
+        assertThat(e.getRetryAfter()).isEqualTo(Duration.ofMinutes(10));
+
+        now.set(1_000);
+        drained.set(100);
+        e = assertThrows(FinalizingQueueFullException.class, admission::checkCapacity);
+        assertThat(e.getRetryAfter()).isEqualTo(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void sample_should_estimate_the_drain_rate_over_the_last_minute() {
+        var admission = admission(new ArrayBlockingQueue<>(10), 10);
+
+        // a burst long ago does not count
+        admission.sample();
+        now.set(10_000);
+        drained.set(1000);
+        admission.sample();
+
+        for (var i = 0; i < 60; i++) {
+            now.addAndGet(1_000);
+            drained.addAndGet(2);
+            admission.sample();
+        }
+
+        assertThat(admission.getDrainRate()).isEqualTo(2.0);
+    }
+
+    @Test
+    void submit_should_not_block_when_the_queue_is_full() {
+        var queue = new ArrayBlockingQueue<DepositFinalizerEvent>(1);
+        var admission = admission(queue, 10);
+
+        admission.submit(new DepositFinalizerEvent("1"));
+        admission.submit(new DepositFinalizerEvent("2"));
+        admission.submit(new DepositFinalizerEvent("3"));
+
+        assertThat(ids(queue)).containsExactly("1");
+        assertThat(admission.getOverflow()).isEqualTo(2);
+        assertThat(admission.getBacklog()).isEqualTo(3);
+
+        queue.poll();
+        admission.drainOverflow();
+
+        assertThat(ids(queue)).containsExactly("2");
+        assertThat(admission.getOverflow()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.TestFixture;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FinalizationJournalTest extends TestFixture {
+    private Path file;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        FileUtils.deleteDirectory(testDir.toFile());
+        Files.createDirectories(testDir);
+        file = testDir.resolve("finalization.journal");
+    }
+
+    @Test
+    void open_should_replay_the_deposits_that_were_not_completed() throws Exception {
+        var journal = new FinalizationJournal(file);
+        journal.rebuild(Map.of());
+        journal.enqueued("a");
+        journal.enqueued("b");
+        journal.enqueued("c");
+        journal.started("a");
+        journal.completed("a");
+        journal.started("b");
+        journal.rescheduled("b", 2);
+        journal.started("c");
+        journal.close();
+
+        var replay = new FinalizationJournal(file).open();
+
+        assertThat(replay.isConsistent()).isTrue();
+        assertThat(replay.getPending()).isEqualTo(Map.of("b", 2, "c", 0));
+    }
+
+    @Test
+    void open_should_not_be_consistent_if_there_is_no_journal() throws Exception {
+        var replay = new FinalizationJournal(file).open();
+
+        // an empty journal would make the next start skip the scan
+        assertThat(replay.isConsistent()).isFalse();
+        assertThat(Files.exists(file)).isFalse();
+    }
+
+    @Test
+    void open_should_skip_records_that_do_not_match_their_checksum() throws Exception {
+        var journal = new FinalizationJournal(file);
+        journal.rebuild(Map.of());
+        journal.enqueued("a");
+        journal.enqueued("b");
+        journal.close();
+
+        Files.writeString(file, Files.readString(file).replace("ENQUEUED b", "COMPLETED b"));
+        var replay = new FinalizationJournal(file).open();
+
+        assertThat(replay.isConsistent()).isFalse();
+        assertThat(replay.getPending()).isEqualTo(Map.of("a", 0));
+    }
+
+    @Test
+    void open_should_not_be_consistent_if_the_last_record_was_partly_written() throws Exception {
+        var journal = new FinalizationJournal(file);
+        journal.rebuild(Map.of());
+        journal.enqueued("a");
+        journal.close();
+
+        Files.writeString(file, "0badf00d ENQUE", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        var replay = new FinalizationJournal(file).open();
+
+        assertThat(replay.isConsistent()).isFalse();
+        assertThat(replay.getPending()).isEqualTo(Map.of("a", 0));
+    }
+
+    @Test
+    void compact_should_keep_only_the_pending_deposits() throws Exception {
+        var journal = new FinalizationJournal(file);
+        journal.rebuild(Map.of());
+
+        for (var i = 0; i < 100; i++) {
+            journal.enqueued("deposit-" + i);
+            journal.started("deposit-" + i);
+
+            if (i != 42) {
+                journal.completed("deposit-" + i);
+            }
+        }
+
+        journal.rescheduled("deposit-42", 3);
+        assertThat(journal.getRecords()).isEqualTo(300L);
+
+        journal.compact();
+        journal.completed("deposit-42");
+        journal.enqueued("deposit-100");
+        journal.close();
+
+        assertThat(Files.readAllLines(file).size()).isEqualTo(3);
+
+        var replay = new FinalizationJournal(file).open();
+        assertThat(replay.isConsistent()).isTrue();
+        assertThat(replay.getPending()).isEqualTo(Map.of("deposit-100", 0));
+    }
+
+    @Test
+    void reset_should_leave_the_journal_file_alone_until_it_is_compacted() throws Exception {
+        Files.writeString(file, "0badf00d ENQUEUED a 0\n");
+        var journal = new FinalizationJournal(file);
+        assertThat(journal.open().isConsistent()).isFalse();
+
+        journal.reset();
+        journal.enqueued("b");
+        assertThat(Files.readString(file)).isEqualTo("0badf00d ENQUEUED a 0\n");
+
+        journal.compact();
+        journal.close();
+
+        var replay = new FinalizationJournal(file).open();
+        assertThat(replay.isConsistent()).isTrue();
+        assertThat(replay.getPending()).isEqualTo(Map.of("b", 0));
+    }
+}
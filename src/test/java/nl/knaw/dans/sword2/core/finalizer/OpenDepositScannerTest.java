@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import nl.knaw.dans.sword2.TestFixture;
+import nl.knaw.dans.sword2.core.Deposit;
+import nl.knaw.dans.sword2.core.DepositState;
+import nl.knaw.dans.sword2.core.config.CollectionConfig;
+import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
+import nl.knaw.dans.sword2.core.service.DepositPropertiesManagerImpl;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OpenDepositScannerTest extends TestFixture {
+    private final DepositPropertiesManagerImpl depositPropertiesManager = Mockito.spy(new DepositPropertiesManagerImpl());
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private CollectionConfig collection;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        FileUtils.deleteDirectory(testDir.toFile());
+        collection = new CollectionConfig();
+        collection.setName("collection1");
+        collection.setUploads(testDir.resolve("uploads"));
+        Files.createDirectories(collection.getUploads());
+    }
+
+    @AfterEach
+    void afterEach() {
+        executor.shutdownNow();
+    }
+
+    private Path createDeposit(String id, DepositState state) throws IOException, InvalidDepositException {
+        var path = collection.getUploads().resolve(id);
+        Files.createDirectories(path);
+
+        var deposit = new Deposit();
+        deposit.setId(id);
+        deposit.setCreated(OffsetDateTime.now());
+        deposit.setDepositor("user001");
+        deposit.setState(state);
+        deposit.setStateDescription("test");
+        depositPropertiesManager.saveProperties(path, deposit);
+
+        // saved well before the scan starts
+        Files.setLastModifiedTime(path.resolve("deposit.properties"), FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS)));
+        return path;
+    }
+
+    @Test
+    void scan_should_hand_over_only_deposits_that_need_finalizing() throws Exception, InvalidDepositException {
+        createDeposit("draft", DepositState.DRAFT);
+        createDeposit("uploaded", DepositState.UPLOADED);
+        createDeposit("finalizing", DepositState.FINALIZING);
+        createDeposit("submitted", DepositState.SUBMITTED);
+        Files.createDirectories(collection.getUploads().resolve("broken"));
+
+        var found = ConcurrentHashMap.<String>newKeySet();
+        var scanner = new OpenDepositScanner(List.of(collection), depositPropertiesManager, executor, 2);
+
+        assertThat(scanner.scan(deposit -> found.add(deposit.getId()))).isEqualTo(2);
+        assertThat(found).containsExactlyInAnyOrder("uploaded", "finalizing");
+    }
+
+    @Test
+    void scan_should_read_only_the_state_of_deposits_that_are_skipped() throws Exception, InvalidDepositException {
+        var draft = createDeposit("draft", DepositState.DRAFT);
+        var uploaded = createDeposit("uploaded", DepositState.UPLOADED);
+
+        var scanner = new OpenDepositScanner(List.of(collection), depositPropertiesManager, executor, 2);
+        scanner.scan(deposit -> {
+        });
+
+        Mockito.verify(depositPropertiesManager, Mockito.never()).getProperties(draft);
+        Mockito.verify(depositPropertiesManager).getProperties(uploaded);
+    }
+
+    @Test
+    void scan_should_skip_deposits_saved_after_it_started() throws Exception, InvalidDepositException {
+        var path = createDeposit("uploaded", DepositState.UPLOADED);
+        Files.setLastModifiedTime(path.resolve("deposit.properties"), FileTime.from(Instant.now().plus(1, ChronoUnit.HOURS)));
+
+        var scanner = new OpenDepositScanner(List.of(collection), depositPropertiesManager, executor, 2);
+
+        assertThat(scanner.scan(deposit -> {
+        })).isEqualTo(0);
+    }
+
+    @Test
+    void scan_should_compare_with_the_modification_time_of_a_file_in_the_uploads_folder() throws Exception, InvalidDepositException {
+        // a file server whose clock runs behind ours
+        var path = createDeposit("uploaded", DepositState.UPLOADED);
+        var saved = Files.getLastModifiedTime(path.resolve("deposit.properties"));
+
+        Mockito.doAnswer(invocation -> {
+            Files.setLastModifiedTime(collection.getUploads().resolve(".open-deposit-scan"), FileTime.from(saved.toInstant().minus(1, ChronoUnit.MINUTES)));
+            return invocation.callRealMethod();
+        }).when(depositPropertiesManager).getState(path);
+
+        var scanner = new OpenDepositScanner(List.of(collection), depositPropertiesManager, executor, 2);
+
+        assertThat(scanner.scan(deposit -> {
+        })).isEqualTo(0);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.finalizer;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RescheduleBackoffTest {
+
+    private Random randomReturning(double value) {
+        var random = Mockito.mock(Random.class);
+        Mockito.when(random.nextDouble()).thenReturn(value);
+        return random;
+    }
+
+    @Test
+    void getDelay_should_double_with_every_attempt() {
+        var backoff = new RescheduleBackoff(Duration.ofSeconds(30), Duration.ofHours(1), randomReturning(0.999999));
+
+        assertThat(backoff.getDelay(1).toSeconds()).isEqualTo(29);
+        assertThat(backoff.getDelay(2).toSeconds()).isEqualTo(59);
+        assertThat(backoff.getDelay(3).toSeconds()).isEqualTo(119);
+    }
+
+    @Test
+    void getDelay_should_not_exceed_the_maximum() {
+        var backoff = new RescheduleBackoff(Duration.ofSeconds(30), Duration.ofMinutes(30), randomReturning(0.999999));
+
+        assertThat(backoff.getDelay(10).toMillis()).isLessThanOrEqualTo(Duration.ofMinutes(30).toMillis());
+        assertThat(backoff.getDelay(Integer.MAX_VALUE).toMillis()).isLessThanOrEqualTo(Duration.ofMinutes(30).toMillis());
+    }
+
+    @Test
+    void getDelay_should_take_off_at_most_half() {
+        var backoff = new RescheduleBackoff(Duration.ofSeconds(30), Duration.ofHours(1), randomReturning(0.0));
+
+        assertThat(backoff.getDelay(1)).isEqualTo(Duration.ofSeconds(15));
+        assertThat(backoff.getDelay(0)).isEqualTo(Duration.ofSeconds(15));
+        assertThat(backoff.getDelay(2)).isEqualTo(Duration.ofSeconds(30));
+    }
+
+    @Test
+    void scheduleRetry_should_schedule_instead_of_submitting_a_sleeping_task() {
+        var rescheduleQueue = Mockito.mock(ScheduledExecutorService.class);
+        var backoff = new RescheduleBackoff(Duration.ofSeconds(30), Duration.ofHours(1), randomReturning(0.0));
+        var listener = new DepositFinalizerListener(new ArrayBlockingQueue<>(1), Mockito.mock(ExecutorService.class), null, rescheduleQueue, backoff, null, null, null);
+
+        listener.scheduleRetry(new DepositFinalizerRescheduleEvent("id", 3));
+
+        Mockito.verify(rescheduleQueue).schedule(Mockito.any(DepositFinalizerDelayedTask.class), Mockito.eq(60_000L), Mockito.eq(TimeUnit.MILLISECONDS));
+        Mockito.verifyNoMoreInteractions(rescheduleQueue);
+    }
+}
@@ -36,9 +36,12 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -187,11 +190,125 @@ class BagExtractorImplTest extends TestFixture {
         var part3 = copyPartOfFile(zipFile, testPath.resolve("part.3"), 2000000, Files.size(zipFile));
 
         new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier)
-            .extractOctetStream(testPath, 1, false);
+            .extractOctetStream(testPath, 1, false, new BagContext());
 
         assertEquals(1, fileService.listFiles(testPath).count());
     }
 
+    @Test
+    void testExtractMultipleZipsConcurrently() throws Exception, InvalidDepositException, NotEnoughDiskSpaceException {
+        var executor = Executors.newFixedThreadPool(4);
+        var parallelZipService = new ZipServiceImpl(fileService, executor, 4);
+
+        fileService.copyFile(getZipFile("one-entry.zip"), testPath.resolve("one-entry.zip"));
+        fileService.copyFile(getZipFile("one-entry-in-subfolder.zip"), testPath.resolve("one-entry-in-subfolder.zip"));
+
+        try {
+            new BagExtractorImpl(parallelZipService, fileService, bagItManager, filesystemSpaceVerifier)
+                .extractZips(testPath, 1, false, new BagContext());
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertEquals("test", FileUtils.readFileToString(testPath.resolve("test.txt").toFile(), StandardCharsets.UTF_8).trim());
+        assertEquals("test", FileUtils.readFileToString(testPath.resolve("subfolder/test.txt").toFile(), StandardCharsets.UTF_8).trim());
+        Mockito.verify(bagItManager, Mockito.times(2)).verifyBagItRepository(Mockito.eq(testPath), Mockito.any(BagContext.class));
+    }
+
+    @Test
+    void testExtractMultipleZipsOneByOneWithoutExecutor() throws Exception, InvalidDepositException, NotEnoughDiskSpaceException {
+        fileService.copyFile(getZipFile("one-entry.zip"), testPath.resolve("one-entry.zip"));
+        fileService.copyFile(getZipFile("one-entry-in-subfolder.zip"), testPath.resolve("one-entry-in-subfolder.zip"));
+
+        var bagExtractor = Mockito.spy(new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier));
+        bagExtractor.extractZips(testPath, 1, false, new BagContext());
+
+        Mockito.verify(bagExtractor, Mockito.never()).extractConcurrently(Mockito.any(), Mockito.any(), Mockito.anyLong(), Mockito.anyBoolean(), Mockito.any());
+        Mockito.verify(bagExtractor, Mockito.times(2)).extract(Mockito.any(), Mockito.eq(testPath), Mockito.anyLong(), Mockito.anyBoolean(), Mockito.any(BagContext.class));
+        assertEquals("test", FileUtils.readFileToString(testPath.resolve("test.txt").toFile(), StandardCharsets.UTF_8).trim());
+        assertEquals("test", FileUtils.readFileToString(testPath.resolve("subfolder/test.txt").toFile(), StandardCharsets.UTF_8).trim());
+    }
+
+    @Test
+    void testExtractStagedBag() throws Exception, InvalidDepositException, NotEnoughDiskSpaceException {
+        var zipFile = getZipFile("audiences.zip");
+        var bagExtractor = new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier);
+
+        try (var inputStream = new FileInputStream(zipFile.toFile())) {
+            fileService.copyFileWithMD5Hash(inputStream, testPath.resolve("bag.zip"), stream -> bagExtractor.stageBag(stream, testPath, false, 0, Files.size(zipFile)));
+        }
+
+        assertArrayEquals(Files.readAllBytes(zipFile), Files.readAllBytes(testPath.resolve("bag.zip")));
+        assertTrue(bagExtractor.extractStagedBag(testPath, 0, new BagContext()));
+
+        assertTrue(Files.exists(testPath.resolve("audiences/bagit.txt")));
+        assertFalse(Files.exists(testPath.resolve(".staging")));
+        Mockito.verify(bagItManager).updateManifests(Mockito.eq(testPath), Mockito.eq(Map.of()), Mockito.any(BagContext.class));
+        Mockito.verify(bagItManager).verifyBagItRepository(Mockito.eq(testPath), Mockito.any(BagContext.class));
+    }
+
+    @Test
+    void testExtractStagedBagIgnoresIncompleteStaging() throws Exception, InvalidDepositException, NotEnoughDiskSpaceException {
+        var bagExtractor = new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier);
+        fileService.copyFile(getZipFile("one-entry.zip"), testPath.resolve("one-entry.zip"));
+        // files were extracted, but the upload did not complete
+        Files.createDirectories(testPath.resolve(".staging/files"));
+        Files.writeString(testPath.resolve(".staging/files/test.txt"), "te");
+
+        assertFalse(bagExtractor.extractStagedBag(testPath, 0, new BagContext()));
+        assertFalse(Files.exists(testPath.resolve(".staging")));
+        assertFalse(Files.exists(testPath.resolve("test.txt")));
+        Mockito.verifyNoMoreInteractions(bagItManager);
+    }
+
+    @Test
+    void testStageBagGivesUpWhenArchiveExpandsBeyondLimit() throws Exception {
+        var zipFile = getZipFile("audiences.zip");
+        var bagExtractor = new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier);
+
+        // an upload of 1 byte may expand to no more than MAX_STAGED_EXPANSION bytes
+        try (var inputStream = new FileInputStream(zipFile.toFile())) {
+            fileService.copyFileWithMD5Hash(inputStream, testPath.resolve("bag.zip"), stream -> bagExtractor.stageBag(stream, testPath, false, 0, 1));
+        }
+
+        // the upload itself is complete, and is extracted during finalization instead
+        assertArrayEquals(Files.readAllBytes(zipFile), Files.readAllBytes(testPath.resolve("bag.zip")));
+        assertFalse(Files.exists(testPath.resolve(".staging")));
+    }
+
+    @Test
+    void testStageBagGivesUpWhenSpaceCannotBeReserved() throws Exception, NotEnoughDiskSpaceException {
+        var zipFile = getZipFile("audiences.zip");
+        var bagExtractor = new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier);
+        Mockito.when(filesystemSpaceVerifier.reserveDiskSpace(Mockito.any(), Mockito.anyLong(), Mockito.anyLong()))
+            .thenThrow(new NotEnoughDiskSpaceException("Not enough space available", testPath, 0));
+
+        try (var inputStream = new FileInputStream(zipFile.toFile())) {
+            fileService.copyFileWithMD5Hash(inputStream, testPath.resolve("bag.zip"), stream -> bagExtractor.stageBag(stream, testPath, false, 0, Files.size(zipFile)));
+        }
+
+        assertFalse(Files.exists(testPath.resolve(".staging")));
+    }
+
+    @Test
+    void testExtractStagedBagChecksMarginBeforeUsingStagedFiles() throws Exception, NotEnoughDiskSpaceException {
+        var zipFile = getZipFile("audiences.zip");
+        var bagExtractor = new BagExtractorImpl(zipService, fileService, bagItManager, filesystemSpaceVerifier);
+
+        try (var inputStream = new FileInputStream(zipFile.toFile())) {
+            fileService.copyFileWithMD5Hash(inputStream, testPath.resolve("bag.zip"), stream -> bagExtractor.stageBag(stream, testPath, false, 0, Files.size(zipFile)));
+        }
+
+        Mockito.doThrow(new NotEnoughDiskSpaceException("Not enough space available", testPath, 100))
+            .when(filesystemSpaceVerifier).assertDirHasEnoughDiskspaceMargin(Mockito.any(), Mockito.anyLong());
+
+        assertThrows(NotEnoughDiskSpaceException.class, () -> bagExtractor.extractStagedBag(testPath, 100, new BagContext()));
+        // kept for the next attempt
+        assertTrue(Files.exists(testPath.resolve(".staging")));
+        assertFalse(Files.exists(testPath.resolve("audiences/bagit.txt")));
+    }
+
     Path copyPartOfFile(Path zipFile, Path name, int start, long size) throws IOException {
         var buffer = new FileInputStream(zipFile.toFile()).readAllBytes();
         var copy = Arrays.copyOfRange(buffer, start, (int) size);
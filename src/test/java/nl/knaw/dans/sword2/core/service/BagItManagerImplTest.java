@@ -15,19 +15,32 @@
  */
 package nl.knaw.dans.sword2.core.service;
 
+import gov.loc.repository.bagit.domain.Manifest;
+import gov.loc.repository.bagit.exceptions.CorruptChecksumException;
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import gov.loc.repository.bagit.verify.BagVerifier;
+import nl.knaw.dans.sword2.TestFixture;
+import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
-class BagItManagerImplTest {
+class BagItManagerImplTest extends TestFixture {
 
 
     @Test
@@ -77,4 +90,187 @@ class BagItManagerImplTest {
             Pair.of("z", "data/3")
         );
     }
+
+    @Test
+    void verifyManifestUsesDigestsCalculatedDuringExtraction() throws Exception {
+        var fileService = Mockito.mock(FileService.class);
+        var checksumCalculator = Mockito.mock(ChecksumCalculator.class);
+        var bagItManager = new BagItManagerImpl(fileService, checksumCalculator);
+
+        var manifest = new Manifest(StandardSupportedAlgorithms.SHA1);
+        manifest.setFileToChecksumMap(Map.of(
+            Path.of("bag/data/1"), "abc",
+            Path.of("bag/data/2"), "def"));
+
+        var payloadDigests = new PayloadDigests();
+        payloadDigests.put(Path.of("bag/data/1"), Map.of("SHA-1", "abc"));
+
+        Mockito.when(checksumCalculator.calculateChecksum(Path.of("bag/data/2"), "SHA-1")).thenReturn("def");
+
+        bagItManager.verifyManifest(manifest, payloadDigests);
+
+        // only the file without a digest is read again
+        Mockito.verify(checksumCalculator).calculateChecksum(Path.of("bag/data/2"), "SHA-1");
+        Mockito.verifyNoMoreInteractions(checksumCalculator);
+    }
+
+    @Test
+    void verifyManifestFailsOnDigestMismatch() {
+        var fileService = Mockito.mock(FileService.class);
+        var checksumCalculator = Mockito.mock(ChecksumCalculator.class);
+        var bagItManager = new BagItManagerImpl(fileService, checksumCalculator);
+
+        var manifest = new Manifest(StandardSupportedAlgorithms.SHA1);
+        manifest.setFileToChecksumMap(Map.of(Path.of("bag/data/1"), "abc"));
+
+        var payloadDigests = new PayloadDigests();
+        payloadDigests.put(Path.of("bag/data/1"), Map.of("SHA-1", "xyz"));
+
+        assertThrows(CorruptChecksumException.class, () -> bagItManager.verifyManifest(manifest, payloadDigests));
+        Mockito.verifyNoMoreInteractions(checksumCalculator);
+    }
+
+    @Test
+    void verifyManifestHashesFilesOnSharedExecutor() throws Exception {
+        var fileService = Mockito.mock(FileService.class);
+        var checksumCalculator = Mockito.mock(ChecksumCalculator.class);
+        var executor = Executors.newFixedThreadPool(2);
+        var bagItManager = new BagItManagerImpl(fileService, checksumCalculator, executor);
+
+        var manifest = new Manifest(StandardSupportedAlgorithms.SHA1);
+        manifest.setFileToChecksumMap(Map.of(
+            Path.of("bag/data/1"), "abc",
+            Path.of("bag/data/2"), "def"));
+
+        Mockito.when(checksumCalculator.calculateChecksum(Path.of("bag/data/1"), "SHA-1")).thenReturn("abc");
+        Mockito.when(checksumCalculator.calculateChecksum(Path.of("bag/data/2"), "SHA-1")).thenReturn("xyz");
+
+        try {
+            assertThrows(CorruptChecksumException.class, () -> bagItManager.verifyManifest(manifest, new PayloadDigests()));
+            // the verification must not shut down the shared executor
+            assertFalse(executor.isShutdown());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void verifyBagItRepositoryClosesVerifierWithExecutorOfItsOwn() throws Exception, InvalidDepositException {
+        var depositDir = copyValidBag("close-verifier");
+        var bagItManager = Mockito.spy(new BagItManagerImpl(new FileServiceImpl(), new ChecksumCalculatorImpl()));
+        var verifier = Mockito.mock(BagVerifier.class);
+        Mockito.doReturn(verifier).when(bagItManager).createBagVerifier();
+
+        bagItManager.verifyBagItRepository(depositDir, contextWithExtractionDigests());
+
+        // the digests were calculated during extraction, so the verifier was only needed to check that the bag is complete
+        Mockito.verify(verifier).isComplete(Mockito.any(), Mockito.eq(true));
+        Mockito.verify(verifier).close();
+        Mockito.verifyNoMoreInteractions(verifier);
+    }
+
+    @Test
+    void verifyBagItRepositoryDoesNotCloseVerifierOnSharedExecutor() throws Exception, InvalidDepositException {
+        var depositDir = copyValidBag("shared-verifier");
+        var executor = Executors.newFixedThreadPool(2);
+        var bagItManager = Mockito.spy(new BagItManagerImpl(new FileServiceImpl(), new ChecksumCalculatorImpl(), executor));
+        var verifier = Mockito.mock(BagVerifier.class);
+        Mockito.doReturn(verifier).when(bagItManager).createBagVerifier();
+
+        try {
+            bagItManager.verifyBagItRepository(depositDir, contextWithExtractionDigests());
+
+            Mockito.verify(verifier, Mockito.never()).close();
+            assertFalse(executor.isShutdown());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private Path copyValidBag(String name) throws IOException {
+        var depositDir = testDir.resolve(name);
+        FileUtils.deleteDirectory(depositDir.toFile());
+        FileUtils.copyDirectory(Path.of("src/test/resources/bags/valid/revision03").toFile(), depositDir.resolve("revision03").toFile());
+        return depositDir;
+    }
+
+    private BagContext contextWithExtractionDigests() {
+        var bagContext = new BagContext();
+        // a file that is not in the bag, which only makes the extraction digests non-empty; the files of the bag are hashed again
+        bagContext.getPayloadDigests().put(Path.of("not-in-bag"), Map.of("MD5", "abc"));
+        return bagContext;
+    }
+
+    @Test
+    void bagIsParsedOnceUntilContextIsInvalidated() throws InvalidDepositException {
+        var bagItManager = new BagItManagerImpl(new FileServiceImpl(), new ChecksumCalculatorImpl());
+        var bagDir = Path.of("src/test/resources/bags/valid/revision03");
+        var bagContext = new BagContext();
+
+        var metadata = bagItManager.getBagItMetaData(bagDir, "id", bagContext);
+        bagItManager.getBagItMetaData(bagDir, "id", bagContext);
+
+        assertEquals("sword:47f92eaa-db45-4d6f-8f57-fbfc0c5eae92", metadata.getSwordToken());
+        assertEquals(1, bagContext.getParseCount());
+
+        bagContext.invalidate();
+        bagItManager.getBagItMetaData(bagDir, "id", bagContext);
+
+        assertEquals(2, bagContext.getParseCount());
+    }
+
+    @Test
+    void writePayloadManifestFilesProducesSameBytesAsBefore() throws IOException {
+        var fileService = new FileServiceImpl();
+        var bagItManager = new BagItManagerImpl(fileService, Mockito.mock(ChecksumCalculator.class));
+        var bagDir = testDir.resolve("streaming-manifest/bag");
+        FileUtils.deleteDirectory(bagDir.toFile());
+        fileService.ensureDirectoriesExist(bagDir);
+
+        var manifest = bagDir.resolve("manifest-sha1.txt");
+        Files.writeString(manifest, "x  data/a.txt\r\ny data/b.txt\n\nz\tdata/with spaces.txt\n", StandardCharsets.UTF_8);
+
+        var filePathMapping = Map.of("data/a.txt", "data/1", "data/with spaces.txt", "data/3");
+
+        // the format written before the manifests were streamed
+        var expected = bagItManager.parseManifestFile(manifest, filePathMapping).stream().map(bagItManager::formatFileOutput).collect(Collectors.joining("\n"));
+
+        bagItManager.writePayloadManifestFiles(bagDir, filePathMapping);
+
+        assertEquals("x  data/1\ny  data/b.txt\nz  data/3", expected);
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(manifest));
+        // no temporary files are left behind
+        assertEquals(1, fileService.listFiles(bagDir).count());
+    }
+
+    @Test
+    void updateManifestsOnlyRehashesRewrittenTagFiles() throws IOException, InvalidDepositException, NoSuchAlgorithmException {
+        var fileService = new FileServiceImpl();
+        var bagItManager = new BagItManagerImpl(fileService, new ChecksumCalculatorImpl());
+        var depositDir = testDir.resolve("incremental-tag-manifest");
+        var bagDir = depositDir.resolve("bag");
+        FileUtils.deleteDirectory(depositDir.toFile());
+        fileService.ensureDirectoriesExist(bagDir.resolve("data"));
+        fileService.ensureDirectoriesExist(bagDir.resolve("metadata"));
+
+        Files.writeString(bagDir.resolve("bagit.txt"), "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n");
+        Files.writeString(bagDir.resolve("data/renamed"), "test\n");
+        Files.writeString(bagDir.resolve("metadata/dataset.xml"), "<dataset/>\n");
+        Files.writeString(bagDir.resolve("manifest-md5.txt"), "d8e8fca2dc0f896fd7cb4cb0031ba249  data/a.txt\n");
+        // deliberately not the real checksum of dataset.xml, to show that it is kept rather than calculated again
+        Files.writeString(bagDir.resolve("tagmanifest-md5.txt"), "00000000000000000000000000000000  metadata/dataset.xml\n"
+            + "00000000000000000000000000000000  manifest-md5.txt\n");
+
+        bagItManager.updateManifests(depositDir, Map.of("bag/data/a.txt", "bag/data/renamed"), new BagContext());
+
+        var tagManifest = Files.readAllLines(bagDir.resolve("tagmanifest-md5.txt"));
+        var manifestChecksum = new ChecksumCalculatorImpl().calculateChecksum(bagDir.resolve("manifest-md5.txt"), "MD5");
+
+        Assertions.assertThat(tagManifest).contains(
+            "00000000000000000000000000000000  metadata/dataset.xml",
+            manifestChecksum + "  manifest-md5.txt");
+        assertTrue(tagManifest.stream().anyMatch(line -> line.endsWith("  original-filepaths.txt")));
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChecksumCalculatorImplTest {
+
+    // larger than the read buffer, so the digests are updated over several reads
+    private final Path file = Path.of("src/test/resources/bags/valid/revision03/data/bit.jpg");
+
+    @Test
+    void calculateChecksumsReturnsDigestForEveryAlgorithm() throws NoSuchAlgorithmException, IOException {
+        var checksums = new ChecksumCalculatorImpl().calculateChecksums(file, Set.of("MD5", "SHA-1", "SHA-256"));
+
+        assertEquals(Map.of(
+            "MD5", "c9fa0cb8b3a06c0a33a97650133db965",
+            "SHA-1", "0a66ea77834e337e28a043db6d6f3d745c944593",
+            "SHA-256", "0c3f1c6961805a2e79c3eebaf0bb3512bfe745afd5f3c2e243bdfb5b624454c1"), checksums);
+    }
+
+    @Test
+    void calculateChecksumMatchesCalculateChecksums() throws NoSuchAlgorithmException, IOException {
+        assertEquals("0a66ea77834e337e28a043db6d6f3d745c944593", new ChecksumCalculatorImpl().calculateChecksum(file, "SHA-1"));
+    }
+
+    @Test
+    void calculateChecksumsReusesBufferOnOtherThread() throws Exception {
+        var calculator = new ChecksumCalculatorImpl();
+        var executor = Executors.newSingleThreadExecutor();
+
+        try {
+            calculator.calculateChecksums(file, Set.of("SHA-1"));
+            // a new thread, as every task on a virtual thread executor would get
+            var checksum = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return calculator.calculateChecksum(file, "SHA-1");
+                }
+                catch (NoSuchAlgorithmException | IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor).get();
+
+            assertEquals("0a66ea77834e337e28a043db6d6f3d745c944593", checksum);
+            assertEquals(1, calculator.buffers.size());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void calculateChecksumsFailsOnUnknownAlgorithm() {
+        assertThrows(NoSuchAlgorithmException.class, () -> new ChecksumCalculatorImpl().calculateChecksums(file, Set.of("SHA-1", "NOPE")));
+    }
+}
@@ -21,12 +21,17 @@ import nl.knaw.dans.sword2.core.DepositState;
 import nl.knaw.dans.sword2.core.auth.Depositor;
 import nl.knaw.dans.sword2.core.config.CollectionConfig;
 import nl.knaw.dans.sword2.core.config.Sword2Config;
+import nl.knaw.dans.sword2.core.config.UriRegistry;
 import nl.knaw.dans.sword2.core.exceptions.CollectionNotFoundException;
 import nl.knaw.dans.sword2.core.exceptions.DepositNotFoundException;
+import nl.knaw.dans.sword2.core.exceptions.DepositReadOnlyException;
+import nl.knaw.dans.sword2.core.exceptions.FinalizingQueueFullException;
+import nl.knaw.dans.sword2.core.exceptions.HashMismatchException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidDepositException;
 import nl.knaw.dans.sword2.core.exceptions.InvalidPartialFileException;
 import nl.knaw.dans.sword2.core.exceptions.NotEnoughDiskSpaceException;
 import nl.knaw.dans.sword2.core.finalizer.DepositFinalizerEvent;
+import nl.knaw.dans.sword2.core.finalizer.FinalizationAdmission;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jetty.util.BlockingArrayQueue;
 import org.junit.jupiter.api.AfterEach;
@@ -35,12 +40,30 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import javax.ws.rs.core.MediaType;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 class DepositHandlerImplTest extends TestFixture {
     final FileService fileService = new FileServiceImpl();
@@ -54,6 +77,19 @@ class DepositHandlerImplTest extends TestFixture {
     final UserManager userManager = Mockito.mock(UserManager.class);
     final BlockingQueue<DepositFinalizerEvent> queue = new BlockingArrayQueue<>();
 
+    DepositHandlerImpl.Builder depositHandlerBuilder() {
+        return new DepositHandlerImpl.Builder()
+            .setBagExtractor(bagExtractor)
+            .setFileService(fileService)
+            .setDepositPropertiesManager(depositPropertiesManager)
+            .setCollectionManager(collectionManager)
+            .setUserManager(userManager)
+            .setDepositFinalizerQueue(queue)
+            .setBagItManager(bagItManager)
+            .setFilesystemSpaceVerifier(filesystemSpaceVerifier)
+            .setEmailAddress("test@test.com");
+    }
+
     @BeforeEach
     void beforeEach() throws IOException {
         FileUtils.deleteDirectory(testDir.toFile());
@@ -108,10 +144,7 @@ class DepositHandlerImplTest extends TestFixture {
 
         createDepositFrom("audiences.zip", "testid", DepositState.DRAFT);
 
-        var depositHandler = new DepositHandlerImpl(
-            bagExtractor,
-            fileService,
-            depositPropertiesManager, collectionManager, userManager, queue, bagItManager, filesystemSpaceVerifier, "test@test.com");
+        var depositHandler = depositHandlerBuilder().build();
 
         depositHandler.finalizeDeposit("testid");
 
@@ -121,4 +154,358 @@ class DepositHandlerImplTest extends TestFixture {
         Assertions.assertEquals("sword:testid", deposit.getSwordToken());
         Assertions.assertEquals(DepositState.SUBMITTED, deposit.getState());
     }
+
+    @Test
+    void finalizeDepositAsync_should_run_each_stage_on_its_own_executor() throws Exception, CollectionNotFoundException, InvalidDepositException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setPath("6");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+        depositor.setFilepathMapping(true);
+
+        Mockito.when(collectionManager.getCollections()).thenReturn(List.of(collectionConfig));
+        Mockito.when(collectionManager.getCollectionByName(Mockito.any())).thenReturn(collectionConfig);
+        Mockito.when(userManager.getDepositorById(Mockito.any())).thenReturn(depositor);
+
+        createDepositFrom("audiences.zip", "testid", DepositState.DRAFT);
+
+        var executors = List.of(Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor());
+        var pipeline = new FinalizationPipeline(new FinalizationStage("extraction", executors.get(0), false, null),
+            new FinalizationStage("verification", executors.get(1), true, null), new FinalizationStage("hand-off", executors.get(2), true, null));
+
+        try {
+            var depositHandler = depositHandlerBuilder().setFinalizationPipeline(pipeline).build();
+
+            depositHandler.finalizeDepositAsync("testid").toCompletableFuture().get();
+        }
+        finally {
+            executors.forEach(ExecutorService::shutdown);
+        }
+
+        var deposit = depositPropertiesManager.getProperties(testDir.resolve("deposits/testid"));
+
+        Assertions.assertEquals("audiences", deposit.getBagName());
+        Assertions.assertEquals("sword:testid", deposit.getSwordToken());
+        Assertions.assertEquals(DepositState.SUBMITTED, deposit.getState());
+    }
+
+    @Test
+    void finalizeDepositAsync_should_retry_from_scratch_when_a_stage_is_full() throws Exception, CollectionNotFoundException, InvalidDepositException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setPath("6");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+        depositor.setFilepathMapping(true);
+
+        Mockito.when(collectionManager.getCollections()).thenReturn(List.of(collectionConfig));
+        Mockito.when(collectionManager.getCollectionByName(Mockito.any())).thenReturn(collectionConfig);
+        Mockito.when(userManager.getDepositorById(Mockito.any())).thenReturn(depositor);
+
+        createDepositFrom("audiences.zip", "testid", DepositState.DRAFT);
+
+        var extraction = Executors.newSingleThreadExecutor();
+        // a shut down executor rejects every task, like a bounded one whose queue is full
+        var verification = Executors.newSingleThreadExecutor();
+        verification.shutdown();
+        var pipeline = new FinalizationPipeline(new FinalizationStage("extraction", extraction, false, null), new FinalizationStage("verification", verification, true, null),
+            new FinalizationStage("hand-off", extraction, true, null));
+
+        try {
+            var depositHandler = depositHandlerBuilder().setFinalizationPipeline(pipeline).build();
+
+            var result = depositHandler.finalizeDepositAsync("testid").toCompletableFuture();
+
+            var e = Assertions.assertThrows(ExecutionException.class, result::get);
+            Assertions.assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+            var deposit = depositPropertiesManager.getProperties(testDir.resolve("uploads/testid"));
+
+            Assertions.assertEquals(DepositState.UPLOADED, deposit.getState());
+            Assertions.assertEquals(1, deposit.getFinalizationAttempts());
+            // what the extraction stage unpacked is gone, so the retry does not extract over it
+            Assertions.assertEquals(List.of(), fileService.listDirectories(testDir.resolve("uploads/testid")));
+
+            var retryPipeline = new FinalizationPipeline(new FinalizationStage("extraction", extraction, false, null), new FinalizationStage("verification", extraction, true, null),
+                new FinalizationStage("hand-off", extraction, true, null));
+            depositHandlerBuilder().setFinalizationPipeline(retryPipeline).build().finalizeDepositAsync("testid").toCompletableFuture().get();
+        }
+        finally {
+            extraction.shutdown();
+        }
+
+        var deposit = depositPropertiesManager.getProperties(testDir.resolve("deposits/testid"));
+
+        Assertions.assertEquals(DepositState.SUBMITTED, deposit.getState());
+        Assertions.assertEquals("audiences", deposit.getBagName());
+
+        // every payload file is in the manifest under the name it was given by the retry, and there are no others
+        var bagDir = testDir.resolve("deposits/testid/audiences");
+
+        try (var payload = Files.walk(bagDir.resolve("data")); var manifest = Files.lines(bagDir.resolve("manifest-sha1.txt"))) {
+            var files = payload.filter(Files::isRegularFile).map(f -> bagDir.relativize(f).toString()).collect(Collectors.toSet());
+            var listed = manifest.map(line -> line.split("\\s+", 2)[1]).collect(Collectors.toSet());
+            Assertions.assertEquals(listed, files);
+        }
+    }
+
+    @Test
+    void createDepositWithPayloadAsync_should_write_payload_as_it_arrives() throws Exception, CollectionNotFoundException, NotEnoughDiskSpaceException, InvalidDepositException,
+        FinalizingQueueFullException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+        Mockito.when(collectionManager.getCollectionByPath(Mockito.any(), Mockito.any())).thenReturn(collectionConfig);
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+
+        var output = new AtomicReference<OutputStream>();
+        var transfer = new CompletableFuture<Void>();
+        PayloadSource payloadSource = outputStream -> {
+            output.set(outputStream);
+            return transfer;
+        };
+
+        var depositHandler = depositHandlerBuilder().build();
+
+        var result = depositHandler.createDepositWithPayloadAsync("1", depositor, true, new MediaType("application", "zip"), "5d41402abc4b2a76b9719d911017c592", Map.of(),
+            UriRegistry.PACKAGE_BAGIT, "bag.zip", 5, payloadSource).toCompletableFuture();
+
+        // nothing has arrived yet, so the deposit cannot be complete
+        Assertions.assertFalse(result.isDone());
+
+        output.get().write("hel".getBytes(StandardCharsets.UTF_8));
+        output.get().write("lo".getBytes(StandardCharsets.UTF_8));
+        transfer.complete(null);
+
+        var deposit = result.get();
+        var path = testDir.resolve("uploads").resolve(deposit.getId());
+
+        Assertions.assertEquals("5d41402abc4b2a76b9719d911017c592", deposit.getMd5());
+        Assertions.assertEquals("hello", Files.readString(path.resolve("bag.zip")));
+        Assertions.assertEquals(DepositState.DRAFT, depositPropertiesManager.getProperties(path).getState());
+    }
+
+    @Test
+    void createDepositWithPayloadAsync_should_remove_file_if_payload_fails() throws Exception, CollectionNotFoundException, NotEnoughDiskSpaceException, FinalizingQueueFullException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+        Mockito.when(collectionManager.getCollectionByPath(Mockito.any(), Mockito.any())).thenReturn(collectionConfig);
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+
+        PayloadSource payloadSource = outputStream -> {
+            try {
+                outputStream.write("hel".getBytes(StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return CompletableFuture.failedFuture(new EOFException("client went away"));
+        };
+
+        var depositHandler = depositHandlerBuilder().build();
+
+        var result = depositHandler.createDepositWithPayloadAsync("1", depositor, true, new MediaType("application", "zip"), "5d41402abc4b2a76b9719d911017c592", Map.of(),
+            UriRegistry.PACKAGE_BAGIT, "bag.zip", 5, payloadSource).toCompletableFuture();
+
+        var e = Assertions.assertThrows(ExecutionException.class, result::get);
+        Assertions.assertTrue(e.getCause() instanceof EOFException);
+
+        try (var files = Files.walk(testDir.resolve("uploads"))) {
+            Assertions.assertTrue(files.noneMatch(Files::isRegularFile));
+        }
+    }
+
+    @Test
+    void addPayloadToDepositAsync_should_not_merge_or_keep_part_that_fails_its_hash_check() throws Exception, CollectionNotFoundException, NotEnoughDiskSpaceException,
+        InvalidDepositException, DepositNotFoundException, DepositReadOnlyException, FinalizingQueueFullException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+        Mockito.when(collectionManager.getCollections()).thenReturn(List.of(collectionConfig));
+        Mockito.when(collectionManager.getCollectionByName(Mockito.any())).thenReturn(collectionConfig);
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+
+        var path = testDir.resolve("uploads/testid");
+        var deposit = new Deposit();
+        deposit.setId("testid");
+        deposit.setDepositor("user001");
+        deposit.setInProgress(true);
+        deposit.setState(DepositState.DRAFT);
+        deposit.setStateDescription("Deposit is open for additional data");
+        deposit.setCreated(OffsetDateTime.now());
+        deposit.setMimeType("application/octet-stream");
+        depositPropertiesManager.saveProperties(path, deposit);
+        Files.writeString(path.resolve("bag.zip.1"), "first ");
+
+        PayloadSource payloadSource = outputStream -> {
+            try {
+                outputStream.write("corrupt".getBytes(StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return CompletableFuture.completedFuture(null);
+        };
+
+        var depositHandler = depositHandlerBuilder().build();
+
+        var result = depositHandler.addPayloadToDepositAsync("testid", depositor, true, new MediaType("application", "octet-stream"), "5d41402abc4b2a76b9719d911017c592", Map.of(),
+            "", "bag.zip.2", 7, payloadSource).toCompletableFuture();
+
+        var e = Assertions.assertThrows(ExecutionException.class, result::get);
+        Assertions.assertTrue(e.getCause() instanceof HashMismatchException);
+
+        // the part is gone, so it can be sent again, and it was never appended
+        try (var files = Files.list(path)) {
+            Assertions.assertEquals(Set.of("deposit.properties", "bag.zip.1"), files.map(f -> f.getFileName().toString()).collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    void addPayloadToDepositAsync_should_merge_part_on_merge_executor_after_it_is_accepted() throws Exception, CollectionNotFoundException, NotEnoughDiskSpaceException,
+        InvalidDepositException, DepositNotFoundException, DepositReadOnlyException, FinalizingQueueFullException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+        Mockito.when(collectionManager.getCollections()).thenReturn(List.of(collectionConfig));
+        Mockito.when(collectionManager.getCollectionByName(Mockito.any())).thenReturn(collectionConfig);
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+
+        var path = testDir.resolve("uploads/testid");
+        var deposit = new Deposit();
+        deposit.setId("testid");
+        deposit.setDepositor("user001");
+        deposit.setInProgress(true);
+        deposit.setState(DepositState.DRAFT);
+        deposit.setStateDescription("Deposit is open for additional data");
+        deposit.setCreated(OffsetDateTime.now());
+        deposit.setMimeType("application/octet-stream");
+        depositPropertiesManager.saveProperties(path, deposit);
+        Files.writeString(path.resolve("bag.zip.1"), "first ");
+
+        PayloadSource payloadSource = outputStream -> {
+            try {
+                outputStream.write("hello".getBytes(StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return CompletableFuture.completedFuture(null);
+        };
+
+        var merges = new ArrayList<Runnable>();
+        var depositHandler = depositHandlerBuilder()
+            .setPartialFileMerger(new PartialFileMergerImpl(fileService))
+            .setMergeExecutor(merges::add)
+            .build();
+
+        depositHandler.addPayloadToDepositAsync("testid", depositor, true, new MediaType("application", "octet-stream"), "5d41402abc4b2a76b9719d911017c592", Map.of(),
+            "", "bag.zip.2", 5, payloadSource).toCompletableFuture().get();
+
+        // the upload was answered before anything was merged
+        Assertions.assertEquals(1, merges.size());
+        Assertions.assertFalse(Files.exists(path.resolve("merged.zip")));
+
+        merges.get(0).run();
+
+        Assertions.assertEquals("first hello", Files.readString(path.resolve("merged.zip")));
+    }
+
+    @Test
+    void createDepositWithPayloadAsync_should_refuse_complete_deposit_before_reading_payload_if_finalization_backlog_is_full() throws Exception, CollectionNotFoundException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+        Mockito.when(collectionManager.getCollectionByPath(Mockito.any(), Mockito.any())).thenReturn(collectionConfig);
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+
+        var read = new AtomicBoolean();
+        PayloadSource payloadSource = outputStream -> {
+            read.set(true);
+            return CompletableFuture.completedFuture(null);
+        };
+
+        queue.add(new DepositFinalizerEvent("waiting"));
+        var admission = new FinalizationAdmission(queue, () -> 0, () -> 0L, 1, Duration.ofSeconds(1), Duration.ofMinutes(5));
+        var depositHandler = depositHandlerBuilder().setFinalizationAdmission(admission).build();
+
+        var e = Assertions.assertThrows(FinalizingQueueFullException.class, () -> depositHandler.createDepositWithPayloadAsync("1", depositor, false,
+            new MediaType("application", "zip"), "5d41402abc4b2a76b9719d911017c592", Map.of(), UriRegistry.PACKAGE_BAGIT, "bag.zip", 5, payloadSource));
+
+        // nothing drained yet, so the client is asked to wait as long as allowed
+        Assertions.assertEquals(Duration.ofMinutes(5), e.getRetryAfter());
+        Assertions.assertFalse(read.get());
+        Mockito.verifyNoMoreInteractions(filesystemSpaceVerifier);
+    }
+
+    @Test
+    void getDeposit_should_use_index_and_remember_missing_deposits() throws Exception, InvalidDepositException, CollectionNotFoundException, NotEnoughDiskSpaceException,
+        InvalidPartialFileException, DepositNotFoundException {
+        var collectionConfig = new CollectionConfig();
+        collectionConfig.setName("collection1");
+        collectionConfig.setUploads(testDir.resolve("uploads"));
+        collectionConfig.setDeposits(testDir.resolve("deposits"));
+
+        var depositor = new Depositor();
+        depositor.setName("user001");
+        depositor.setFilepathMapping(true);
+
+        Mockito.when(collectionManager.getCollections()).thenReturn(List.of(collectionConfig));
+        Mockito.when(collectionManager.getCollectionByName(Mockito.any())).thenReturn(collectionConfig);
+        Mockito.when(userManager.getDepositorById(Mockito.any())).thenReturn(depositor);
+
+        createDepositFrom("audiences.zip", "testid", DepositState.DRAFT);
+
+        var index = new DepositLocationIndex(List.of(collectionConfig), Duration.ofMinutes(1));
+        var spiedFileService = Mockito.spy(fileService);
+        var depositHandler = depositHandlerBuilder()
+            .setFileService(spiedFileService)
+            .setPartialFileMerger(new PartialFileMergerImpl(fileService))
+            .setDepositLocationIndex(index)
+            .build();
+
+        // found by searching, and recorded
+        Assertions.assertEquals(testDir.resolve("uploads/testid"), depositHandler.getDeposit("testid").getPath());
+        Assertions.assertEquals(testDir.resolve("uploads/testid"), index.get("testid").getPath());
+
+        // the move to the deposits folder is recorded
+        depositHandler.finalizeDeposit("testid");
+        Assertions.assertEquals(testDir.resolve("deposits/testid"), index.get("testid").getPath());
+
+        Mockito.clearInvocations(spiedFileService);
+        Assertions.assertEquals(testDir.resolve("deposits/testid"), depositHandler.getDeposit("testid").getPath());
+        Mockito.verify(spiedFileService, Mockito.times(1)).exists(Mockito.any());
+
+        // not searched again while it is remembered as missing
+        Assertions.assertThrows(DepositNotFoundException.class, () -> depositHandler.getDeposit("unknown"));
+        Mockito.clearInvocations(spiedFileService);
+        Assertions.assertThrows(DepositNotFoundException.class, () -> depositHandler.getDeposit("unknown"));
+        Mockito.verify(spiedFileService, Mockito.never()).exists(Mockito.any());
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import nl.knaw.dans.sword2.TestFixture;
+import nl.knaw.dans.sword2.core.config.CollectionConfig;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DepositLocationIndexTest extends TestFixture {
+    private final AtomicLong now = new AtomicLong(1000);
+    private CollectionConfig collection;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        FileUtils.deleteDirectory(testDir.toFile());
+        collection = new CollectionConfig();
+        collection.setName("collection1");
+        collection.setUploads(testDir.resolve("uploads"));
+        collection.setDeposits(testDir.resolve("deposits"));
+        collection.setDepositTrackingPath(List.of(testDir.resolve("ingest")));
+    }
+
+    private DepositLocationIndex index() {
+        var clock = Mockito.mock(Clock.class);
+        Mockito.when(clock.millis()).thenAnswer(invocation -> now.get());
+        return new DepositLocationIndex(List.of(collection), Duration.ofSeconds(10), clock);
+    }
+
+    @Test
+    void populate_should_index_deposits_in_all_base_paths() throws IOException {
+        Files.createDirectories(collection.getUploads().resolve("a"));
+        Files.createDirectories(collection.getDeposits().resolve("b"));
+        Files.createDirectories(testDir.resolve("ingest/c"));
+
+        var index = index();
+        index.populate();
+
+        assertThat(index.getSize()).isEqualTo(3);
+        assertThat(index.get("a").getPath()).isEqualTo(collection.getUploads().resolve("a"));
+        assertThat(index.get("b").getPath()).isEqualTo(collection.getDeposits().resolve("b"));
+        assertThat(index.get("c").getPath()).isEqualTo(testDir.resolve("ingest/c"));
+        assertThat(index.get("c").getCollectionName()).isEqualTo("collection1");
+    }
+
+    @Test
+    void populate_should_skip_base_paths_that_do_not_exist() throws IOException {
+        Files.createDirectories(collection.getUploads().resolve("a"));
+
+        var index = index();
+        index.populate();
+
+        assertThat(index.getSize()).isEqualTo(1);
+        assertThat(index.get("b")).isNull();
+    }
+
+    @Test
+    void populate_should_keep_locations_that_were_recorded_in_the_meantime() throws IOException {
+        Files.createDirectories(collection.getUploads().resolve("a"));
+
+        var index = index();
+        // moved to the deposits folder after the uploads folder was listed
+        index.put("a", "collection1", collection.getDeposits().resolve("a"));
+        index.populate();
+
+        assertThat(index.get("a").getPath()).isEqualTo(collection.getDeposits().resolve("a"));
+    }
+
+    @Test
+    void remove_should_keep_a_location_that_was_recorded_in_the_meantime() {
+        var index = index();
+        index.put("a", "collection1", collection.getUploads().resolve("a"));
+        var gone = index.get("a");
+        index.put("a", "collection1", collection.getDeposits().resolve("a"));
+
+        index.remove("a", gone);
+        assertThat(index.get("a").getPath()).isEqualTo(collection.getDeposits().resolve("a"));
+
+        index.remove("a", index.get("a"));
+        assertThat(index.get("a")).isNull();
+    }
+
+    @Test
+    void isMissing_should_expire_after_ttl() {
+        var index = index();
+        index.putMissing("a");
+
+        now.addAndGet(9999);
+        assertThat(index.isMissing("a")).isTrue();
+
+        now.addAndGet(1);
+        assertThat(index.isMissing("a")).isFalse();
+        assertThat(index.getMissing()).isEqualTo(0);
+    }
+
+    @Test
+    void put_should_clear_missing() {
+        var index = index();
+        index.putMissing("a");
+        index.put("a", "collection1", collection.getUploads().resolve("a"));
+
+        assertThat(index.isMissing("a")).isFalse();
+        assertThat(index.get("a").getPath()).isEqualTo(collection.getUploads().resolve("a"));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import nl.knaw.dans.sword2.core.exceptions.NotEnoughDiskSpaceException;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FileStoreMonitorImplTest {
+
+    final static long MB = 1024 * 1024;
+
+    private final Path uploads = Path.of("target/test/FileStoreMonitorImplTest/uploads");
+    private final Path deposits = Path.of("target/test/FileStoreMonitorImplTest/deposits");
+
+    private FileStoreMonitorImpl startMonitor(FileService fileService) {
+        var monitor = new FileStoreMonitorImpl(fileService, List.of(uploads, deposits), Mockito.mock(ScheduledExecutorService.class), Duration.ofSeconds(10));
+        monitor.start();
+        return monitor;
+    }
+
+    @Test
+    void getAvailableDiskSpace_should_not_query_the_file_store_between_samples() throws IOException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        Mockito.when(fileService.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileStore.getUsableSpace()).thenReturn(100 * MB);
+
+        var monitor = startMonitor(fileService);
+
+        assertThat(monitor.getAvailableDiskSpace(uploads.resolve("id1/bag.zip"))).isEqualTo(100 * MB);
+        assertThat(monitor.getAvailableDiskSpace(deposits.resolve("id1"))).isEqualTo(100 * MB);
+        assertThat(monitor.getFileStore(uploads.resolve("id1"))).isEqualTo(fileStore);
+
+        // both directories are on the same file store, which is sampled once on start
+        Mockito.verify(fileStore, Mockito.times(1)).getUsableSpace();
+        Mockito.verify(fileService, Mockito.never()).getAvailableDiskSpace(Mockito.any());
+    }
+
+    @Test
+    void recordWrite_should_lower_available_space_until_the_next_sample() throws IOException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        Mockito.when(fileService.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileStore.getUsableSpace()).thenReturn(100 * MB);
+
+        var monitor = startMonitor(fileService);
+        monitor.recordWrite(uploads.resolve("id1/bag.zip"), 30 * MB);
+
+        assertThat(monitor.getAvailableDiskSpace(deposits)).isEqualTo(70 * MB);
+
+        // the new sample includes the write
+        Mockito.when(fileStore.getUsableSpace()).thenReturn(70 * MB);
+        monitor.refresh();
+
+        assertThat(monitor.getAvailableDiskSpace(deposits)).isEqualTo(70 * MB);
+    }
+
+    @Test
+    void getAvailableDiskSpace_should_ask_the_file_system_for_paths_outside_monitored_directories() throws IOException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        Mockito.when(fileService.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileStore.getUsableSpace()).thenReturn(100 * MB);
+        Mockito.when(fileService.getAvailableDiskSpace(Mockito.any())).thenReturn(5 * MB);
+
+        var monitor = startMonitor(fileService);
+
+        assertThat(monitor.getAvailableDiskSpace(Path.of("target/test/FileStoreMonitorImplTest/other"))).isEqualTo(5 * MB);
+    }
+
+    @Test
+    void reservations_should_be_recorded_as_written_when_closed() throws IOException, NotEnoughDiskSpaceException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        Mockito.when(fileService.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileStore.getUsableSpace()).thenReturn(100 * MB);
+
+        var monitor = startMonitor(fileService);
+        var verifier = new FilesystemSpaceVerifierImpl(fileService, monitor);
+
+        try (var reservation = verifier.reserveDiskSpace(uploads, 10 * MB, 60 * MB)) {
+            assertThrows(NotEnoughDiskSpaceException.class, () -> verifier.reserveDiskSpace(uploads, 10 * MB, 40 * MB));
+        }
+
+        // the 60 MB are now counted as written instead of reserved
+        assertThat(verifier.getReservedDiskSpace()).isEqualTo(0L);
+        assertThrows(NotEnoughDiskSpaceException.class, () -> verifier.reserveDiskSpace(deposits, 10 * MB, 40 * MB));
+        Mockito.verify(fileService, Mockito.never()).getAvailableDiskSpace(Mockito.any());
+    }
+}
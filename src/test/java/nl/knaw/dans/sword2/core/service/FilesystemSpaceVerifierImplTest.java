@@ -20,6 +20,7 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.nio.file.FileStore;
 import java.nio.file.Path;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -95,4 +96,89 @@ class FilesystemSpaceVerifierImplTest {
         Mockito.when(fileService.getAvailableDiskSpace(Mockito.any())).thenReturn(GB*1-1);
         assertThrows(NotEnoughDiskSpaceException.class, () -> new FilesystemSpaceVerifierImpl(fileService).assertDirHasEnoughDiskspaceMargin(Path.of("fake"), margin));
     }
+
+    @Test
+    void reserveDiskSpaceTakesOutstandingReservationsIntoAccount() throws IOException, NotEnoughDiskSpaceException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        Mockito.when(fileService.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileService.getAvailableDiskSpace(Mockito.any())).thenReturn(GB*2);
+        var verifier = new FilesystemSpaceVerifierImpl(fileService);
+
+        // each upload fits on its own, but not both at the same time
+        var reservation = verifier.reserveDiskSpace(Path.of("fake"), 0, MB*1500);
+        assertThrows(NotEnoughDiskSpaceException.class, () -> verifier.reserveDiskSpace(Path.of("fake"), 0, GB));
+        assertEquals(MB*1500, verifier.getReservedDiskSpace(Path.of("fake")));
+        assertEquals(1, verifier.getReservationCount());
+
+        reservation.close();
+        reservation.close();
+
+        assertEquals(0, verifier.getReservedDiskSpace());
+        assertDoesNotThrow(() -> verifier.reserveDiskSpace(Path.of("fake"), 0, GB));
+    }
+
+    @Test
+    void assertDirHasEnoughDiskspaceMarginSubtractsReservations() throws IOException, NotEnoughDiskSpaceException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        Mockito.when(fileService.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileService.getAvailableDiskSpace(Mockito.any())).thenReturn(GB*2);
+        var verifier = new FilesystemSpaceVerifierImpl(fileService);
+
+        verifier.reserveDiskSpace(Path.of("fake"), 0, GB + 1);
+
+        assertThrows(NotEnoughDiskSpaceException.class, () -> verifier.assertDirHasEnoughDiskspaceMargin(Path.of("fake"), GB));
+    }
+
+    @Test
+    void writtenBytesStopBeingReserved() throws IOException, NotEnoughDiskSpaceException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        var fileStoreMonitor = Mockito.mock(FileStoreMonitor.class);
+        Mockito.when(fileStoreMonitor.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileStoreMonitor.getAvailableDiskSpace(Mockito.any())).thenReturn(GB*2);
+        var verifier = new FilesystemSpaceVerifierImpl(fileService, fileStoreMonitor);
+
+        var reservation = verifier.reserveDiskSpace(Path.of("fake"), 0, MB*10);
+        reservation.written(MB*4);
+
+        // the written bytes are missing from the free space now, so they must not be reserved as well
+        assertEquals(MB*6, verifier.getReservedDiskSpace());
+        Mockito.verify(fileStoreMonitor).recordWrite(Path.of("fake"), MB*4);
+
+        // small writes are passed on when the reservation is closed
+        reservation.written(10);
+        assertEquals(MB*6, verifier.getReservedDiskSpace());
+
+        reservation.close();
+
+        assertEquals(0, verifier.getReservedDiskSpace());
+        assertEquals(0, verifier.getReservationCount());
+        Mockito.verify(fileStoreMonitor).recordWrite(Path.of("fake"), 10);
+        Mockito.verify(fileStoreMonitor, Mockito.times(2)).recordWrite(Mockito.any(), Mockito.anyLong());
+    }
+
+    @Test
+    void discardedReservationTakesBackWhatWasWritten() throws IOException, NotEnoughDiskSpaceException {
+        var fileService = Mockito.mock(FileService.class);
+        var fileStore = Mockito.mock(FileStore.class);
+        var fileStoreMonitor = Mockito.mock(FileStoreMonitor.class);
+        Mockito.when(fileStoreMonitor.getFileStore(Mockito.any())).thenReturn(fileStore);
+        Mockito.when(fileStoreMonitor.getAvailableDiskSpace(Mockito.any())).thenReturn(GB*2);
+        var verifier = new FilesystemSpaceVerifierImpl(fileService, fileStoreMonitor);
+
+        // an upload that failed after part of it was written, and whose file was removed
+        var reservation = verifier.reserveDiskSpace(Path.of("fake"), 0, MB*10);
+        reservation.written(MB*3);
+        reservation.close();
+        reservation.discard();
+        reservation.discard();
+
+        assertEquals(0, verifier.getReservedDiskSpace());
+        assertEquals(0, verifier.getReservationCount());
+        Mockito.verify(fileStoreMonitor).recordWrite(Path.of("fake"), MB*3);
+        Mockito.verify(fileStoreMonitor).recordWrite(Path.of("fake"), -MB*3);
+        Mockito.verify(fileStoreMonitor, Mockito.times(2)).recordWrite(Mockito.any(), Mockito.anyLong());
+    }
 }
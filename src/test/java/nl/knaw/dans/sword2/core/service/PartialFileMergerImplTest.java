@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2022 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.sword2.core.service;
+
+import nl.knaw.dans.sword2.TestFixture;
+import nl.knaw.dans.sword2.core.exceptions.InvalidPartialFileException;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartialFileMergerImplTest extends TestFixture {
+
+    private final FileService fileService = new FileServiceImpl();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtils.deleteDirectory(testDir.toFile());
+        Files.createDirectories(testDir);
+    }
+
+    @Test
+    void mergeAvailablePartsWaitsForMissingPart() throws IOException, InvalidPartialFileException, NoSuchAlgorithmException {
+        var merger = new PartialFileMergerImpl(fileService);
+
+        Files.writeString(testDir.resolve("bag.zip.2"), "second ");
+        merger.mergeAvailableParts(testDir);
+
+        assertFalse(Files.exists(testDir.resolve("merged.zip")));
+        assertTrue(Files.exists(testDir.resolve("bag.zip.2")));
+
+        Files.writeString(testDir.resolve("bag.zip.1"), "first ");
+        merger.mergeAvailableParts(testDir);
+
+        assertEquals("first second ", Files.readString(testDir.resolve("merged.zip")));
+        assertFalse(Files.exists(testDir.resolve("bag.zip.1")));
+        assertFalse(Files.exists(testDir.resolve("bag.zip.2")));
+
+        Files.writeString(testDir.resolve("bag.zip.3"), "third");
+        var merged = merger.completeMerge(testDir);
+
+        assertEquals("first second third", Files.readString(merged.getPath()));
+        assertEquals(md5("first second third"), merged.getMd5());
+        assertEquals(1, fileService.listFiles(testDir).count());
+    }
+
+    @Test
+    void mergeAvailablePartsDiscardsIncompleteAppend() throws IOException, InvalidPartialFileException, NoSuchAlgorithmException {
+        Files.writeString(testDir.resolve("bag.zip.1"), "first ");
+        new PartialFileMergerImpl(fileService).mergeAvailableParts(testDir);
+
+        // a restart while part 2 was being appended leaves some of its bytes behind
+        Files.writeString(testDir.resolve("merged.zip"), "first sec");
+        Files.writeString(testDir.resolve("bag.zip.2"), "second");
+        var merged = new PartialFileMergerImpl(fileService).completeMerge(testDir);
+
+        assertArrayEquals("first second".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(merged.getPath()));
+        // the digest of what was merged before the restart is calculated from the merged file, without the bytes that were left behind
+        assertEquals(md5("first second"), merged.getMd5());
+    }
+
+    @Test
+    void completeMergeAppendsPartsAfterGapInOrder() throws IOException, InvalidPartialFileException {
+        Files.writeString(testDir.resolve("bag.zip.3"), "c");
+        Files.writeString(testDir.resolve("bag.zip.2"), "b");
+        var merged = new PartialFileMergerImpl(fileService).completeMerge(testDir);
+
+        assertEquals("bc", Files.readString(merged.getPath()));
+    }
+
+    @Test
+    void mergeIgnoresPartsThatAreStillBeingReceived() throws IOException, InvalidPartialFileException {
+        var merger = new PartialFileMergerImpl(fileService);
+
+        Files.writeString(testDir.resolve("bag.zip.1"), "first ");
+        Files.writeString(testDir.resolve(".bag.zip.2.1234.uploading"), "sec");
+        merger.mergeAvailableParts(testDir);
+
+        assertEquals("first ", Files.readString(testDir.resolve("merged.zip")));
+        assertTrue(Files.exists(testDir.resolve(".bag.zip.2.1234.uploading")));
+
+        Files.writeString(testDir.resolve("bag.zip.2"), "second");
+        var merged = merger.completeMerge(testDir);
+
+        assertEquals("first second", Files.readString(merged.getPath()));
+    }
+
+    @Test
+    void completeMergeReturnsMergeOfEarlierAttempt() throws IOException, InvalidPartialFileException, NoSuchAlgorithmException {
+        var merger = new PartialFileMergerImpl(fileService);
+
+        Files.writeString(testDir.resolve("bag.zip.1"), "first ");
+        Files.writeString(testDir.resolve("bag.zip.2"), "second");
+        merger.completeMerge(testDir);
+
+        // e.g. a finalization that is retried after the extraction failed
+        var merged = merger.completeMerge(testDir);
+
+        assertEquals("first second", Files.readString(merged.getPath()));
+        assertEquals(md5("first second"), merged.getMd5());
+    }
+
+    private String md5(String content) throws NoSuchAlgorithmException {
+        var digest = MessageDigest.getInstance("MD5").digest(content.getBytes(StandardCharsets.UTF_8));
+        return DatatypeConverter.printHexBinary(digest).toLowerCase(Locale.ROOT);
+    }
+}
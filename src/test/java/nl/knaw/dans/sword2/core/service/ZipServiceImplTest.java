@@ -20,14 +20,19 @@ import org.mockito.Mockito;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 class ZipServiceImplTest {
 
@@ -43,7 +48,7 @@ class ZipServiceImplTest {
             new ZipEntry("folder/"),
             new ZipEntry("folder with spaces/file with spaces.txt")));
 
-        var result = new ZipServiceImpl(fileService).getFilesInZip(file);
+        var result = new ZipServiceImpl(fileService).getFilesInZip(new ZipIndex(file));
 
         assertEquals(4, result.size());
 
@@ -65,7 +70,7 @@ class ZipServiceImplTest {
         var is = new ByteArrayInputStream(new byte[1]);
         Mockito.when(file.getInputStream(Mockito.any())).thenReturn(is);
 
-        new ZipServiceImpl(fileService).extractZipFileWithFileMapping(file, Path.of("target/path"), Map.of());
+        new ZipServiceImpl(fileService).extractZipFileWithFileMapping(new ZipIndex(file), Path.of("target/path"), Map.of());
 
         Mockito.verify(fileService)
             .copyFile(Mockito.eq(is), Mockito.eq(Path.of("target/path/file1")));
@@ -91,7 +96,7 @@ class ZipServiceImplTest {
         Mockito.when(file.getInputStream(Mockito.any())).thenReturn(is);
 
         var fileMapping = Map.of("file1", "some-other-value", "path/to/file3.tt", "secret-file");
-        new ZipServiceImpl(fileService).extractZipFileWithFileMapping(file, Path.of("target/path"), fileMapping);
+        new ZipServiceImpl(fileService).extractZipFileWithFileMapping(new ZipIndex(file), Path.of("target/path"), fileMapping);
 
 
         Mockito.verify(fileService)
@@ -101,4 +106,90 @@ class ZipServiceImplTest {
         Mockito.verify(fileService)
             .copyFile(Mockito.eq(is), Mockito.eq(Path.of("target/path/folder with spaces/file with spaces.txt")));
     }
+
+    @Test
+    void zipIndexParsesCentralDirectoryOnceAndClosesFile() throws IOException {
+        var file = Mockito.mock(ZipFile.class);
+        var fileService = Mockito.mock(FileService.class);
+
+        var entry = new ZipEntry("file1");
+        entry.setSize(10);
+        var entry2 = new ZipEntry("path/to/file2.txt");
+        entry2.setSize(5);
+
+        Mockito.when(file.stream()).thenAnswer(i -> Stream.of(entry, new ZipEntry("path/"), entry2));
+        Mockito.when(file.getInputStream(Mockito.any())).thenAnswer(i -> new ByteArrayInputStream(new byte[1]));
+
+        var zipService = new ZipServiceImpl(fileService);
+
+        try (var zipIndex = new ZipIndex(file)) {
+            assertEquals(15, zipService.getExtractedSize(zipIndex));
+            assertThat(zipService.getFilesInZip(zipIndex)).containsExactly("file1", "path/to/file2.txt");
+            zipService.extractZipFileWithFileMapping(zipIndex, Path.of("target/path"), Map.of());
+        }
+
+        Mockito.verify(file, Mockito.times(1)).stream();
+        Mockito.verify(file).close();
+    }
+
+    @Test
+    void testAllFilesAreExtractedInParallel() throws IOException {
+        var file = Mockito.mock(ZipFile.class);
+        var fileService = Mockito.mock(FileService.class);
+        var executor = Executors.newFixedThreadPool(4);
+
+        Mockito.when(file.stream()).thenAnswer(i -> Stream.of(
+            new ZipEntry("file1"),
+            new ZipEntry("file2.txt"),
+            new ZipEntry("path/to/file3.tt"),
+            new ZipEntry("folder/"),
+            new ZipEntry("../outside.txt"),
+            new ZipEntry("folder with spaces/file with spaces.txt")));
+
+        Mockito.when(file.getInputStream(Mockito.any())).thenAnswer(i -> new ByteArrayInputStream(new byte[1]));
+
+        try {
+            new ZipServiceImpl(fileService, executor, 4).extractZipFileWithFileMapping(new ZipIndex(file), Path.of("target/path"), Map.of("file1", "renamed"));
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        Mockito.verify(fileService).copyFile(Mockito.any(InputStream.class), Mockito.eq(Path.of("target/path/renamed")));
+        Mockito.verify(fileService).copyFile(Mockito.any(InputStream.class), Mockito.eq(Path.of("target/path/file2.txt")));
+        Mockito.verify(fileService).copyFile(Mockito.any(InputStream.class), Mockito.eq(Path.of("target/path/path/to/file3.tt")));
+        Mockito.verify(fileService).copyFile(Mockito.any(InputStream.class), Mockito.eq(Path.of("target/path/folder with spaces/file with spaces.txt")));
+        Mockito.verify(fileService, Mockito.times(4)).copyFile(Mockito.any(InputStream.class), Mockito.any(Path.class));
+
+        // parent directories are created once, before extraction starts
+        Mockito.verify(fileService, Mockito.times(1)).ensureDirectoriesExist(Path.of("target/path"));
+        Mockito.verify(fileService, Mockito.times(1)).ensureDirectoriesExist(Path.of("target/path/path/to"));
+        Mockito.verify(fileService, Mockito.times(1)).ensureDirectoriesExist(Path.of("target/path/folder with spaces"));
+    }
+
+    @Test
+    void testDigestsAreCalculatedWhileExtracting() throws IOException {
+        var file = Mockito.mock(ZipFile.class);
+        var fileService = Mockito.mock(FileService.class);
+
+        Mockito.when(file.stream()).thenAnswer(i -> Stream.of(
+            new ZipEntry("bag/data/file1"),
+            new ZipEntry("bag/data/file2")));
+
+        Mockito.when(file.getInputStream(Mockito.any())).thenAnswer(i -> new ByteArrayInputStream("test\n".getBytes(StandardCharsets.UTF_8)));
+        Mockito.when(fileService.copyFile(Mockito.any(InputStream.class), Mockito.any(Path.class))).thenAnswer(i -> {
+            ((InputStream) i.getArgument(0)).readAllBytes();
+            return i.getArgument(1);
+        });
+
+        var payloadDigests = new PayloadDigests();
+        payloadDigests.addAlgorithms(List.of("MD5", "SHA-1"));
+
+        new ZipServiceImpl(fileService).extractZipFileWithFileMapping(new ZipIndex(file), Path.of("target/path"), Map.of("bag/data/file2", "bag/data/renamed"), payloadDigests, null);
+
+        assertEquals("d8e8fca2dc0f896fd7cb4cb0031ba249", payloadDigests.get(Path.of("target/path/bag/data/file1"), "MD5"));
+        assertEquals("4e1243bd22c66e76c2ba9eddc1f91394e57f9f83", payloadDigests.get(Path.of("target/path/bag/data/file1"), "SHA-1"));
+        assertEquals("4e1243bd22c66e76c2ba9eddc1f91394e57f9f83", payloadDigests.get(Path.of("target/path/bag/data/renamed"), "SHA-1"));
+        assertNull(payloadDigests.get(Path.of("target/path/bag/data/file2"), "SHA-1"));
+    }
 }
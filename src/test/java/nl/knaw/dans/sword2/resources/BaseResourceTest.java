@@ -25,6 +25,7 @@ import org.mockito.Mockito;
 import javax.ws.rs.core.MediaType;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -100,4 +101,28 @@ class BaseResourceTest {
         assertFalse(handler.getInProgress(null));
         assertThrows(InvalidHeaderException.class, () -> handler.getInProgress("not-true-or-false"));
     }
+
+    @Test
+    void testDigests() throws InvalidHeaderException {
+        var errorResponseFactory = Mockito.mock(ErrorResponseFactory.class);
+        var handler = new BaseResource(errorResponseFactory);
+
+        // digests of the empty string
+        assertEquals(Map.of(
+            "MD5", "d41d8cd98f00b204e9800998ecf8427e",
+            "SHA-256", "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"
+        ), handler.getDigests("MD5=1B2M2Y8AsgTpgAmY7PhCfg==, UNIXsum=30637", "sha-256=:47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=:"));
+        assertEquals(Map.of(), handler.getDigests(null, null));
+        assertEquals(Map.of(), handler.getDigests("unixsum=30637", null));
+    }
+
+    @Test
+    void testInvalidDigests() {
+        var errorResponseFactory = Mockito.mock(ErrorResponseFactory.class);
+        var handler = new BaseResource(errorResponseFactory);
+
+        assertThrows(InvalidHeaderException.class, () -> handler.getDigests("sha-256=not base64!", null));
+        assertThrows(InvalidHeaderException.class, () -> handler.getDigests(null, "sha-256=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU="));
+        assertThrows(InvalidHeaderException.class, () -> handler.getDigests("md5=1B2M2Y8AsgTpgAmY7PhCfg==", "md5=:AAAAAAAAAAAAAAAAAAAAAA==:"));
+    }
 }